@@ -0,0 +1,295 @@
+package offn;
+
+import static offn.OffHeap.KEY_LENGTH;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Answers "which keys changed since sequence number N" without scanning the map, for
+ * incremental syncs. A thread consumes the records of the ChangeLog attached to the
+ * map and keeps two single writer maps: the stamp of the last change of each key, its
+ * sequence number and whether the key was absent, and the same entries ordered by
+ * stamp. A key changed again moves to the end of the second map, so changesSince walks
+ * it from N and finds each key changed since then once, with a tombstone if it was
+ * removed.
+ * <p>
+ * Records of a key written concurrently by several threads can be out of order in the
+ * log, so the last one indexed is not always the last change. Whether a key is a
+ * tombstone is read from the map when each record is indexed instead of taken from
+ * its op. The record of each change is indexed after it, so the last one indexed for a
+ * key sees its latest state.
+ * <p>
+ * Entries in stamp order are keyed by the stamp, big-endian, and the first 12 bytes
+ * of the key, with the last 8 in the value, so they take a single node. The two low
+ * bits of the stamp flag removes, and a key tail of 0, stored as 1 since values are
+ * nonzero.
+ * <p>
+ * Entries older than the last retention records are compacted away, tombstones
+ * included. The horizon is then the oldest sequence number queries can start from,
+ * older syncs need a full copy. The log must BLOCK, so that no record is lost, which
+ * makes the index's thread backpressure on the map's writers if it falls behind.
+ */
+public final class ChangeIndex implements Closeable {
+
+    private static final int REMOVED = 2, ZERO_TAIL = 1, FLAGS = 2;
+
+    private static final int HEAD = 8, TAIL = 12;
+
+    /**
+     * Records applied between two position updates, and longest park when there are
+     * none.
+     */
+    private static final int BATCH = 1024;
+
+    private static final long IDLE_NANOS = 100000;
+
+    private final OffHeap map;
+
+    private final ChangeLog.Subscriber subscriber;
+
+    private final long retention;
+
+    private final OffHeap stamps = new OffHeap(true), ordered = new OffHeap(true);
+
+    /**
+     * Sequence number of the next record to index, and oldest one indexed.
+     */
+    private volatile long indexed, horizon;
+
+    private volatile boolean closed;
+
+    private final Thread thread;
+
+    /**
+     * Indexes the records published from now on to the log attached to map.
+     *
+     * @param retention
+     *            records after which changes are compacted away
+     * @throws IllegalStateException
+     *             if map has no change log
+     */
+    public ChangeIndex(OffHeap map, long retention) {
+        ChangeLog log = map.changeLog();
+
+        if (log == null)
+            throw new IllegalStateException();
+
+        if (log.overflow() != ChangeLog.Overflow.BLOCK || retention < 1)
+            throw new IllegalArgumentException();
+
+        this.map = map;
+        this.retention = retention;
+        subscriber = log.subscribe();
+        indexed = horizon = subscriber.position();
+
+        thread = new Thread("offn-change-index") {
+
+            @Override
+            public void run() {
+                index();
+            }
+        };
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sequence number of the next record to index. Changes before it are visible to
+     * changesSince, so a client which synced can ask for the changes since this value.
+     */
+    public long indexed() {
+        return indexed;
+    }
+
+    /**
+     * Oldest sequence number changesSince accepts.
+     */
+    public long horizon() {
+        return horizon;
+    }
+
+    /**
+     * Keys in the index, tombstones included.
+     */
+    public long size() {
+        long count = 0;
+
+        for (OffHeap.Cursor cursor = stamps.cursor(null); cursor.next();)
+            count++;
+
+        return count;
+    }
+
+    /**
+     * Returns the keys changed at or after seq, in order of their last change, or null
+     * if changes that old were compacted away. Weakly consistent like cursors, and
+     * complete only if horizon is still at or below seq once done.
+     */
+    public Changes changesSince(long seq) {
+        if (seq < horizon)
+            return null;
+
+        byte[] from = new byte[KEY_LENGTH];
+        putLong(from, 0, stamp(seq) << FLAGS);
+        return new Changes(ordered.cursor(from));
+    }
+
+    /**
+     * Keys changed since a sequence number, with the one of their last change.
+     */
+    public static final class Changes {
+
+        private final OffHeap.Cursor cursor;
+
+        private final byte[] key = new byte[KEY_LENGTH];
+
+        private long seq;
+
+        private boolean removed;
+
+        Changes(OffHeap.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * Moves to the next key.
+         *
+         * @return false if there are no more changes
+         */
+        public boolean next() {
+            if (!cursor.next())
+                return false;
+
+            byte[] k = cursor.key();
+            long prefix = getLong(k, 0);
+            System.arraycopy(k, HEAD, key, 0, TAIL);
+            putLong(key, TAIL, (prefix & ZERO_TAIL) != 0 ? 0 : cursor.value());
+            seq = (prefix >>> FLAGS) - 1;
+            removed = (prefix & REMOVED) != 0;
+            return true;
+        }
+
+        /**
+         * The array belongs to the cursor and is overwritten by next.
+         */
+        public byte[] key() {
+            return key;
+        }
+
+        public long seq() {
+            return seq;
+        }
+
+        /**
+         * If the key was absent from the map when its last change was indexed, i.e. a
+         * tombstone.
+         */
+        public boolean removed() {
+            return removed;
+        }
+    }
+
+    /* ---------------- Indexing -------------- */
+
+    private void index() {
+        final byte[] entry = new byte[KEY_LENGTH];
+
+        ChangeLog.Handler handler = new ChangeLog.Handler() {
+
+            @Override
+            public void onChange(long seq, int op, byte[] key, long previous, long value) {
+                long last = stamps.get(key);
+
+                if (last != 0)
+                    ordered.remove(entry(last, key, entry));
+
+                long tail = getLong(key, TAIL);
+                long prefix = stamp(seq) << FLAGS | (map.get(key) == 0 ? REMOVED : 0) | (tail == 0 ? ZERO_TAIL : 0);
+                stamps.put(key, prefix);
+                ordered.put(entry(prefix, key, entry), tail == 0 ? 1 : tail);
+            }
+        };
+
+        while (!closed) {
+            if (subscriber.poll(handler, BATCH) == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+
+            indexed = subscriber.position();
+
+            if (indexed - horizon > retention + retention / 4)
+                compact(indexed - retention);
+        }
+    }
+
+    /**
+     * Removes entries older than seq.
+     */
+    private void compact(long seq) {
+        horizon = seq; // First, so that queries which could miss entries are refused
+        byte[] lo = new byte[KEY_LENGTH], hi = new byte[KEY_LENGTH], key = new byte[KEY_LENGTH];
+        putLong(hi, 0, stamp(seq) << FLAGS);
+
+        for (OffHeap.Cursor cursor = ordered.cursor(null); cursor.next();) {
+            byte[] k = cursor.key();
+
+            if (OffHeap.compare(k, hi) >= 0)
+                break;
+
+            System.arraycopy(k, HEAD, key, 0, TAIL);
+            putLong(key, TAIL, (getLong(k, 0) & ZERO_TAIL) != 0 ? 0 : cursor.value());
+            stamps.remove(key);
+        }
+
+        ordered.removeRange(lo, hi);
+    }
+
+    /**
+     * Stamps are sequence numbers plus one, so that they are nonzero.
+     */
+    private static long stamp(long seq) {
+        return seq + 1;
+    }
+
+    private static byte[] entry(long prefix, byte[] key, byte[] entry) {
+        putLong(entry, 0, prefix);
+        System.arraycopy(key, 0, entry, HEAD, TAIL);
+        return entry;
+    }
+
+    private static long getLong(byte[] array, int offset) {
+        long value = 0;
+
+        for (int i = 0; i < 8; i++)
+            value = value << 8 | array[offset + i] & 0xff;
+
+        return value;
+    }
+
+    private static void putLong(byte[] array, int offset, long value) {
+        for (int i = 7; i >= 0; i--, value >>>= 8)
+            array[offset + i] = (byte) value;
+    }
+
+    /**
+     * Stops indexing and unsubscribes. The index can still be queried.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(thread);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        subscriber.unsubscribe();
+    }
+}
@@ -0,0 +1,368 @@
+package offn;
+
+import static offn.OffHeap.BYTES;
+import static offn.OffHeap.KEY_LENGTH;
+import static offn.OffHeap.UNSAFE;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/**
+ * Change data capture, a ring in native memory to which maps attached with
+ * OffHeap.changeLog publish a record for each successful put, replace or remove:
+ * sequence number, op, key, previous value and new value, 0 for none. Subscribers
+ * consume records in batches at their own position.
+ * <p>
+ * Producers reserve a sequence number from a counter, fill the slot and publish it
+ * with a marker, like DurableOffHeap's ring. The counter is the only shared write, a
+ * put costs one atomic increment and a cache line. Records are published after the
+ * map changed, so records of a key written concurrently by several threads can be out
+ * of order, and a consumer must not take the value of the last record it polled for a
+ * key as the map's. Their previous values tell when records were reordered, and the
+ * map itself has the current value: a consumer which keeps a copy re-reads the key
+ * from the map, e.g. after a record whose previous value is not the one it has. Bulk
+ * loads, e.g. Builder, are not published.
+ * <p>
+ * With BLOCK, producers wait for the slowest subscriber when the ring is full, which
+ * is backpressure on the map's writers, so a subscriber which stops polling must
+ * unsubscribe. With OVERWRITE, producers never wait, and a subscriber lapped by them
+ * skips ahead and counts the records it lost. Slots are then validated like a
+ * seqlock, a producer about to overwrite one marks it in progress first, with a store
+ * fence before the fields change.
+ */
+public final class ChangeLog implements Closeable {
+
+    public static final int PUT = 1, REMOVE = 2;
+
+    public enum Overflow {
+        BLOCK, OVERWRITE
+    }
+
+    /**
+     * Slot fields, a cache line. Marker is seq + 1 once published, or -(seq + 1) while
+     * being overwritten.
+     */
+    private static final int MARKER = 0, KEY = 8, OP = 28, PREVIOUS = 32, VALUE = 40, RECORD = 64;
+
+    /**
+     * Callback for polled records.
+     */
+    public interface Handler {
+
+        /**
+         * @param key
+         *            belongs to the subscriber and is overwritten by the next record
+         */
+        void onChange(long seq, int op, byte[] key, long previous, long value);
+    }
+
+    private final long memory, address;
+
+    private final int capacity;
+
+    private final Overflow overflow;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Lowest subscriber position last seen by a producer, racy, BLOCK only.
+     */
+    private long gate;
+
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    /**
+     * Unsafe.storeFence, or null before Java 8.
+     */
+    private static final MethodHandle STORE_FENCE;
+
+    static {
+        MethodHandle storeFence;
+
+        try {
+            storeFence = MethodHandles.lookup().findVirtual(Unsafe.class, "storeFence", MethodType.methodType(void.class)).bindTo(UNSAFE);
+        } catch (ReflectiveOperationException ex) {
+            storeFence = null;
+        }
+
+        STORE_FENCE = storeFence;
+    }
+
+    /**
+     * @param capacity
+     *            records, a power of two
+     */
+    public ChangeLog(int capacity, Overflow overflow) {
+        if (Integer.bitCount(capacity) != 1 || overflow == null)
+            throw new IllegalArgumentException();
+
+        this.capacity = capacity;
+        this.overflow = overflow;
+        memory = UNSAFE.allocateMemory((long) capacity * RECORD + RECORD);
+        address = (memory + RECORD - 1) & -RECORD;
+        UNSAFE.setMemory(address, (long) capacity * RECORD, (byte) 0);
+    }
+
+    public Overflow overflow() {
+        return overflow;
+    }
+
+    /**
+     * Number of records published or being published.
+     */
+    public long published() {
+        return tail.get();
+    }
+
+    private long record(long seq) {
+        return address + (seq & (capacity - 1)) * RECORD;
+    }
+
+    /* ---------------- Producers -------------- */
+
+    final void publish(int op, byte[] key, long previous, long value) {
+        long seq = reserve();
+        long record = record(seq);
+        // Three stores, copyMemory costs more for 20 bytes
+        UNSAFE.putLong(record + KEY, UNSAFE.getLong(key, BYTES));
+        UNSAFE.putLong(record + KEY + 8, UNSAFE.getLong(key, BYTES + 8));
+        UNSAFE.putInt(record + KEY + 16, UNSAFE.getInt(key, BYTES + 16));
+        commit(seq, record, op, previous, value);
+    }
+
+    /**
+     * Same, with the key in native memory, e.g. a node.
+     */
+    final void publish(int op, long key, long previous, long value) {
+        long seq = reserve();
+        long record = record(seq);
+        UNSAFE.putLong(record + KEY, UNSAFE.getLong(key));
+        UNSAFE.putLong(record + KEY + 8, UNSAFE.getLong(key + 8));
+        UNSAFE.putInt(record + KEY + 16, UNSAFE.getInt(key + 16));
+        commit(seq, record, op, previous, value);
+    }
+
+    /**
+     * Takes a sequence number, waits for room with BLOCK, and for the record a lap
+     * earlier in the slot to be published, e.g. by a stalled producer.
+     */
+    private long reserve() {
+        long seq = tail.getAndIncrement();
+
+        if (overflow == Overflow.BLOCK && seq - capacity >= gate) {
+            for (;;) {
+                long min = seq;
+
+                for (Subscriber s : subscribers)
+                    min = Math.min(min, s.position);
+
+                if (seq - capacity < min) {
+                    gate = min;
+                    break;
+                }
+
+                Thread.yield();
+            }
+        }
+
+        long record = record(seq);
+
+        if (seq >= capacity)
+            while (UNSAFE.getLongVolatile(null, record + MARKER) != seq - capacity + 1)
+                Thread.yield();
+
+        if (overflow == Overflow.OVERWRITE)
+            markOverwriting(record, seq);
+
+        return seq;
+    }
+
+    /**
+     * Marks the slot in progress. A subscriber which then sees any field of the new
+     * record sees the marker too, StoreStore is enough. Before Java 8, a volatile store,
+     * which HotSpot fences on both sides but the memory model doesn't order with the
+     * plain stores after it.
+     */
+    private static void markOverwriting(long record, long seq) {
+        if (STORE_FENCE == null)
+            UNSAFE.putLongVolatile(null, record + MARKER, -(seq + 1));
+        else {
+            UNSAFE.putOrderedLong(null, record + MARKER, -(seq + 1));
+
+            try {
+                STORE_FENCE.invokeExact();
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    private static void commit(long seq, long record, int op, long previous, long value) {
+        UNSAFE.putInt(record + OP, op);
+        UNSAFE.putLong(record + PREVIOUS, previous);
+        UNSAFE.putLong(record + VALUE, value);
+        UNSAFE.putOrderedLong(null, record + MARKER, seq + 1);
+    }
+
+    /* ---------------- Subscribers -------------- */
+
+    /**
+     * Returns a subscriber which starts at the next record published.
+     */
+    public Subscriber subscribe() {
+        Subscriber s = new Subscriber(this, tail.get());
+        subscribers.add(s);
+        return s;
+    }
+
+    /**
+     * Returns a subscriber which starts at seq, e.g. to resume where a consumer left
+     * off, or null if the record is not in the ring anymore. With BLOCK, records are
+     * kept only from the position of the slowest subscriber.
+     */
+    public Subscriber subscribe(long seq) {
+        Subscriber s = new Subscriber(this, seq);
+        subscribers.add(s); // First, so producers checking room from now on wait for it
+        long t = tail.get(), oldest = t - capacity;
+
+        if (overflow == Overflow.BLOCK) {
+            oldest = t;
+
+            for (Subscriber other : subscribers)
+                if (other != s)
+                    oldest = Math.min(oldest, other.position);
+        }
+
+        if (seq < Math.max(oldest, 0) || seq > t) {
+            subscribers.remove(s);
+            return null;
+        }
+
+        return s;
+    }
+
+    /**
+     * Position in the log of one consumer. Must not be shared between threads.
+     */
+    public static final class Subscriber {
+
+        private final ChangeLog log;
+
+        private final byte[] key = new byte[KEY_LENGTH];
+
+        /**
+         * Next record, published for producers waiting with BLOCK.
+         */
+        private volatile long position;
+
+        private long next, lost;
+
+        Subscriber(ChangeLog log, long position) {
+            this.log = log;
+            this.position = next = position;
+        }
+
+        /**
+         * Sequence number of the next record to poll.
+         */
+        public long position() {
+            return next;
+        }
+
+        /**
+         * Records published but not polled yet.
+         */
+        public long lag() {
+            return log.tail.get() - next;
+        }
+
+        /**
+         * Records skipped because producers lapped this subscriber, OVERWRITE only.
+         */
+        public long lost() {
+            return lost;
+        }
+
+        /**
+         * Passes up to max records, in sequence order, to handler.
+         *
+         * @return the number of records, 0 if none is published yet
+         */
+        public int poll(Handler handler, int max) {
+            int count = 0;
+
+            while (count < max) {
+                long seq = next;
+                long record = log.record(seq);
+                long marker = UNSAFE.getLongVolatile(null, record + MARKER);
+
+                if (marker != seq + 1) {
+                    if (log.overflow == Overflow.OVERWRITE && (marker > seq + 1 || marker < -(seq + 1))) {
+                        skip();
+                        continue;
+                    }
+
+                    break; // Not published yet
+                }
+
+                int op = UNSAFE.getInt(record + OP);
+                UNSAFE.copyMemory(null, record + KEY, key, BYTES, KEY_LENGTH);
+                long previous = UNSAFE.getLong(record + PREVIOUS);
+                long value = UNSAFE.getLong(record + VALUE);
+
+                // Volatile write, so reads above are done before the marker is checked again
+                position = seq + 1;
+
+                if (log.overflow == Overflow.OVERWRITE && UNSAFE.getLongVolatile(null, record + MARKER) != marker) {
+                    skip();
+                    continue;
+                }
+
+                next = seq + 1;
+                handler.onChange(seq, op, key, previous, value);
+                count++;
+            }
+
+            return count;
+        }
+
+        /**
+         * Moves past records which are being overwritten, with some margin.
+         */
+        private void skip() {
+            long oldest = log.tail.get() - log.capacity + log.capacity / 4;
+
+            if (oldest > next) {
+                lost += oldest - next;
+                next = oldest;
+            } else { // Only the one being overwritten
+                lost++;
+                next++;
+            }
+
+            position = next;
+        }
+
+        /**
+         * Stops being waited for by producers.
+         */
+        public void unsubscribe() {
+            log.subscribers.remove(this);
+        }
+    }
+
+    /**
+     * Frees the ring. Maps must have been detached, and writes returned.
+     */
+    @Override
+    public void close() {
+        subscribers.clear();
+        UNSAFE.freeMemory(memory);
+    }
+}
@@ -0,0 +1,351 @@
+package offn;
+
+import static offn.OffHeap.KEY_LENGTH;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Flat combining front end for writes, for workloads where many threads update a few
+ * hot keys. CAS retries on the same nodes then burn most of the time. Instead, each
+ * writer publishes its operation in its own slot and tries to take the combiner lock.
+ * The thread that gets it applies all published operations as a batch, sorted by key,
+ * and the others wait for their slot to be completed or for the lock to be free.
+ * <p>
+ * Operations on the same key in a batch are merged. They are given results in turn
+ * from a running value, as if applied one after the other, and only the last value is
+ * written to the map. A map has a single writer at a time, the lock holder, so it
+ * runs in single writer mode. Gets don't go through the combiner, they read the map
+ * directly.
+ * <p>
+ * Keys are range partitioned on their first two bytes over shards, each with its own
+ * map, lock and publication array, so that combiners of unrelated ranges neither wait
+ * for each other nor scan each other's slots. A thread registers a slot in a shard the
+ * first time it writes there. Slots of threads which exited, e.g. retired by a pool,
+ * are dropped when another thread registers, and every PRUNE batches by the combiner.
+ */
+public final class CombiningOffHeap {
+
+    private static final int PUT = 0, REMOVE = 1;
+
+    private static final int PENDING = 0, DONE = 1;
+
+    /**
+     * Spins waiting for a slot or the lock before yielding.
+     */
+    private static final int SPINS = 64;
+
+    /**
+     * Batches between checks for slots of threads which exited.
+     */
+    private static final int PRUNE = 1024;
+
+    /**
+     * Fields are written by the owner, then published by state.
+     */
+    private static final class Slot {
+
+        final Thread owner = Thread.currentThread();
+
+        volatile int state = DONE;
+
+        int op;
+
+        byte[] key;
+
+        long value, result;
+
+        long p0, p1, p2, p3, p4, p5; // Padding against false sharing
+    }
+
+    private static final class Shard {
+
+        final OffHeap map = new OffHeap(true);
+
+        final AtomicInteger lock = new AtomicInteger();
+
+        /**
+         * Copy on write, threads only register once per shard.
+         */
+        volatile Slot[] slots = new Slot[0];
+
+        // Combiner state, guarded by lock
+
+        Slot[] batch = new Slot[0];
+
+        byte[][] keys = new byte[0][];
+
+        int[] order = new int[0];
+
+        long batches, operations;
+
+        synchronized Slot register() {
+            Slot slot = new Slot();
+            slots = live(slot);
+            return slot;
+        }
+
+        synchronized void prune() {
+            slots = live(null);
+        }
+
+        /**
+         * Copy of slots without those of threads which exited, plus added if not null. A
+         * dead thread's slot is done, its owner waited for it.
+         */
+        private Slot[] live(Slot added) {
+            Slot[] array = new Slot[slots.length + 1];
+            int count = 0;
+
+            for (Slot slot : slots)
+                if (slot.owner.isAlive())
+                    array[count++] = slot;
+
+            if (added != null)
+                array[count++] = added;
+
+            return count == array.length ? array : Arrays.copyOf(array, count);
+        }
+    }
+
+    private final Shard[] shards;
+
+    /**
+     * Slots of the current thread, by shard, null until it writes there.
+     */
+    private final ThreadLocal<Slot[]> local = new ThreadLocal<Slot[]>() {
+
+        @Override
+        protected Slot[] initialValue() {
+            return new Slot[shards.length];
+        }
+    };
+
+    public CombiningOffHeap() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param shards
+     *            number of key ranges, each combined separately
+     */
+    public CombiningOffHeap(int shards) {
+        if (shards < 1 || shards > 1 << 16)
+            throw new IllegalArgumentException();
+
+        this.shards = new Shard[shards];
+
+        for (int i = 0; i < shards; i++)
+            this.shards[i] = new Shard();
+    }
+
+    /**
+     * Index of the shard of key, increasing with the key.
+     */
+    private int route(byte[] key) {
+        int prefix = (key[0] & 0xff) << 8 | key[1] & 0xff;
+        return (int) ((long) prefix * shards.length >>> 16);
+    }
+
+    public long get(byte[] key) {
+        return shards[route(key)].map.get(key);
+    }
+
+    public long put(byte[] key, long value) {
+        if (value == 0)
+            throw new IllegalArgumentException();
+
+        return execute(PUT, key, value);
+    }
+
+    public long remove(byte[] key) {
+        return execute(REMOVE, key, 0);
+    }
+
+    /**
+     * Number of slots registered over all shards, for tests.
+     */
+    final int slots() {
+        int count = 0;
+
+        for (Shard shard : shards)
+            count += shard.slots.length;
+
+        return count;
+    }
+
+    /**
+     * Average number of operations applied per batch since creation. Read without the
+     * lock, an estimate.
+     */
+    public double averageBatch() {
+        long n = 0, ops = 0;
+
+        for (Shard shard : shards) {
+            n += shard.batches;
+            ops += shard.operations;
+        }
+
+        return n != 0 ? (double) ops / n : 0;
+    }
+
+    private long execute(int op, byte[] key, long value) {
+        if (key.length != KEY_LENGTH)
+            throw new IllegalArgumentException();
+        int index = route(key);
+        Shard shard = shards[index];
+        Slot[] slots = local.get();
+        Slot slot = slots[index];
+
+        if (slot == null)
+            slot = slots[index] = shard.register();
+
+        slot.op = op;
+        slot.key = key;
+        slot.value = value;
+        slot.state = PENDING;
+
+        for (int spins = 0;;) {
+            if (slot.state == DONE)
+                break;
+
+            if (shard.lock.get() == 0 && shard.lock.compareAndSet(0, 1)) {
+                try {
+                    combine(shard);
+                } finally {
+                    shard.lock.set(0);
+                }
+            } else if (++spins > SPINS)
+                Thread.yield();
+        }
+
+        slot.key = null;
+        return slot.result;
+    }
+
+    /**
+     * Collects pending slots of a shard, sorts them by key so that the map is walked in
+     * order and duplicates are adjacent, and applies each run of equal keys with one
+     * write.
+     */
+    private static void combine(Shard shard) {
+        if (++shard.batches % PRUNE == 0)
+            shard.prune();
+
+        Slot[] slots = shard.slots;
+        OffHeap map = shard.map;
+
+        // Shrinks too once slots of exited threads are dropped
+        if (shard.batch.length < slots.length || shard.batch.length > slots.length * 2) {
+            shard.batch = new Slot[slots.length];
+            shard.keys = new byte[slots.length][];
+            shard.order = new int[slots.length];
+        }
+
+        Slot[] batch = shard.batch;
+        byte[][] keys = shard.keys;
+        int[] order = shard.order;
+
+        int count = 0;
+
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i].state == PENDING) {
+                batch[count] = slots[i];
+                keys[count] = slots[i].key;
+                order[count] = count;
+                count++;
+            }
+        }
+
+        OffHeap.sort(keys, order, 0, count);
+
+        for (int i = 0; i < count;) {
+            byte[] key = keys[order[i]];
+            int end = i + 1;
+
+            while (end < count && OffHeap.compare(keys[order[end]], key) == 0)
+                end++;
+
+            if (end == i + 1) { // Alone, nothing to merge
+                Slot slot = batch[order[i]];
+                slot.result = slot.op == PUT ? map.put(key, slot.value) : map.remove(key);
+            } else {
+                long initial = map.get(key), current = initial;
+
+                for (int j = i; j < end; j++) {
+                    Slot slot = batch[order[j]];
+                    slot.result = current;
+                    current = slot.op == PUT ? slot.value : 0;
+                }
+
+                if (current != initial) {
+                    if (current != 0)
+                        map.put(key, current);
+                    else
+                        map.remove(key);
+                }
+            }
+
+            for (; i < end; i++) {
+                batch[order[i]].state = DONE;
+                batch[order[i]] = null;
+                keys[order[i]] = null;
+            }
+        }
+
+        shard.operations += count;
+    }
+
+    /* ---------------- Cursors -------------- */
+
+    /**
+     * Returns a cursor over mappings of all shards in ascending key order, starting at
+     * the first key greater than or equal to from, or at the first mapping if from is
+     * null. Weakly consistent, like OffHeap.Cursor. Shards cover ordered disjoint
+     * ranges, so they are visited one after the other.
+     */
+    public Cursor cursor(byte[] from) {
+        int index = from != null ? route(from) : 0;
+        return new Cursor(index, shards[index].map.cursor(from));
+    }
+
+    public final class Cursor {
+
+        private int index;
+
+        private OffHeap.Cursor cursor;
+
+        Cursor(int index, OffHeap.Cursor cursor) {
+            this.index = index;
+            this.cursor = cursor;
+        }
+
+        /**
+         * Moves to the next mapping.
+         *
+         * @return false if there are no more mappings
+         */
+        public boolean next() {
+            while (!cursor.next()) {
+                if (index == shards.length - 1)
+                    return false;
+
+                cursor = shards[++index].map.cursor(null);
+            }
+
+            return true;
+        }
+
+        /**
+         * Key of the current mapping. The array belongs to the cursor and is overwritten
+         * by next.
+         */
+        public byte[] key() {
+            return cursor.key();
+        }
+
+        public long value() {
+            return cursor.value();
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package offn;
+
+import static offn.OffHeap.KEY_LENGTH;
+import static offn.OffHeap.UNSAFE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * OffHeap with a write-ahead log. Puts and removes append a record to a ring in
+ * native memory, and a flusher thread writes records from the ring to the log and
+ * forces it in groups, so that one fsync covers all writes which arrived meanwhile.
+ * A group is committed once flushRecords are pending, or the oldest pending record
+ * has waited flushMicros. In sync mode, writes return once their record is durable.
+ * Otherwise they return at once, and sync waits for all writes so far.
+ * <p>
+ * Writers reserve ring slots from a counter, which is the sequence number of their
+ * record, fill the slot, then publish it with a per slot marker. The flusher writes
+ * runs of published slots straight from the ring's direct buffer. The map is updated
+ * under a lock striped by key, in the same critical section as the reservation, so
+ * records of a key are in the log in the order they were applied. A write is visible
+ * to gets before it is durable.
+ * <p>
+ * Records have a fixed size, with a checksum which includes their sequence number.
+ * Opening replays the log into a fresh OffHeap, and truncates it at the first record
+ * which doesn't check, e.g. torn by a crash during a write. The log is not compacted,
+ * e.g. use snapshotTo and start a new log.
+ */
+public final class DurableOffHeap implements Closeable {
+
+    private static final int KEY = 0, OP = 20, VALUE = 24, CHECKSUM = 32, RECORD = 40;
+
+    private static final int PUT = 1, REMOVE = 2;
+
+    private static final int CAPACITY = 1 << 16, STRIPES = 256;
+
+    /**
+     * Longest park of the flusher when there is nothing to write.
+     */
+    private static final long IDLE_NANOS = 1000000;
+
+    private final OffHeap map = new OffHeap();
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final boolean sync;
+
+    private final long flushNanos;
+
+    private final int flushRecords;
+
+    private final long replayed;
+
+    private final ByteBuffer ring = ByteBuffer.allocateDirect(CAPACITY * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Sequence number + 1 of the record in each slot once published.
+     */
+    private final long markers = UNSAFE.allocateMemory(CAPACITY * 8L);
+
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * Next sequence number to reserve.
+     */
+    private final AtomicLong tail;
+
+    /**
+     * Records written to the log, whose slots can be reused, and records forced.
+     */
+    private volatile long head, durable;
+
+    private volatile IOException failure;
+
+    private volatile boolean closed, idle;
+
+    private final Thread flusher;
+
+    public DurableOffHeap(File log) throws IOException {
+        this(log, true, 0, CAPACITY / 4);
+    }
+
+    /**
+     * Opens or creates log, and replays it.
+     *
+     * @param sync
+     *            if writes wait for their record to be durable
+     * @param flushMicros
+     *            longest a record waits for others before being committed, 0 to commit
+     *            whatever is pending as soon as the previous group is done
+     * @param flushRecords
+     *            pending records which trigger a commit without waiting, up to a
+     *            quarter of the ring
+     */
+    public DurableOffHeap(File log, boolean sync, long flushMicros, int flushRecords) throws IOException {
+        if (flushMicros < 0 || flushRecords < 1 || flushRecords > CAPACITY / 4)
+            throw new IllegalArgumentException();
+
+        this.sync = sync;
+        flushNanos = flushMicros * 1000;
+        this.flushRecords = flushRecords;
+
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+
+        UNSAFE.setMemory(markers, CAPACITY * 8L, (byte) 0);
+        file = new RandomAccessFile(log, "rw");
+        boolean opened = false;
+
+        try {
+            channel = file.getChannel();
+            replayed = replay();
+            tail = new AtomicLong(replayed);
+            head = durable = replayed;
+            opened = true;
+        } finally {
+            if (!opened) {
+                file.close();
+                UNSAFE.freeMemory(markers);
+            }
+        }
+
+        flusher = new Thread("offn-log-flusher") {
+
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Number of records replayed when opened.
+     */
+    public long replayed() {
+        return replayed;
+    }
+
+    public long get(byte[] key) {
+        return map.get(key);
+    }
+
+    public OffHeap.Cursor cursor(byte[] from) {
+        return map.cursor(from);
+    }
+
+    public long put(byte[] key, long value) {
+        if (key.length != KEY_LENGTH || value == 0)
+            throw new IllegalArgumentException();
+
+        long seq, result;
+
+        synchronized (stripe(key)) {
+            seq = append(PUT, key, value);
+            result = map.put(key, value);
+        }
+
+        if (sync)
+            await(seq + 1);
+
+        return result;
+    }
+
+    public long remove(byte[] key) {
+        if (key.length != KEY_LENGTH)
+            throw new IllegalArgumentException();
+
+        long seq, result;
+
+        synchronized (stripe(key)) {
+            seq = append(REMOVE, key, 0);
+            result = map.remove(key);
+        }
+
+        if (sync)
+            await(seq + 1);
+
+        return result;
+    }
+
+    /**
+     * Waits until all writes which returned before are durable.
+     */
+    public void sync() {
+        await(tail.get());
+    }
+
+    private Object stripe(byte[] key) {
+        return stripes[Arrays.hashCode(key) & (STRIPES - 1)];
+    }
+
+    /* ---------------- Ring -------------- */
+
+    /**
+     * Reserves a slot, waiting for the flusher if the ring is full, and publishes the
+     * record in it.
+     */
+    private long append(int op, byte[] key, long value) {
+        if (closed)
+            throw new IllegalStateException();
+
+        long seq = tail.getAndIncrement();
+
+        while (seq - head >= CAPACITY) {
+            check();
+            Thread.yield();
+        }
+
+        int offset = (int) (seq & (CAPACITY - 1)) * RECORD;
+
+        for (int i = 0; i < KEY_LENGTH; i++)
+            ring.put(offset + KEY + i, key[i]);
+
+        ring.putInt(offset + OP, op);
+        ring.putLong(offset + VALUE, value);
+        ring.putLong(offset + CHECKSUM, checksum(ring, offset, seq));
+        UNSAFE.putLongVolatile(null, markers + (seq & (CAPACITY - 1)) * 8, seq + 1);
+
+        if (idle) // Read after the marker is visible, see flush
+            LockSupport.unpark(flusher);
+
+        return seq;
+    }
+
+    private void await(long target) {
+        if (durable >= target)
+            return;
+
+        synchronized (this) {
+            while (durable < target) {
+                check();
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private void check() {
+        if (failure != null)
+            throw new IOError(failure);
+    }
+
+    private static long checksum(ByteBuffer buffer, int offset, long seq) {
+        long h = seq;
+        h = mix(h, buffer.getLong(offset + KEY));
+        h = mix(h, buffer.getLong(offset + KEY + 8));
+        h = mix(h, buffer.getLong(offset + KEY + 16)); // Last 4 key bytes and op
+        return mix(h, buffer.getLong(offset + VALUE));
+    }
+
+    private static long mix(long h, long x) {
+        h = (h ^ x) * 0x9e3779b97f4a7c15L;
+        return h ^ h >>> 29;
+    }
+
+    /* ---------------- Flusher -------------- */
+
+    private void flush() {
+        ByteBuffer view = ring.duplicate();
+        long ready = head, pendingSince = 0;
+
+        for (;;) {
+            long h = head;
+
+            while (ready - h < CAPACITY && published(ready))
+                ready++;
+
+            long pending = ready - h;
+            boolean closing = closed;
+
+            if (pending != 0) {
+                long now = System.nanoTime();
+
+                if (pendingSince == 0)
+                    pendingSince = now;
+
+                if (pending >= flushRecords || now - pendingSince >= flushNanos || closing) {
+                    try {
+                        write(view, h, ready);
+                        head = ready;
+                        channel.force(false);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+
+                    synchronized (this) {
+                        if (failure == null)
+                            durable = ready;
+
+                        notifyAll();
+                    }
+
+                    if (failure != null)
+                        return;
+
+                    pendingSince = 0;
+                    continue;
+                }
+            } else if (closing && tail.get() == h)
+                return;
+
+            // Writers unpark if they see idle after publishing, so recheck after setting it
+            idle = true;
+
+            if (pending != 0)
+                LockSupport.parkNanos(pendingSince + flushNanos - System.nanoTime());
+            else if (!published(ready))
+                LockSupport.parkNanos(IDLE_NANOS);
+
+            idle = false;
+        }
+    }
+
+    private boolean published(long seq) {
+        return UNSAFE.getLongVolatile(null, markers + (seq & (CAPACITY - 1)) * 8) == seq + 1;
+    }
+
+    /**
+     * Writes records [from, to) at their position in the log, in up to two runs if they
+     * wrap around the ring.
+     */
+    private void write(ByteBuffer view, long from, long to) throws IOException {
+        while (from < to) {
+            int slot = (int) (from & (CAPACITY - 1));
+            int count = (int) Math.min(to - from, CAPACITY - slot);
+            Buffer b = view;
+            b.limit((slot + count) * RECORD);
+            b.position(slot * RECORD);
+            long position = from * RECORD;
+
+            while (view.hasRemaining())
+                position += channel.write(view, position);
+
+            from += count;
+        }
+    }
+
+    /* ---------------- Replay -------------- */
+
+    /**
+     * Applies records from the log to the map until the end or the first one which
+     * doesn't check, and truncates the log there.
+     */
+    private long replay() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CAPACITY * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] key = new byte[KEY_LENGTH];
+        long seq = 0, size = channel.size();
+
+        for (long position = 0; position < size;) {
+            Buffer b = buffer;
+            b.clear();
+
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+
+                if (n < 0)
+                    break;
+            }
+
+            int length = buffer.position() / RECORD * RECORD;
+
+            if (length == 0)
+                break;
+
+            for (int offset = 0; offset < length; offset += RECORD, seq++) {
+                int op = buffer.getInt(offset + OP);
+                long value = buffer.getLong(offset + VALUE);
+
+                if (buffer.getLong(offset + CHECKSUM) != checksum(buffer, offset, seq) || (op == PUT ? value == 0 : op != REMOVE)) {
+                    channel.truncate(seq * RECORD);
+                    return seq;
+                }
+
+                for (int i = 0; i < KEY_LENGTH; i++)
+                    key[i] = buffer.get(offset + KEY + i);
+
+                if (op == PUT)
+                    map.put(key, value);
+                else
+                    map.remove(key);
+            }
+
+            position += length;
+        }
+
+        channel.truncate(seq * RECORD); // Partial record at the end
+        return seq;
+    }
+
+    /**
+     * Commits pending records, stops the flusher and closes the log. Writes must have
+     * returned. The map can still be read.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(flusher);
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+
+        file.close();
+        UNSAFE.freeMemory(markers);
+
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,1032 @@
+package offn;
+
+import static offn.OffHeap.KEY_LENGTH;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-structured store with OffHeap as its in-memory tier, for data sets larger than
+ * memory. Writes go to a memtable, an OffHeap. Once it holds memtableSize mappings, it
+ * is frozen, a new one replaces it, and a background thread streams it in key order
+ * to an immutable run file, then retires it. Reads look at the memtable, the frozen
+ * ones, then runs, from newest to oldest, and the first which has the key wins.
+ * Removes write a tombstone. Writes are blind, they never read runs, so put and
+ * remove don't return the previous value.
+ * <p>
+ * A run is a sorted array of fixed size entries, mapped, so that the OS pages it in
+ * and out. It ends with a sparse index, the key of every INDEX_INTERVAL-th entry, and
+ * a bloom filter, both loaded in heap when the run is opened. A lookup tests the
+ * filter, finds the interval in the sparse index, and binary searches its entries,
+ * which touches one or two pages.
+ * <p>
+ * The same thread compacts runs, size tiered: the newest runs are merged into one as
+ * long as the next older run is less than twice their total. Tombstones are dropped
+ * when the oldest run is merged. Run files are named after the range of flushes they
+ * cover, so a merge is committed by renaming its output, and inputs a crash left
+ * behind are deleted on open.
+ * <p>
+ * Memtables, frozen ones and runs are an immutable state, replaced as a whole like
+ * ShardedOffHeap's table. Writers register on their memtable like on a shard, so it
+ * is streamed only once they left. Readers don't block. Frozen memtables are retired
+ * with OffHeap's reclamation delay, and replaced runs stay mapped until they are
+ * garbage collected. Memtables are not logged, see DurableOffHeap, but close flushes
+ * them.
+ */
+public final class LsmOffHeap implements Closeable {
+
+    /**
+     * Value of a removed key in memtables and runs, which can't be put.
+     */
+    static final long TOMBSTONE = Long.MIN_VALUE;
+
+    /**
+     * Per stripe fields, padded to a cache line.
+     */
+    private static final int INFLIGHT = 0, SIZE = 1, PAD = 8;
+
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2);
+
+    /**
+     * Inserts in a stripe between two size checks, minus one.
+     */
+    private static final int CHECK = 1023;
+
+    /**
+     * Frozen memtables beyond which writers wait for flushes.
+     */
+    private static final int MAX_FROZEN = 2;
+
+    /**
+     * Runs merged at once when sizes allow, and runs beyond which the newest are merged
+     * regardless of sizes.
+     */
+    private static final int MERGE = 4, MAX_RUNS = 12;
+
+    /**
+     * Entries are a key and a little endian value. Footer is count, bloom filter words
+     * and magic.
+     */
+    private static final int ENTRY = KEY_LENGTH + 8, FOOTER = 24;
+
+    private static final int INDEX_INTERVAL = 128;
+
+    private static final int BLOOM_BITS = 10, BLOOM_HASHES = 7;
+
+    /**
+     * Entries per mapped segment of a run, under 1GB.
+     */
+    private static final long SEGMENT_ENTRIES = (1 << 30) / ENTRY;
+
+    private static final int BUFFER = 1 << 20;
+
+    private static final long RUN_MAGIC = 0x316e75726e66666fL; // "offnrun1"
+
+    private static final String SUFFIX = ".run";
+
+    private final File directory;
+
+    private final long memtableSize;
+
+    private volatile State state;
+
+    /**
+     * Sequence number of the next flush, only used by the worker.
+     */
+    private long nextSeq;
+
+    private volatile IOException failure;
+
+    private volatile boolean closed;
+
+    private final Thread worker;
+
+    private static final class Memtable {
+
+        final OffHeap map = new OffHeap();
+
+        final AtomicLongArray stripes = new AtomicLongArray(STRIPES * PAD);
+
+        /**
+         * Set once replaced, writers must move to the new one.
+         */
+        volatile boolean frozen;
+
+        final long sum(int field) {
+            long sum = 0;
+
+            for (int i = 0; i < STRIPES; i++)
+                sum += stripes.get(i * PAD + field);
+
+            return sum;
+        }
+    }
+
+    private static final class State {
+
+        final Memtable active;
+
+        /**
+         * Newest first.
+         */
+        final Memtable[] frozen;
+
+        final Run[] runs;
+
+        State(Memtable active, Memtable[] frozen, Run[] runs) {
+            this.active = active;
+            this.frozen = frozen;
+            this.runs = runs;
+        }
+    }
+
+    public LsmOffHeap(File directory) throws IOException {
+        this(directory, 1 << 20);
+    }
+
+    /**
+     * Opens or creates a store in directory.
+     *
+     * @param memtableSize
+     *            mappings, including tombstones, from which a memtable is flushed. It is
+     *            checked every CHECK + 1 inserts of a thread, so it is approximate
+     */
+    public LsmOffHeap(File directory, long memtableSize) throws IOException {
+        if (memtableSize < 1)
+            throw new IllegalArgumentException();
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        this.directory = directory;
+        this.memtableSize = memtableSize;
+        Run[] runs = open();
+        nextSeq = runs.length == 0 ? 0 : runs[0].last + 1;
+        state = new State(new Memtable(), new Memtable[0], runs);
+
+        worker = new Thread("offn-lsm") {
+
+            @Override
+            public void run() {
+                work();
+            }
+        };
+
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Number of run files.
+     */
+    public int runs() {
+        return state.runs.length;
+    }
+
+    /* ---------------- Map operations -------------- */
+
+    public long get(byte[] key) {
+        State s = state;
+        long value = s.active.map.get(key);
+
+        for (int i = 0; value == 0 && i < s.frozen.length; i++)
+            value = s.frozen[i].map.get(key);
+
+        if (value == 0 && s.runs.length != 0) {
+            long hash = hash(key);
+
+            for (int i = 0; value == 0 && i < s.runs.length; i++)
+                value = s.runs[i].get(key, hash);
+        }
+
+        return value == TOMBSTONE ? 0 : value;
+    }
+
+    public void put(byte[] key, long value) {
+        if (key.length != KEY_LENGTH || value == 0 || value == TOMBSTONE)
+            throw new IllegalArgumentException();
+
+        write(key, value);
+    }
+
+    public void remove(byte[] key) {
+        if (key.length != KEY_LENGTH)
+            throw new IllegalArgumentException();
+
+        write(key, TOMBSTONE);
+    }
+
+    private void write(byte[] key, long value) {
+        if (closed)
+            throw new IllegalStateException();
+
+        for (;;) {
+            State s = state;
+            Memtable m = s.active;
+            int stripe = stripe();
+
+            if (!enter(s, m, stripe))
+                continue;
+
+            boolean check = false;
+
+            try {
+                if (m.map.put(key, value) == 0)
+                    check = (m.stripes.incrementAndGet(stripe + SIZE) & CHECK) == 0;
+            } finally {
+                m.stripes.decrementAndGet(stripe + INFLIGHT);
+            }
+
+            if (check && m.sum(SIZE) >= memtableSize)
+                freeze(m);
+
+            return;
+        }
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+    }
+
+    /**
+     * Registers a writer on the memtable, or waits for the state to change if it is
+     * frozen and returns false.
+     */
+    private boolean enter(State s, Memtable m, int stripe) {
+        m.stripes.incrementAndGet(stripe + INFLIGHT);
+
+        if (!m.frozen)
+            return true;
+
+        m.stripes.decrementAndGet(stripe + INFLIGHT);
+
+        while (m.frozen && state == s)
+            Thread.yield();
+
+        return false;
+    }
+
+    /**
+     * Replaces the memtable if it is still the active one, once there is room for it
+     * among frozen ones.
+     */
+    private synchronized void freeze(Memtable m) {
+        while (state.active == m && state.frozen.length >= MAX_FROZEN) {
+            if (failure != null)
+                throw new IOError(failure);
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        if (state.active == m)
+            replace(m);
+    }
+
+    /**
+     * Holding the lock.
+     */
+    private void replace(Memtable m) {
+        State s = state;
+        Memtable[] frozen = new Memtable[s.frozen.length + 1];
+        frozen[0] = m;
+        System.arraycopy(s.frozen, 0, frozen, 1, s.frozen.length);
+        m.frozen = true;
+        state = new State(new Memtable(), frozen, s.runs);
+        notifyAll();
+    }
+
+    /* ---------------- Cursors -------------- */
+
+    /**
+     * Returns a cursor over mappings in ascending key order, starting at the first key
+     * greater than or equal to from, or at the first mapping if from is null. It merges
+     * the memtables and runs of the moment, so it must not be kept longer than the
+     * reclamation delay, after which the memtables could have been flushed and freed.
+     */
+    public Cursor cursor(byte[] from) {
+        State s = state;
+        Source[] sources = new Source[1 + s.frozen.length + s.runs.length];
+        sources[0] = new MapSource(s.active.map.cursor(from));
+
+        for (int i = 0; i < s.frozen.length; i++)
+            sources[1 + i] = new MapSource(s.frozen[i].map.cursor(from));
+
+        for (int i = 0; i < s.runs.length; i++)
+            sources[1 + s.frozen.length + i] = new RunSource(s.runs[i], from);
+
+        return new Cursor(new Merge(sources));
+    }
+
+    /**
+     * Weakly consistent for memtables, like OffHeap's cursor. Must not be shared
+     * between threads.
+     */
+    public static final class Cursor {
+
+        private final Merge merge;
+
+        private boolean started;
+
+        Cursor(Merge merge) {
+            this.merge = merge;
+        }
+
+        /**
+         * Moves to the next mapping.
+         *
+         * @return false if there are no more mappings
+         */
+        public boolean next() {
+            while (merge.next()) {
+                if (merge.value != TOMBSTONE) {
+                    started = true;
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Key of the current mapping. The array belongs to the cursor and is overwritten
+         * by next.
+         */
+        public byte[] key() {
+            if (!started)
+                throw new IllegalStateException();
+            return merge.key;
+        }
+
+        public long value() {
+            if (!started)
+                throw new IllegalStateException();
+            return merge.value;
+        }
+    }
+
+    private abstract static class Source {
+
+        byte[] key;
+
+        long value;
+
+        /**
+         * Moves to the next entry, false at the end.
+         */
+        abstract boolean advance();
+    }
+
+    private static final class MapSource extends Source {
+
+        private final OffHeap.Cursor cursor;
+
+        MapSource(OffHeap.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        boolean advance() {
+            if (!cursor.next())
+                return false;
+
+            key = cursor.key();
+            value = cursor.value();
+            return true;
+        }
+    }
+
+    private static final class RunSource extends Source {
+
+        private final Run run;
+
+        private long entry;
+
+        RunSource(Run run, byte[] from) {
+            this.run = run;
+            entry = from == null ? 0 : run.lowerBound(from);
+            key = new byte[KEY_LENGTH];
+        }
+
+        @Override
+        boolean advance() {
+            if (entry == run.count)
+                return false;
+
+            run.key(entry, key);
+            value = run.value(entry);
+            entry++;
+            return true;
+        }
+    }
+
+    /**
+     * Merges sources ordered newest first. Each key is returned once, with the value
+     * of the newest source which has it, tombstones included.
+     */
+    private static final class Merge {
+
+        private final Source[] sources;
+
+        private final boolean[] live;
+
+        final byte[] key = new byte[KEY_LENGTH];
+
+        long value;
+
+        Merge(Source[] sources) {
+            this.sources = sources;
+            live = new boolean[sources.length];
+
+            for (int i = 0; i < sources.length; i++)
+                live[i] = sources[i].advance();
+        }
+
+        boolean next() {
+            int min = -1;
+
+            for (int i = 0; i < sources.length; i++)
+                if (live[i] && (min < 0 || OffHeap.compare(sources[i].key, sources[min].key) < 0))
+                    min = i;
+
+            if (min < 0)
+                return false;
+
+            System.arraycopy(sources[min].key, 0, key, 0, KEY_LENGTH);
+            value = sources[min].value;
+
+            for (int i = min; i < sources.length; i++)
+                if (live[i] && OffHeap.compare(sources[i].key, key) == 0)
+                    live[i] = sources[i].advance();
+
+            return true;
+        }
+    }
+
+    /* ---------------- Flushes and compactions -------------- */
+
+    private void work() {
+        try {
+            for (;;) {
+                State s;
+
+                synchronized (this) {
+                    for (;;) {
+                        s = state;
+
+                        if (s.frozen.length != 0 || closed || compaction(s.runs) != 0)
+                            break;
+
+                        wait();
+                    }
+                }
+
+                if (s.frozen.length != 0)
+                    flush(s.frozen[s.frozen.length - 1]);
+                else if (closed)
+                    return;
+                else
+                    compact(s.runs, compaction(s.runs));
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException(e);
+        }
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Streams the oldest frozen memtable to a run once its writers left, and retires
+     * it. Its lookups become read-only first, like replaced shards in ShardedOffHeap.
+     */
+    private void flush(Memtable m) throws IOException {
+        for (int i = 0; i < STRIPES; i++)
+            while (m.stripes.get(i * PAD + INFLIGHT) != 0)
+                Thread.yield();
+
+        m.map.readOnlyLookups(true);
+
+        long seq = nextSeq++;
+        Run run;
+
+        RunWriter writer = new RunWriter(directory, m.sum(SIZE));
+
+        try {
+            OffHeap.Cursor cursor = m.map.cursor(null);
+
+            while (cursor.next())
+                writer.add(cursor.key(), cursor.value());
+
+            run = writer.finish(seq, seq);
+        } finally {
+            writer.close();
+        }
+
+        synchronized (this) {
+            State s = state;
+            Run[] runs = s.runs;
+
+            if (run != null) {
+                runs = new Run[s.runs.length + 1];
+                runs[0] = run;
+                System.arraycopy(s.runs, 0, runs, 1, s.runs.length);
+            }
+
+            state = new State(s.active, Arrays.copyOf(s.frozen, s.frozen.length - 1), runs);
+            notifyAll();
+        }
+
+        m.map.retire();
+    }
+
+    /**
+     * Number of newest runs to merge, or 0.
+     */
+    private static int compaction(Run[] runs) {
+        if (runs.length < 2)
+            return 0;
+
+        int n = 1;
+        long total = runs[0].count;
+
+        while (n < runs.length && runs[n].count < 2 * total)
+            total += runs[n++].count;
+
+        if (runs.length > MAX_RUNS)
+            return Math.max(n, runs.length - MAX_RUNS + 1);
+
+        return n >= MERGE ? n : 0;
+    }
+
+    /**
+     * Merges the n newest runs into one. Only the worker changes runs, so they are
+     * still the newest when it is published.
+     */
+    private void compact(Run[] runs, int n) throws IOException {
+        boolean oldest = n == runs.length;
+        Source[] sources = new Source[n];
+        long expected = 0;
+
+        for (int i = 0; i < n; i++) {
+            sources[i] = new RunSource(runs[i], null);
+            expected += runs[i].count;
+        }
+
+        Merge merge = new Merge(sources);
+        Run run;
+        RunWriter writer = new RunWriter(directory, expected);
+
+        try {
+            while (merge.next())
+                if (!oldest || merge.value != TOMBSTONE)
+                    writer.add(merge.key, merge.value);
+
+            run = writer.finish(runs[n - 1].first, runs[0].last);
+        } finally {
+            writer.close();
+        }
+
+        synchronized (this) {
+            State s = state;
+            Run[] next = new Run[s.runs.length - n + (run != null ? 1 : 0)];
+
+            if (run != null)
+                next[0] = run;
+
+            System.arraycopy(s.runs, n, next, run != null ? 1 : 0, s.runs.length - n);
+            state = new State(s.active, s.frozen, next);
+        }
+
+        // Oldest first, so that if a crash leaves some, newer ones still shadow them
+        for (int i = n - 1; i >= 0; i--)
+            delete(runs[i].file);
+    }
+
+    /* ---------------- Files -------------- */
+
+    private static String name(long first, long last) {
+        return String.format("%016x-%016x", first, last) + SUFFIX;
+    }
+
+    /**
+     * Opens runs, newest first. Deletes temporary files, and runs covered by another,
+     * which are inputs of a merge committed before a crash.
+     */
+    private Run[] open() throws IOException {
+        List<long[]> ranges = new ArrayList<long[]>();
+        File[] files = directory.listFiles();
+
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+
+            if (name.endsWith(".tmp"))
+                delete(files[i]);
+            else if (name.endsWith(SUFFIX) && name.length() == 33 + SUFFIX.length() && name.charAt(16) == '-') {
+                try {
+                    ranges.add(new long[] { Long.parseLong(name.substring(0, 16), 16), Long.parseLong(name.substring(17, 33), 16) });
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+
+        Collections.sort(ranges, new Comparator<long[]>() {
+
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[1] != b[1] ? (a[1] > b[1] ? -1 : 1) : (a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0);
+            }
+        });
+
+        List<Run> runs = new ArrayList<Run>();
+
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] r = ranges.get(i);
+            boolean covered = false;
+
+            for (int j = 0; j < ranges.size() && !covered; j++) {
+                long[] o = ranges.get(j);
+                covered = j != i && o[0] <= r[0] && r[1] <= o[1];
+            }
+
+            File file = new File(directory, name(r[0], r[1]));
+
+            if (covered)
+                delete(file);
+            else
+                runs.add(new Run(file, r[0], r[1]));
+        }
+
+        return runs.toArray(new Run[runs.size()]);
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.delete() && file.exists())
+            throw new IOException("Cannot delete " + file);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+
+            if (n < 0)
+                throw new EOFException();
+        }
+    }
+
+    private static long samples(long count) {
+        return (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+    }
+
+    /* ---------------- Bloom filters -------------- */
+
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < KEY_LENGTH; i++)
+            h = (h ^ (key[i] & 0xff)) * 0x100000001b3L;
+
+        h = (h ^ h >>> 32) * 0x9e3779b97f4a7c15L;
+        return h ^ h >>> 29;
+    }
+
+    /**
+     * Bit of the i-th hash function, double hashing from both halves of the hash.
+     */
+    private static long bit(long[] bloom, long hash, int i) {
+        return ((hash + i * (hash >>> 32 | 1)) & Long.MAX_VALUE) % (bloom.length * 64L);
+    }
+
+    /* ---------------- Runs -------------- */
+
+    /**
+     * Immutable run file, entries then sparse index, bloom filter and footer.
+     */
+    static final class Run {
+
+        final File file;
+
+        /**
+         * Range of flush sequence numbers the run covers.
+         */
+        final long first, last;
+
+        final long count;
+
+        private final ByteBuffer[] segments;
+
+        private final byte[] index;
+
+        private final long[] bloom;
+
+        Run(File file, long first, long last) throws IOException {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+            RandomAccessFile f = new RandomAccessFile(file, "r");
+
+            try {
+                FileChannel channel = f.getChannel();
+                long size = channel.size();
+
+                if (size < FOOTER)
+                    throw new IOException("Truncated run " + file);
+
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, footer, size - FOOTER);
+                count = footer.getLong(0);
+                long words = footer.getLong(8);
+                long entries = count * ENTRY, samples = samples(count);
+
+                if (footer.getLong(16) != RUN_MAGIC || count <= 0 || words <= 0 || words > Integer.MAX_VALUE || samples * KEY_LENGTH > Integer.MAX_VALUE
+                        || size != entries + samples * KEY_LENGTH + words * 8 + FOOTER)
+                    throw new IOException("Corrupt run " + file);
+
+                index = new byte[(int) samples * KEY_LENGTH];
+                readFully(channel, ByteBuffer.wrap(index), entries);
+                bloom = new long[(int) words];
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+                long position = entries + index.length;
+
+                for (int i = 0; i < bloom.length;) {
+                    Buffer b = buffer;
+                    b.clear();
+                    b.limit((int) Math.min(BUFFER, (bloom.length - i) * 8L));
+                    readFully(channel, buffer, position);
+                    position += buffer.limit();
+
+                    for (int offset = 0; offset < buffer.limit(); offset += 8)
+                        bloom[i++] = buffer.getLong(offset);
+                }
+
+                segments = new ByteBuffer[(int) ((count + SEGMENT_ENTRIES - 1) / SEGMENT_ENTRIES)];
+
+                for (int i = 0; i < segments.length; i++) {
+                    long from = i * SEGMENT_ENTRIES;
+                    long length = Math.min(SEGMENT_ENTRIES, count - from) * ENTRY;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, from * ENTRY, length).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            } finally {
+                f.close(); // Mappings stay valid
+            }
+        }
+
+        long get(byte[] key, long hash) {
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = bit(bloom, hash, i);
+
+                if ((bloom[(int) (bit >>> 6)] & 1L << bit) == 0)
+                    return 0;
+            }
+
+            long entry = lowerBound(key);
+            return entry < count && compare(entry, key) == 0 ? value(entry) : 0;
+        }
+
+        /**
+         * Index of the first entry greater than or equal to key, or count.
+         */
+        long lowerBound(byte[] key) {
+            if (compareSample(0, key) > 0)
+                return 0;
+
+            int lo = 0, hi = index.length / KEY_LENGTH - 1;
+
+            while (lo < hi) { // Last sample less than or equal to key
+                int mid = (lo + hi + 1) >>> 1;
+
+                if (compareSample(mid, key) <= 0)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+
+            long from = (long) lo * INDEX_INTERVAL, to = Math.min(count, from + INDEX_INTERVAL);
+
+            while (from < to) {
+                long mid = (from + to) >>> 1;
+
+                if (compare(mid, key) < 0)
+                    from = mid + 1;
+                else
+                    to = mid;
+            }
+
+            return from;
+        }
+
+        private int compareSample(int sample, byte[] key) {
+            for (int i = 0, offset = sample * KEY_LENGTH; i < KEY_LENGTH; i++) {
+                int x = index[offset + i] & 0xff;
+                int y = key[i] & 0xff;
+
+                if (x != y)
+                    return x < y ? -1 : 1;
+            }
+
+            return 0;
+        }
+
+        private int compare(long entry, byte[] key) {
+            ByteBuffer segment = segments[(int) (entry / SEGMENT_ENTRIES)];
+            int offset = (int) (entry % SEGMENT_ENTRIES) * ENTRY;
+
+            for (int i = 0; i < KEY_LENGTH; i++) {
+                int x = segment.get(offset + i) & 0xff;
+                int y = key[i] & 0xff;
+
+                if (x != y)
+                    return x < y ? -1 : 1;
+            }
+
+            return 0;
+        }
+
+        void key(long entry, byte[] key) {
+            ByteBuffer segment = segments[(int) (entry / SEGMENT_ENTRIES)];
+            int offset = (int) (entry % SEGMENT_ENTRIES) * ENTRY;
+
+            for (int i = 0; i < KEY_LENGTH; i++)
+                key[i] = segment.get(offset + i);
+        }
+
+        long value(long entry) {
+            return segments[(int) (entry / SEGMENT_ENTRIES)].getLong((int) (entry % SEGMENT_ENTRIES) * ENTRY + KEY_LENGTH);
+        }
+    }
+
+    /**
+     * Writes a run to a temporary file, and renames it once complete and forced.
+     */
+    private static final class RunWriter implements Closeable {
+
+        private final File directory, tmp;
+
+        private final RandomAccessFile file;
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+
+        private final long[] bloom;
+
+        private long count, position;
+
+        /**
+         * @param expected
+         *            upper bound of entries, which sizes the bloom filter
+         */
+        RunWriter(File directory, long expected) throws IOException {
+            this.directory = directory;
+            bloom = new long[(int) Math.max(1, (expected * BLOOM_BITS + 63) / 64)];
+            tmp = File.createTempFile("run-", ".tmp", directory);
+            file = new RandomAccessFile(tmp, "rw");
+            channel = file.getChannel();
+        }
+
+        void add(byte[] key, long value) throws IOException {
+            if (count % INDEX_INTERVAL == 0)
+                index.write(key, 0, KEY_LENGTH);
+
+            long hash = hash(key);
+
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                long bit = bit(bloom, hash, i);
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+
+            if (buffer.remaining() < ENTRY)
+                drain();
+
+            buffer.put(key);
+            buffer.putLong(value);
+            count++;
+        }
+
+        private void drain() throws IOException {
+            Buffer b = buffer;
+            b.flip();
+
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+
+            b.clear();
+        }
+
+        /**
+         * Completes the run and renames it after the range of flushes it covers, or
+         * returns null if it is empty.
+         */
+        Run finish(long first, long last) throws IOException {
+            if (count == 0)
+                return null;
+
+            byte[] samples = index.toByteArray();
+
+            for (int i = 0; i < samples.length; i += KEY_LENGTH) {
+                if (buffer.remaining() < KEY_LENGTH)
+                    drain();
+
+                buffer.put(samples, i, KEY_LENGTH);
+            }
+
+            for (int i = 0; i < bloom.length; i++) {
+                if (buffer.remaining() < 8)
+                    drain();
+
+                buffer.putLong(bloom[i]);
+            }
+
+            if (buffer.remaining() < FOOTER)
+                drain();
+
+            buffer.putLong(count);
+            buffer.putLong(bloom.length);
+            buffer.putLong(RUN_MAGIC);
+            drain();
+            channel.force(true);
+            file.close();
+            File target = new File(directory, name(first, last));
+
+            if (!tmp.renameTo(target))
+                throw new IOException("Cannot rename " + tmp + " to " + target);
+
+            try {
+                FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+
+                try {
+                    dir.force(true);
+                } finally {
+                    dir.close();
+                }
+            } catch (IOException e) {
+                // Directories can't be forced on some platforms
+            }
+
+            return new Run(target, first, last);
+        }
+
+        /**
+         * Deletes the temporary file if the run was not completed.
+         */
+        @Override
+        public void close() throws IOException {
+            file.close();
+
+            if (tmp.exists())
+                delete(tmp);
+        }
+    }
+
+    /**
+     * Flushes memtables, waits for the worker and stops it. Writes must have returned.
+     * The store can still be read.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+
+            if (state.active.sum(SIZE) != 0)
+                replace(state.active);
+
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,143 @@
+package offn;
+
+/**
+ * Background thread cleaning maps off the path of user operations. Removals on a map
+ * added here only unlink their node from the base level, and leave indexes and levels
+ * to periodic passes of OffHeap.maintain, which sweep the whole map in one go. Searches
+ * step over indexes to deleted nodes instead of unlinking them. Writes still help
+ * deletions they meet at the base level, which they need to make progress.
+ * <p>
+ * Nodes unlinked while a map is added here are only freed once a pass which started
+ * after they were unlinked has swept indexes, instead of after FREE_MEMORY_DELAY_MS
+ * alone, so passes can take as long as they need. Maps only defer for a while after
+ * each pass, so if passes stop or fall behind, e.g. on a very large map, removals go
+ * back to cleaning by themselves, and only their memory waits for the next pass.
+ */
+public final class Maintenance {
+
+    /**
+     * How long after the start of a pass removals can defer to the next one.
+     */
+    static final long DEFER_MS = OffHeap.FREE_MEMORY_DELAY_MS / 4;
+
+    private final long period;
+
+    /**
+     * Copy on write, maps are rarely added or removed.
+     */
+    private volatile OffHeap[] maps = new OffHeap[0];
+
+    private volatile long passes;
+
+    private final Thread thread;
+
+    public Maintenance() {
+        this(1000);
+    }
+
+    /**
+     * @param period
+     *            milliseconds between passes, at most a quarter of DEFER_MS
+     */
+    public Maintenance(long period) {
+        if (period <= 0 || period > DEFER_MS / 4)
+            throw new IllegalArgumentException();
+
+        this.period = period;
+
+        thread = new Thread("offn-maintenance") {
+
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    pass();
+
+                    try {
+                        Thread.sleep(Maintenance.this.period);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        };
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts cleaning map. Its removals defer from the first pass on.
+     */
+    public synchronized void add(OffHeap map) {
+        map.attach();
+        OffHeap[] array = new OffHeap[maps.length + 1];
+        System.arraycopy(maps, 0, array, 0, maps.length);
+        array[maps.length] = map;
+        maps = array;
+    }
+
+    /**
+     * Stops cleaning map. Its removals clean by themselves again, and last passes are
+     * run on the calling thread, a first one for those that deferred, then one for
+     * nodes unlinked until they stopped holding them back.
+     */
+    public void remove(OffHeap map) {
+        synchronized (this) {
+            OffHeap[] array = new OffHeap[maps.length];
+            int count = 0;
+
+            for (OffHeap m : maps)
+                if (m != map)
+                    array[count++] = m;
+
+            if (count == maps.length)
+                return;
+
+            OffHeap[] trimmed = new OffHeap[count];
+            System.arraycopy(array, 0, trimmed, 0, count);
+            maps = trimmed;
+            map.attach();
+        }
+
+        map.maintain();
+        map.deferUntil(0);
+        map.maintain();
+    }
+
+    /**
+     * Stops the thread and removes all maps.
+     */
+    public void close() throws InterruptedException {
+        thread.interrupt();
+        thread.join();
+
+        for (OffHeap map : maps)
+            remove(map);
+    }
+
+    /**
+     * Number of passes over all maps since creation.
+     */
+    public long passes() {
+        return passes;
+    }
+
+    /**
+     * A map can defer removals made before this pass ends to the next one, which is
+     * expected DEFER_MS after this one starts at the latest.
+     */
+    private void pass() {
+        for (OffHeap map : maps) {
+            long start = System.nanoTime();
+            map.maintain();
+
+            synchronized (this) {
+                for (OffHeap m : maps)
+                    if (m == map) // Not removed meanwhile
+                        map.deferUntil(start + DEFER_MS * 1000000L);
+            }
+        }
+
+        passes++;
+    }
+}
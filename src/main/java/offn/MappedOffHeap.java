@@ -0,0 +1,1506 @@
+package offn;
+
+import static offn.OffHeap.ADDRESS;
+import static offn.OffHeap.BYTES;
+import static offn.OffHeap.FREE_MEMORY_DELAY_MS;
+import static offn.OffHeap.KEY_LENGTH;
+import static offn.OffHeap.UNSAFE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Persistent map, with nodes and indexes in a memory-mapped file instead of memory from
+ * allocateMemory. Links are offsets in the file instead of addresses, translated
+ * through the base address of the region they fall in, so the file can be mapped
+ * anywhere when reopened. Opening only maps the file, and the map is usable at once.
+ * Pages are faulted in when searches first touch them.
+ * <p>
+ * The file is made of regions of 2^REGION_BITS bytes, each mapped with FileChannel.map,
+ * which is limited to 2GB. Records all have the same size, enough for a node or an
+ * index, and never straddle regions. Free records are kept in a list threaded through
+ * their first word. Removed ones are added to it after OffHeap's reclamation delay,
+ * like native memory.
+ * <p>
+ * Threads of the writer process write concurrently with OffHeap's CAS protocol, marked
+ * links included, and readers never lock. Records are fully written before a CAS links
+ * them. Each writer thread takes free records from the file a batch at a time, and
+ * retires removed ones to its own batch, so the free list in the header is only
+ * touched under the monitor, once per batch. Records a writer took but did not use are
+ * given back when its thread exits or on close. The header has a clean shutdown
+ * marker, set by close after flushing. If it is missing on open, e.g. because the
+ * process died, recovery scans the base level to finish interrupted removals, whether
+ * their node was only zeroed or also marked, rebuilds indexes from it, and puts records
+ * it didn't reach back in the free list, cached or lost ones included.
+ * <p>
+ * Writes survive crashes of the process, they are in the page cache. Against power
+ * loss, only what force has written is safe. Other pages can be written in any order,
+ * and recovery then cuts the list at the first link that is out of the file or breaks
+ * key order.
+ * <p>
+ * A file, e.g. in /dev/shm, can be shared by one writer process and reader processes,
+ * see Mode. Since offsets don't depend on where the file is mapped, readers follow the
+ * same links, and map regions as they meet them. Records are then reclaimed by epochs
+ * instead of after a delay, as processes don't share clocks or threads. Each reader
+ * thread owns a slot in a table in the header, and pins it with the global epoch for
+ * the duration of a read, writer threads too, as they follow links other writers
+ * retire. The writer stamps batches of retired records with the epoch, advances it
+ * when all pinned slots have caught up, and frees a batch two epochs later, when no
+ * reader can still be on its records. Slots not refreshed for FREE_MEMORY_DELAY_MS,
+ * e.g. of a process which died, are ignored and can be taken by other readers.
+ */
+public final class MappedOffHeap implements Closeable {
+
+    /**
+     * Regions of 64MB, mapped when the file grows into them.
+     */
+    static final int REGION_BITS = 26;
+
+    private static final long REGION = 1L << REGION_BITS, MASK = REGION - 1;
+
+    /**
+     * Size of records, nodes and indexes.
+     */
+    static final int RECORD = 40;
+
+    /**
+     * Records per region, the remainder of each region is not used.
+     */
+    private static final long SLOTS = REGION / RECORD;
+
+    /* ---------------- Header, first two records -------------- */
+
+    private static final long MAGIC = 0x6f66666e6d617031L; // offnmap1
+
+    private static final int STATE = 8, TOP = 16, HEAD = 24, FREE = 32, SIZE = 40, EPOCH = 48, SHARED = 56;
+
+    private static final long OPEN = 1, CLEAN = 2;
+
+    /**
+     * Table of reader slots, each on its own cache line, with the owner and pinned epoch
+     * in one word, and the time it was last pinned.
+     */
+    private static final int TABLE = 4096, READERS = 64, SLOT = 64, WORD = 0, TIME = 8;
+
+    /**
+     * Offset of the base-level header node, the first record after the table.
+     */
+    private static final long BASE = ((TABLE + READERS * SLOT) / RECORD + 1) * RECORD;
+
+    /* ---------------- Records -------------- */
+
+    private static final int KEY = 0, VALUE = 24, NEXT = 32;
+
+    private static final int NODE = 0, DOWN = 8, RIGHT = 16, LEVEL = 24;
+
+    private static final int MAX_LEVEL = 31;
+
+    private static final int RETIRED_BATCH = 256;
+
+    /**
+     * Records a writer takes from the file at once.
+     */
+    private static final int ALLOCATE_BATCH = 64;
+
+    /**
+     * Value of the base-level header node, so that it never looks deleted.
+     */
+    private static final long BASE_HEADER = 1;
+
+    /**
+     * How long a batch being filled waits before being queued in shared mode.
+     */
+    private static final long QUEUE_MS = 100;
+
+    /**
+     * How the file is opened. A PRIVATE map is used by one process. A WRITER also lets
+     * READER maps of other processes read the file concurrently.
+     */
+    public enum Mode {
+        PRIVATE, WRITER, READER
+    }
+
+    private final Mode mode;
+
+    /**
+     * If reads pin a reader slot, i.e. the file is shared.
+     */
+    private final boolean pins;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final FileLock lock;
+
+    /**
+     * Mappings, kept referenced so that they are not unmapped, and their base
+     * addresses. Replaced when the file grows, guarded by this.
+     */
+    private MappedByteBuffer[] buffers = new MappedByteBuffer[0];
+
+    private volatile long[] bases = new long[0];
+
+    /**
+     * Address of the header.
+     */
+    private final long header;
+
+    private final boolean recovered;
+
+    /**
+     * Retired records, queued by batches, like OffHeap's Retired. Stamped with the time
+     * the batch was queued, or the epoch in shared mode.
+     */
+    private static final class Retired {
+
+        final long[] records = new long[RETIRED_BATCH];
+
+        int count;
+
+        long stamp, time;
+    }
+
+    /**
+     * Queued batches, guarded by this.
+     */
+    private final ArrayDeque<Retired> retired = new ArrayDeque<Retired>();
+
+    /**
+     * State of a writer thread: records taken from the file a batch at a time, so that
+     * writers only take the monitor once per batch, the batch it retires records to,
+     * and its random seed.
+     */
+    private static final class Writer {
+
+        final Thread thread = Thread.currentThread();
+
+        final long[] free = new long[ALLOCATE_BATCH];
+
+        int count;
+
+        Retired retiring = new Retired();
+
+        int randomSeed = (int) System.nanoTime() | 0x0100; // ensure nonzero
+    }
+
+    private final ThreadLocal<Writer> writer = new ThreadLocal<Writer>() {
+
+        @Override
+        protected Writer initialValue() {
+            Writer writer = new Writer();
+
+            synchronized (MappedOffHeap.this) {
+                writers.add(writer);
+            }
+
+            return writer;
+        }
+    };
+
+    /**
+     * Writers of this map, to give their records back when they exit or on close.
+     * Guarded by this.
+     */
+    private final ArrayList<Writer> writers = new ArrayList<Writer>();
+
+    private volatile boolean closed;
+
+    /**
+     * Slot of a reader thread, -1 until it has one, and its owner id, unique among
+     * threads of all processes with high probability.
+     */
+    private static final class Reader {
+
+        int slot = -1;
+
+        final long owner = ThreadLocalRandom.current().nextInt() & 0xffffffffL | 1;
+    }
+
+    private final ThreadLocal<Reader> readers = new ThreadLocal<Reader>() {
+
+        @Override
+        protected Reader initialValue() {
+            Reader reader = new Reader();
+
+            synchronized (MappedOffHeap.this) {
+                claimed.add(reader);
+            }
+
+            return reader;
+        }
+    };
+
+    /**
+     * Readers of this map, to free their slots on close. Guarded by this.
+     */
+    private final ArrayList<Reader> claimed = new ArrayList<Reader>();
+
+    /**
+     * Opens the map stored in file in PRIVATE mode.
+     */
+    public MappedOffHeap(File file) throws IOException {
+        this(file, Mode.PRIVATE);
+    }
+
+    /**
+     * Opens the map stored in file. A PRIVATE map or a WRITER creates it if the file is
+     * empty or does not exist, and locks the file until close. A READER doesn't lock, and
+     * fails if the writer opened the map privately.
+     *
+     * @throws IOException
+     *             if the file is not a map, or is locked by another writer
+     */
+    public MappedOffHeap(File file, Mode mode) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.mode = mode;
+        pins = mode != Mode.PRIVATE;
+        boolean opened = false;
+
+        try {
+            channel = this.file.getChannel();
+            lock = mode != Mode.READER ? channel.tryLock() : null;
+
+            if (mode != Mode.READER && lock == null)
+                throw new IOException("Locked by another process: " + file);
+
+            long size = channel.size();
+
+            if (mode == Mode.READER && size == 0)
+                throw new IOException("Not a map: " + file);
+
+            for (int i = 0; i == 0 || (long) i << REGION_BITS < size; i++)
+                map(i);
+
+            header = bases[0];
+
+            if (size == 0)
+                create();
+            else if (UNSAFE.getLong(header) != MAGIC)
+                throw new IOException("Not a map: " + file);
+
+            if (mode == Mode.READER) {
+                if (UNSAFE.getLongVolatile(null, header + STATE) == OPEN && UNSAFE.getLongVolatile(null, header + SHARED) == 0)
+                    throw new IOException("Opened privately by its writer: " + file);
+
+                recovered = false;
+            } else {
+                recovered = size != 0 && UNSAFE.getLong(header + STATE) != CLEAN;
+                UNSAFE.putLongVolatile(null, header + SHARED, pins ? 1 : 0);
+
+                // Durable before anything else is written, so a clean marker never covers them
+                UNSAFE.putLongVolatile(null, header + STATE, OPEN);
+                buffers[0].force();
+
+                if (recovered)
+                    recover();
+            }
+
+            opened = true;
+        } finally {
+            if (!opened)
+                this.file.close();
+        }
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * If the map was not closed cleanly and had to be recovered when opened.
+     */
+    public boolean recovered() {
+        return recovered;
+    }
+
+    /**
+     * Number of mappings.
+     */
+    public long size() {
+        return UNSAFE.getLongVolatile(null, header + SIZE);
+    }
+
+    /* ---------------- Regions -------------- */
+
+    private void map(int region) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, (long) region << REGION_BITS, REGION);
+        MappedByteBuffer[] array = Arrays.copyOf(buffers, region + 1);
+        array[region] = buffer;
+        long[] addresses = Arrays.copyOf(bases, region + 1);
+        addresses[region] = UNSAFE.getLong(buffer, ADDRESS);
+        buffers = array;
+        bases = addresses; // Published before offsets in the new region are linked
+    }
+
+    private long address(long offset) {
+        long[] bases = this.bases;
+        int region = (int) (offset >>> REGION_BITS);
+
+        if (region >= bases.length) // Reader, the writer grew the file
+            bases = grow(region);
+
+        return bases[region] + (offset & MASK);
+    }
+
+    private synchronized long[] grow(int region) {
+        try {
+            while (bases.length <= region)
+                map(bases.length);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+
+        return bases;
+    }
+
+    /**
+     * Takes a record from the writer's batch, refilled from the file when empty.
+     */
+    private long allocate(Writer writer) {
+        if (writer.count == 0)
+            refill(writer);
+
+        return writer.free[--writer.count];
+    }
+
+    /**
+     * Gives back a record which was never linked, e.g. after a lost CAS.
+     */
+    private static void unallocate(Writer writer, long record) {
+        writer.free[writer.count++] = record;
+    }
+
+    /**
+     * Takes a batch of free records, frees first those retired long enough ago, then
+     * takes the next ones at the end of the file, mapping a new region if needed.
+     */
+    private synchronized void refill(Writer writer) {
+        reclaim();
+
+        while (writer.count < ALLOCATE_BATCH) {
+            long record = UNSAFE.getLong(header + FREE);
+
+            if (record != 0)
+                UNSAFE.putOrderedLong(null, header + FREE, UNSAFE.getLong(address(record)));
+            else {
+                record = UNSAFE.getLong(header + TOP);
+
+                if ((record & MASK) + RECORD > REGION)
+                    record = (record | MASK) + 1;
+
+                int region = (int) (record >>> REGION_BITS);
+
+                if (region == bases.length) {
+                    try {
+                        map(region);
+                    } catch (IOException e) {
+                        throw new IOError(e);
+                    }
+                }
+
+                UNSAFE.putOrderedLong(null, header + TOP, record + RECORD);
+            }
+
+            writer.free[writer.count++] = record;
+        }
+    }
+
+    private void free(long record) {
+        UNSAFE.putLong(address(record), UNSAFE.getLong(header + FREE));
+        UNSAFE.putOrderedLong(null, header + FREE, record);
+    }
+
+    private void retire(Writer writer, long record) {
+        if (writer.retiring.count == RETIRED_BATCH)
+            queue(writer, System.nanoTime());
+
+        if (writer.retiring.count == 0)
+            writer.retiring.time = System.nanoTime();
+
+        writer.retiring.records[writer.retiring.count++] = record;
+    }
+
+    private synchronized void queue(Writer writer, long now) {
+        writer.retiring.stamp = pins ? epoch() : now;
+        retired.add(writer.retiring);
+        writer.retiring = new Retired();
+    }
+
+    /**
+     * Frees batches retired long enough ago, or two epochs ago in shared mode. Writers
+     * queue the batch they fill after half the delay, or QUEUE_MS, so that records are
+     * not held forever by a map which rarely removes, and records of writers which
+     * exited are queued or given back here.
+     */
+    private void reclaim() {
+        long now = System.nanoTime(), delay = FREE_MEMORY_DELAY_MS * 1000000L;
+
+        for (int i = writers.size() - 1; i >= 0; i--) {
+            Writer writer = writers.get(i);
+
+            // Termination happens-before isAlive returns false, so its state is visible
+            if (!writer.thread.isAlive()) {
+                release(writer, now);
+                writers.remove(i);
+            }
+        }
+
+        if (pins && !retired.isEmpty())
+            advance();
+
+        for (;;) {
+            Retired batch = retired.peek();
+
+            if (batch == null || (pins ? epoch() < batch.stamp + 2 : now - batch.stamp < delay))
+                return;
+
+            retired.poll();
+
+            for (int i = 0; i < batch.count; i++)
+                free(batch.records[i]);
+        }
+    }
+
+    /**
+     * Queues the batch of a writer which is done with the map, and frees the records it
+     * had taken but not used.
+     */
+    private void release(Writer writer, long now) {
+        if (writer.retiring.count != 0)
+            queue(writer, now);
+
+        while (writer.count != 0)
+            free(writer.free[--writer.count]);
+    }
+
+    /* ---------------- Epochs -------------- */
+
+    long epoch() {
+        return UNSAFE.getLongVolatile(null, header + EPOCH);
+    }
+
+    private long readerSlot(int index) {
+        return header + TABLE + index * SLOT;
+    }
+
+    /**
+     * Pins the slot of the current thread with the global epoch, and returns it. Takes
+     * a slot first if the thread has none, or if its slot was taken from it after being
+     * idle too long.
+     */
+    private long pin() {
+        Reader reader = readers.get();
+
+        for (;;) {
+            long e = epoch();
+
+            if (reader.slot >= 0) {
+                long s = readerSlot(reader.slot);
+                UNSAFE.putLong(s + TIME, System.currentTimeMillis());
+
+                if (UNSAFE.compareAndSwapLong(null, s + WORD, reader.owner, e << 32 | reader.owner)) {
+                    if (epoch() == e)
+                        return e;
+
+                    UNSAFE.compareAndSwapLong(null, s + WORD, e << 32 | reader.owner, reader.owner); // Moved, again
+                    continue;
+                }
+            }
+
+            claim(reader);
+        }
+    }
+
+    private void unpin() {
+        Reader reader = readers.get();
+        long s = readerSlot(reader.slot);
+        long word = UNSAFE.getLong(s + WORD);
+
+        if ((word & 0xffffffffL) == reader.owner) // Not taken meanwhile
+            UNSAFE.compareAndSwapLong(null, s + WORD, word, reader.owner);
+    }
+
+    private void claim(Reader reader) {
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < READERS; i++) {
+            long s = readerSlot(i);
+            long word = UNSAFE.getLongVolatile(null, s + WORD);
+
+            if (word == 0 || now - UNSAFE.getLongVolatile(null, s + TIME) > FREE_MEMORY_DELAY_MS) {
+                if (UNSAFE.compareAndSwapLong(null, s + WORD, word, reader.owner)) {
+                    UNSAFE.putLongVolatile(null, s + TIME, now);
+                    reader.slot = i;
+                    return;
+                }
+            }
+        }
+
+        throw new IllegalStateException("No reader slot left");
+    }
+
+    /**
+     * Advances the global epoch if all pinned slots have reached it, ignoring stale ones.
+     */
+    private boolean advance() {
+        long e = epoch(), now = System.currentTimeMillis();
+
+        for (int i = 0; i < READERS; i++) {
+            long s = readerSlot(i);
+            long pinned = UNSAFE.getLongVolatile(null, s + WORD) >>> 32;
+
+            if (pinned != 0 && pinned != e && now - UNSAFE.getLongVolatile(null, s + TIME) <= FREE_MEMORY_DELAY_MS)
+                return false;
+        }
+
+        UNSAFE.putLongVolatile(null, header + EPOCH, e + 1);
+        return true;
+    }
+
+    /**
+     * Advances the epoch twice, waiting for readers, so that none of them can still be
+     * on a record unlinked before.
+     */
+    private void drain() {
+        for (int i = 0; i < 2;) {
+            if (advance())
+                i++;
+            else
+                Thread.yield();
+        }
+    }
+
+    /* ---------------- Records -------------- */
+
+    private long value(long node) {
+        return UNSAFE.getLongVolatile(null, address(node) + VALUE);
+    }
+
+    /**
+     * Raw next field, marked once the node is deleted, like in OffHeap.
+     */
+    private long next(long node) {
+        return UNSAFE.getLongVolatile(null, address(node) + NEXT);
+    }
+
+    private static long unmarked(long next) {
+        return next & ~1;
+    }
+
+    private static boolean marked(long next) {
+        return (next & 1) != 0;
+    }
+
+    private long node(long index) {
+        return UNSAFE.getLong(address(index) + NODE);
+    }
+
+    private long down(long index) {
+        return UNSAFE.getLong(address(index) + DOWN);
+    }
+
+    private long right(long index) {
+        return UNSAFE.getLongVolatile(null, address(index) + RIGHT);
+    }
+
+    private int level(long index) {
+        return UNSAFE.getInt(address(index) + LEVEL);
+    }
+
+    private long head() {
+        return UNSAFE.getLongVolatile(null, header + HEAD);
+    }
+
+    private int compare(byte[] key, long node) {
+        long a = address(node) + KEY;
+
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int x = key[i] & 0xff;
+            int y = UNSAFE.getByte(a + i) & 0xff;
+
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+    private int compare(long node, long other) {
+        long a = address(node) + KEY, b = address(other) + KEY;
+
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int x = UNSAFE.getByte(a + i) & 0xff;
+            int y = UNSAFE.getByte(b + i) & 0xff;
+
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+    private boolean casValue(long node, long expect, long update) {
+        return UNSAFE.compareAndSwapLong(null, address(node) + VALUE, expect, update);
+    }
+
+    private boolean casNext(long node, long expect, long update) {
+        return UNSAFE.compareAndSwapLong(null, address(node) + NEXT, expect, update);
+    }
+
+    /**
+     * Offsets are multiples of RECORD in a region, so bit 0 is free, like in OffHeap.
+     */
+    private boolean mark(long node, long f) {
+        return casNext(node, f, f | 1);
+    }
+
+    private boolean casRight(long index, long expect, long update) {
+        return UNSAFE.compareAndSwapLong(null, address(index) + RIGHT, expect, update);
+    }
+
+    private boolean casHead(long expect, long update) {
+        return UNSAFE.compareAndSwapLong(null, header + HEAD, expect, update);
+    }
+
+    private long newNode(Writer writer, byte[] key, long value, long next) {
+        long node = allocate(writer);
+        long a = address(node);
+        UNSAFE.copyMemory(key, BYTES, null, a + KEY, KEY_LENGTH);
+        UNSAFE.putLong(a + VALUE, value);
+        UNSAFE.putLong(a + NEXT, next);
+        return node;
+    }
+
+    private long newIndex(Writer writer, long node, long down, long right) {
+        long index = allocate(writer);
+        long a = address(index);
+        UNSAFE.putLong(a + NODE, node);
+        UNSAFE.putLong(a + DOWN, down);
+        UNSAFE.putLong(a + RIGHT, right);
+        return index;
+    }
+
+    private long newHeadIndex(Writer writer, long node, long down, long right, int level) {
+        long index = newIndex(writer, node, down, right);
+        UNSAFE.putInt(address(index) + LEVEL, level);
+        return index;
+    }
+
+    private static void check(byte[] key) {
+        if (key.length != KEY_LENGTH)
+            throw new IllegalArgumentException();
+    }
+
+    /* ---------------- Reads -------------- */
+
+    /**
+     * Same as OffHeap.findPredecessorReadOnly.
+     */
+    private long findPredecessor(byte[] key) {
+        long q = head();
+        long r = right(q);
+
+        for (;;) {
+            if (r != 0) {
+                long n = node(r);
+
+                if (value(n) == 0) {
+                    r = right(r);
+                    continue;
+                }
+
+                if (compare(key, n) > 0) {
+                    q = r;
+                    r = right(r);
+                    continue;
+                }
+            }
+
+            long d = down(q);
+
+            if (d == 0)
+                return node(q);
+
+            q = d;
+            r = right(d);
+        }
+    }
+
+    public long get(byte[] key) {
+        check(key);
+
+        if (!pins)
+            return doGet(key);
+
+        pin();
+
+        try {
+            return doGet(key);
+        } finally {
+            unpin();
+        }
+    }
+
+    private long doGet(byte[] key) {
+        long n = unmarked(next(findPredecessor(key)));
+
+        while (n != 0) {
+            int c = compare(key, n);
+
+            if (c < 0)
+                return 0;
+
+            if (c == 0) {
+                long v = value(n);
+
+                if (v != 0)
+                    return v;
+            }
+
+            n = unmarked(next(n));
+        }
+
+        return 0;
+    }
+
+    /* ---------------- Writes -------------- */
+
+    /**
+     * Same as OffHeap.findPredecessor, unlinks indexes to deleted nodes on the way.
+     */
+    private long findPredecessorWriter(byte[] key, Writer writer) {
+        for (;;) {
+            long q = head();
+            long r = right(q);
+
+            for (;;) {
+                if (r != 0) {
+                    long n = node(r);
+
+                    if (value(n) == 0) {
+                        if (!unlink(q, r, writer))
+                            break; // restart
+
+                        r = right(q); // reread r
+                        continue;
+                    }
+
+                    if (compare(key, n) > 0) {
+                        q = r;
+                        r = right(r);
+                        continue;
+                    }
+                }
+
+                long d = down(q);
+
+                if (d == 0)
+                    return node(q);
+
+                q = d;
+                r = right(d);
+            }
+        }
+    }
+
+    /**
+     * Same as OffHeap.unlink.
+     */
+    private boolean unlink(long index, long succ, Writer writer) {
+        boolean result = value(node(index)) != 0 && casRight(index, succ, right(succ));
+
+        if (result)
+            retire(writer, succ);
+
+        return result;
+    }
+
+    /**
+     * Same as OffHeap.helpDelete.
+     */
+    private void helpDelete(long n, long nu, long b, long f, Writer writer) {
+        if (f == next(nu) && n == next(b) && !marked(n)) { // b not deleted
+            if (!marked(f)) // not already marked
+                mark(nu, f);
+            else if (casNext(b, n, unmarked(f)))
+                retire(writer, nu);
+        }
+    }
+
+    /**
+     * Same as OffHeap.findNode.
+     */
+    private long findNode(byte[] key, Writer writer) {
+        for (;;) {
+            long b = findPredecessorWriter(key, writer);
+            long n = next(b);
+
+            for (;;) {
+                if (n == 0)
+                    return 0;
+
+                long nu = unmarked(n);
+
+                if (nu == 0) // b is deleted and was last
+                    break;
+
+                long f = next(nu);
+
+                if (n != next(b)) // inconsistent read
+                    break;
+
+                if (value(nu) == 0) { // n is deleted
+                    helpDelete(n, nu, b, f, writer);
+                    break;
+                }
+
+                if (n != nu || value(b) == 0) // b is deleted
+                    break;
+
+                int c = compare(key, n);
+
+                if (c == 0)
+                    return n;
+
+                if (c < 0)
+                    return 0;
+
+                b = n;
+                n = f;
+            }
+        }
+    }
+
+    private Writer prepareWrite() {
+        if (mode == Mode.READER)
+            throw new UnsupportedOperationException();
+
+        if (closed)
+            throw new IllegalStateException();
+
+        Writer writer = this.writer.get();
+        Retired batch = writer.retiring;
+
+        if (batch.count != 0) {
+            long now = System.nanoTime();
+
+            if (now - batch.time > (pins ? QUEUE_MS : FREE_MEMORY_DELAY_MS / 2) * 1000000L)
+                queue(writer, now);
+        }
+
+        return writer;
+    }
+
+    private void count(long delta) {
+        for (;;) {
+            long size = size();
+
+            if (UNSAFE.compareAndSwapLong(null, header + SIZE, size, size + delta))
+                return;
+        }
+    }
+
+    public long put(byte[] key, long value) {
+        check(key);
+
+        if (value == 0)
+            throw new IllegalArgumentException();
+
+        Writer writer = prepareWrite();
+
+        if (!pins)
+            return doPut(key, value, writer);
+
+        pin(); // Other writer threads retire records too
+
+        try {
+            return doPut(key, value, writer);
+        } finally {
+            unpin();
+        }
+    }
+
+    /**
+     * Same as OffHeap.doPut.
+     */
+    private long doPut(byte[] key, long value, Writer writer) {
+        for (;;) {
+            long b = findPredecessorWriter(key, writer);
+            long n = next(b);
+
+            for (;;) {
+                if (n != 0) {
+                    long nu = unmarked(n);
+
+                    if (nu == 0) // b is deleted and was last
+                        break;
+
+                    long f = next(nu);
+
+                    if (n != next(b)) // inconsistent read
+                        break;
+
+                    long v = value(nu);
+
+                    if (v == 0) { // n is deleted
+                        helpDelete(n, nu, b, f, writer);
+                        break;
+                    }
+
+                    if (n != nu || value(b) == 0) // b is deleted
+                        break;
+
+                    int c = compare(key, n);
+
+                    if (c > 0) {
+                        b = n;
+                        n = f;
+                        continue;
+                    }
+
+                    if (c == 0) {
+                        if (!casValue(n, v, value))
+                            break; // restart if lost race to replace value
+
+                        return v;
+                    }
+                }
+
+                long z = newNode(writer, key, value, n);
+
+                if (!casNext(b, n, z)) {
+                    unallocate(writer, z);
+                    break; // restart if lost race to append to b
+                }
+
+                count(1);
+                int level = randomLevel(writer);
+
+                if (level > 0)
+                    insertIndex(z, level, writer);
+
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Same as OffHeap.insertIndex. Head records built for a new level are retired if
+     * another thread added it first, they were never linked.
+     */
+    private void insertIndex(long z, int level, Writer writer) {
+        long h = head();
+        int max = level(h);
+
+        if (level <= max) {
+            long idx = 0;
+
+            for (int i = 1; i <= level; ++i)
+                idx = newIndex(writer, z, idx, 0);
+
+            addIndex(idx, h, level, writer);
+        } else { // Add a new level
+            level = max + 1;
+            long[] idxs = new long[level + 1];
+            long idx = 0;
+
+            for (int i = 1; i <= level; ++i)
+                idxs[i] = idx = newIndex(writer, z, idx, 0);
+
+            long oldh;
+            int k;
+
+            for (;;) {
+                oldh = head();
+                int oldLevel = level(oldh);
+
+                if (level <= oldLevel) { // lost race to add level
+                    k = level;
+                    break;
+                }
+
+                long newh = oldh;
+                long oldbase = node(oldh);
+
+                for (int j = oldLevel + 1; j <= level; ++j)
+                    newh = newHeadIndex(writer, oldbase, newh, idxs[j], j);
+
+                if (casHead(oldh, newh)) {
+                    k = oldLevel;
+                    break;
+                }
+
+                for (long x = newh; x != oldh; x = down(x))
+                    retire(writer, x);
+            }
+
+            addIndex(idxs[k], oldh, k, writer);
+        }
+    }
+
+    /**
+     * Same as OffHeap.addIndex. Index records not linked yet when the node turns out to
+     * be deleted are retired.
+     */
+    private void addIndex(long idx, long h, int indexLevel, Writer writer) {
+        // Track next level to insert in case of retries
+        int insertionLevel = indexLevel;
+        long node = node(idx);
+        byte[] key = new byte[KEY_LENGTH];
+        UNSAFE.copyMemory(null, address(node) + KEY, key, BYTES, KEY_LENGTH);
+
+        for (;;) {
+            int j = level(h);
+            long q = h;
+            long r = right(q);
+            long t = idx;
+
+            for (;;) {
+                if (r != 0) {
+                    long n = node(r);
+                    // compare before deletion check avoids needing recheck
+                    int c = compare(key, n);
+
+                    if (value(n) == 0) {
+                        if (!unlink(q, r, writer))
+                            break;
+
+                        r = right(q);
+                        continue;
+                    }
+
+                    if (c > 0) {
+                        q = r;
+                        r = right(r);
+                        continue;
+                    }
+                }
+
+                if (j == insertionLevel) {
+                    // Don't insert index if node already deleted
+                    if (value(node) == 0) {
+                        for (long u = t; u != 0; u = down(u))
+                            retire(writer, u);
+
+                        findNode(key, writer); // cleans up
+                        return;
+                    }
+
+                    UNSAFE.putLong(address(t) + RIGHT, r);
+
+                    if (value(node) == 0 || !casRight(q, r, t))
+                        break; // restart
+
+                    if (--insertionLevel == 0) {
+                        // need final deletion check before return
+                        if (value(node) == 0)
+                            findNode(key, writer);
+
+                        return;
+                    }
+                }
+
+                if (--j >= insertionLevel && j < indexLevel)
+                    t = down(t);
+
+                q = down(q);
+                r = right(q);
+            }
+        }
+    }
+
+    /**
+     * Towers with p = 0.5 and a quarter of nodes indexed, like OffHeap's default.
+     */
+    private static int randomLevel(Writer writer) {
+        int x = writer.randomSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        writer.randomSeed = x ^= x << 5;
+
+        if ((x & 0x80000001) != 0) // test highest and lowest bits
+            return 0;
+
+        int level = 1;
+
+        while (((x >>>= 1) & 1) != 0 && level < MAX_LEVEL)
+            ++level;
+
+        return level;
+    }
+
+    public long remove(byte[] key) {
+        check(key);
+        Writer writer = prepareWrite();
+
+        if (!pins)
+            return doRemove(key, writer);
+
+        pin();
+
+        try {
+            return doRemove(key, writer);
+        } finally {
+            unpin();
+        }
+    }
+
+    /**
+     * Same as OffHeap.doRemove. Index records are unlinked by the search that follows,
+     * and retired with the node by the threads which unlink them.
+     */
+    private long doRemove(byte[] key, Writer writer) {
+        for (;;) {
+            long b = findPredecessorWriter(key, writer);
+            long n = next(b);
+
+            for (;;) {
+                if (n == 0)
+                    return 0;
+
+                long nu = unmarked(n);
+
+                if (nu == 0) // b is deleted and was last
+                    break;
+
+                long f = next(nu);
+
+                if (n != next(b)) // inconsistent read
+                    break;
+
+                long v = value(nu);
+
+                if (v == 0) { // n is deleted
+                    helpDelete(n, nu, b, f, writer);
+                    break;
+                }
+
+                if (n != nu || value(b) == 0) // b is deleted
+                    break;
+
+                int c = compare(key, n);
+
+                if (c < 0)
+                    return 0;
+
+                if (c > 0) {
+                    b = n;
+                    n = f;
+                    continue;
+                }
+
+                if (!casValue(n, v, 0))
+                    break;
+
+                count(-1);
+
+                if (!mark(n, f) || !casNext(b, n, f))
+                    findNode(key, writer); // Retry via findNode
+                else {
+                    retire(writer, n);
+                    findPredecessorWriter(key, writer); // Clean index
+
+                    if (right(head()) == 0)
+                        tryReduceLevel(writer);
+                }
+
+                return v;
+            }
+        }
+    }
+
+    /**
+     * Same as OffHeap.tryReduceLevel. The head record taken off is retired, unless it
+     * had to be put back. An index linked to it meanwhile is lost, and its records only
+     * come back on recovery.
+     */
+    private void tryReduceLevel(Writer writer) {
+        long h = head();
+        long d;
+        long e;
+
+        if (level(h) > 3 && //
+                (d = down(h)) != 0 && //
+                (e = down(d)) != 0 && //
+                right(e) == 0 && //
+                right(d) == 0 && //
+                right(h) == 0 && //
+                casHead(h, d)) { // try to set
+            if (right(h) != 0) // recheck
+                casHead(d, h); // try to backout
+            else
+                retire(writer, h);
+        }
+    }
+
+    /* ---------------- Durability -------------- */
+
+    /**
+     * Writes all changes to the storage device.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer buffer : buffers)
+            buffer.force();
+    }
+
+    /**
+     * Frees all retired records, flushes, then marks the file clean and unlocks it. No
+     * thread may still be using the map, but in shared mode readers of other processes
+     * can, and are waited for before freeing. A READER only frees its slots. Regions are
+     * unmapped when the map is garbage collected, Java has no other way.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+
+        if (mode == Mode.READER) {
+            for (Reader reader : claimed)
+                if (reader.slot >= 0)
+                    UNSAFE.compareAndSwapLong(null, readerSlot(reader.slot) + WORD, reader.owner, 0);
+
+            file.close();
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        for (Writer writer : writers)
+            release(writer, now);
+
+        writers.clear();
+
+        if (pins)
+            drain();
+
+        for (Retired batch : retired)
+            for (int i = 0; i < batch.count; i++)
+                free(batch.records[i]);
+
+        retired.clear();
+        force();
+        UNSAFE.putLongVolatile(null, header + STATE, CLEAN);
+        buffers[0].force();
+        file.close();
+    }
+
+    /**
+     * Closes the file without marking it clean, like a crash of the process. For tests.
+     */
+    synchronized void abandon() throws IOException {
+        closed = true;
+        file.close();
+    }
+
+    /* ---------------- Recovery -------------- */
+
+    private void create() {
+        UNSAFE.putLong(header + TOP, BASE + RECORD);
+        UNSAFE.putLong(header + EPOCH, 1);
+        UNSAFE.putLong(address(BASE) + VALUE, BASE_HEADER);
+        UNSAFE.putLong(header + HEAD, newHeadIndex(writer.get(), BASE, 0, 0, 1));
+        UNSAFE.putLong(header, MAGIC);
+    }
+
+    private static long slot(long offset) {
+        return (offset >>> REGION_BITS) * SLOTS + (offset & MASK) / RECORD;
+    }
+
+    private static long offset(long slot) {
+        return (slot / SLOTS) << REGION_BITS | (slot % SLOTS) * RECORD;
+    }
+
+    /**
+     * Scans the base level, unlinking nodes whose removal was interrupted, and cuts it
+     * at the first link which can't be valid. Then builds ideal towers over it, with a
+     * quarter of nodes indexed like randomLevel, and frees every record below the old
+     * top which is not a live node, once readers are done with them in shared mode.
+     */
+    private void recover() {
+        long top = Math.min(UNSAFE.getLong(header + TOP), (long) bases.length << REGION_BITS);
+        long[] used = new long[(int) ((slot(top) >>> 6) + 1)];
+        long count = 0;
+
+        for (long s = 0; s <= slot(BASE); s++) // Header, table and base header node
+            used[(int) (s >>> 6)] |= 1L << s;
+
+        for (long b = BASE;;) {
+            long n = unmarked(next(b));
+
+            if (n == 0)
+                break;
+
+            long s = slot(n);
+
+            if (n < BASE + RECORD || n >= top || (n & MASK) % RECORD != 0 || (n & MASK) + RECORD > REGION || (used[(int) (s >>> 6)] & 1L << s) != 0 || (b != BASE && compare(b, n) >= 0)) {
+                UNSAFE.putLong(address(b) + NEXT, 0);
+                break;
+            }
+
+            if (value(n) == 0) { // Interrupted removal
+                UNSAFE.putLong(address(b) + NEXT, unmarked(next(n)));
+                continue;
+            }
+
+            used[(int) (s >>> 6)] |= 1L << s;
+            count++;
+            b = n;
+        }
+
+        // New indexes are allocated past the old top
+        UNSAFE.putLong(header + FREE, 0);
+        int levels = Math.max(1, Math.min(MAX_LEVEL, 62 - Long.numberOfLeadingZeros(count)));
+        long[] tails = new long[levels + 1];
+        Writer writer = this.writer.get();
+        long h = 0;
+
+        for (int j = 1; j <= levels; j++)
+            tails[j] = h = newHeadIndex(writer, BASE, h, 0, j);
+
+        long i = 0;
+
+        for (long n = next(BASE); n != 0; n = next(n)) {
+            int level = Math.min(Long.numberOfTrailingZeros(++i) - 1, levels);
+            long idx = 0;
+
+            for (int j = 1; j <= level; j++) {
+                idx = newIndex(writer, n, idx, 0);
+                UNSAFE.putLong(address(tails[j]) + RIGHT, idx);
+                tails[j] = idx;
+            }
+        }
+
+        UNSAFE.putLongVolatile(null, header + HEAD, h);
+        UNSAFE.putLong(header + SIZE, count);
+
+        if (pins) // Readers of other processes can be on the old indexes
+            drain();
+
+        for (long s = slot(top) - 1; s >= 0; s--)
+            if ((used[(int) (s >>> 6)] & 1L << s) == 0)
+                free(offset(s));
+    }
+
+    /* ---------------- Cursors -------------- */
+
+    /**
+     * Returns a cursor over mappings in ascending key order, starting at the first key
+     * greater than or equal to from, or at the first mapping if from is null.
+     */
+    public Cursor cursor(byte[] from) {
+        return new Cursor(from);
+    }
+
+    /**
+     * Same as OffHeap.Cursor. In shared mode, the cursor is only pinned during next, and
+     * finds its position again from its last key if the epoch moved since the previous
+     * one, as its node could then be freed.
+     */
+    public final class Cursor {
+
+        private final byte[] from, key = new byte[KEY_LENGTH];
+
+        private long node, value, time, epoch;
+
+        private boolean started;
+
+        Cursor(byte[] from) {
+            this.from = from;
+        }
+
+        /**
+         * Moves to the next mapping.
+         *
+         * @return false if there are no more mappings
+         */
+        public boolean next() {
+            long now = System.nanoTime();
+
+            if (!pins)
+                return step(now - time > FREE_MEMORY_DELAY_MS * 1000000L / 2, now);
+
+            long e = pin();
+
+            try {
+                boolean moved = e != epoch;
+                epoch = e;
+                return step(moved, now);
+            } finally {
+                unpin();
+            }
+        }
+
+        private boolean step(boolean stale, long now) {
+            long n = node;
+            byte[] bound = null;
+
+            if (n == 0 || stale) {
+                bound = started ? key : from;
+                n = bound == null ? BASE : findPredecessor(bound);
+            }
+
+            time = now;
+
+            for (;;) {
+                n = unmarked(MappedOffHeap.this.next(n));
+
+                if (n == 0) {
+                    node = 0;
+                    return false;
+                }
+
+                long v = MappedOffHeap.this.value(n);
+
+                if (v == 0) // deleted
+                    continue;
+
+                if (bound != null) {
+                    int c = compare(bound, n);
+
+                    if (c > 0 || (c == 0 && started))
+                        continue;
+
+                    bound = null;
+                }
+
+                node = n;
+                value = v;
+                UNSAFE.copyMemory(null, address(n) + KEY, key, BYTES, KEY_LENGTH);
+                started = true;
+                return true;
+            }
+        }
+
+        /**
+         * Key of the current mapping. The array belongs to the cursor and is overwritten
+         * by next.
+         */
+        public byte[] key() {
+            if (!started)
+                throw new IllegalStateException();
+            return key;
+        }
+
+        /**
+         * Value of the current mapping, as of when next returned.
+         */
+        public long value() {
+            if (!started)
+                throw new IllegalStateException();
+            return value;
+        }
+    }
+}
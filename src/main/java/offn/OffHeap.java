@@ -1,8 +1,31 @@
 package offn;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import sun.misc.Unsafe;
 
@@ -37,12 +60,88 @@ public final class OffHeap {
      */
     private int randomSeed;
 
+    /**
+     * If only one thread writes, see OffHeap(boolean).
+     */
+    private final boolean singleWriter;
+
+    /**
+     * Probability that a tower grows one more level, scaled to 2^31, see randomLevel.
+     * Not volatile, it only changes in adaptive mode, and threads can use a stale one
+     * for a while.
+     */
+    private int threshold;
+
+    /**
+     * Highest level of towers.
+     */
+    private final int maxLevel;
+
+    /**
+     * Reads and inserts per stripe in adaptive mode, otherwise null, and their totals
+     * at the last adjustment.
+     */
+    private final AtomicLongArray operations;
+
+    private long lastReads, lastInserts;
+
+    /**
+     * Index path of the writer's last search in single writer mode.
+     */
+    private final long[] writerPath;
+
+    /**
+     * What a thread does before retrying after losing a race, see Backoff.
+     */
+    private volatile Backoff backoff = Backoff.NONE;
+
+    /**
+     * If gets and cursors never write, see readOnlyLookups(boolean).
+     */
+    private volatile boolean readOnlyLookups;
+
+    /**
+     * Where successful writes are published, null if not, see changeLog(ChangeLog).
+     */
+    private volatile ChangeLog changes;
+
+    /**
+     * Until when removals leave cleanup to a Maintenance, in nanoTime, 0 if not added to
+     * one. A time already past while added, see onUnlink.
+     */
+    private volatile long deferUntil;
+
+    /**
+     * Passes of maintain started, and the highest of them whose index sweep completed.
+     */
+    private final AtomicLong sweeps = new AtomicLong();
+
+    private volatile long swept;
+
+    /**
+     * Live nodes and average search path measured by the last maintain.
+     */
+    private volatile long live;
+
+    private volatile double searchPath;
+
+    /**
+     * Head of the index levels replaced by the last rebuildIndex, until retired, and
+     * when they were replaced. Guarded by this.
+     */
+    private long replaced, replacedTime;
+
+    /**
+     * Restarts per site, striped by thread, see restarts(Site).
+     */
+    private final AtomicLongArray restarts = new AtomicLongArray(STRIPES * STRIPE);
+
     // ADDED
 
     /**
      * This class cannot rely on GC to ensure it is safe to reclaim memory after a node
      * has been removed. Instead, when a node is freed, its memory is reclaimed after a
-     * delay. TODO Tim Harris's time stamp + thread list.
+     * delay, see onDelete. TODO Tim Harris's time stamp + thread list.
      */
     static final int FREE_MEMORY_DELAY_MS = 60 * 1000;
 
@@ -69,7 +168,9 @@ public final class OffHeap {
 
     /* ---------------- Nodes -------------- */
 
-    private static final int KEY = 0, KEY_LENGTH = 20;
+    private static final int KEY = 0;
+
+    static final int KEY_LENGTH = 20;
 
     private static final int VALUE = 24; // 4 padding for alignment
 
@@ -204,36 +305,199 @@ public final class OffHeap {
      * @param f
      *            successor
      */
-    private static void helpDelete(long n, long nu, long b, long f) {
+    private final void helpDelete(long n, long nu, long b, long f) {
         /*
          * Rechecking links and then doing only one of the help-out stages per call tends
          * to minimize CAS interference among helping threads.
          */
-        if (f == next(nu) && n == next(b)) {
+        if (f == next(nu) && n == next(b) && !marked(n)) { // b not deleted
             if (!marked(f)) // not already marked
                 mark(nu, f);
             else {
                 if (casNext(b, n, unmarked(f)))
-                    onDelete(nu);
+                    onUnlink(nu);
             }
         }
     }
 
-    private static void onDelete(final long block) {
+    /**
+     * Retires a node unlinked from the base level by a write. While the map is added to a
+     * Maintenance, its removal may have left its indexes to maintain, so the node is only
+     * freed once a pass of maintain started after now has swept them, however late that
+     * pass runs.
+     *
+     * @return true if indexes can be left to maintain, false if the caller must clean
+     */
+    private final boolean onUnlink(long node) {
+        long started = sweeps.get(); // Before deferUntil, so that a last pass covers it
+        long until = deferUntil;
+        if (until == 0) {
+            onDelete(node);
+            return false;
+        }
+        retiring.get().add(node, 0, this, started);
+        return until - System.nanoTime() > 0;
+    }
+
+    /**
+     * Retires a node or index record, or any other block allocated by this package,
+     * which is freed after FREE_MEMORY_DELAY_MS.
+     */
+    static void onDelete(final long block) {
         assert !marked(block);
-        int todo;
-        // Wait until all threads unlikely to access this location
-        // ThreadPool.scheduleOnce(new Runnable() {
-        //
-        // @Override
-        // public void run() {
-        // UNSAFE.freeMemory(block);
-        //
-        // if (Stats.ENABLED)
-        // Stats.getInstance().NativeAllocations.decrementAndGet();
-        // }
-        //
-        // }, FREE_MEMORY_DELAY_MS);
+        retiring.get().add(block, 0);
+    }
+
+    /**
+     * Retires a run of nodes as a single entry, from first to last through their next
+     * fields. The run must be unreachable, and all its next fields marked, so that they
+     * can still be followed when freeing.
+     */
+    private static void onDelete(long first, long last) {
+        assert !marked(first) && !marked(last);
+        retiring.get().add(first | 1, last);
+    }
+
+    /* ---------------- Reclamation -------------- */
+
+    private static final int RETIRED_BATCH = 256;
+
+    /**
+     * Blocks retired by a thread, queued all at once when full so that removals don't
+     * contend on the shared queue, or by reclaim once the thread exited. Runs take two
+     * slots, first with its mark bit set, then last.
+     */
+    private static final class Retired {
+
+        final long[] blocks = new long[RETIRED_BATCH];
+
+        int count;
+
+        long time;
+
+        /**
+         * Map whose indexes to some of the blocks may be left to maintain, null if none,
+         * and the number of its passes started before they were retired.
+         */
+        OffHeap map;
+
+        long started;
+
+        void add(long block, long last) {
+            add(block, last, null, 0);
+        }
+
+        void add(long block, long last, OffHeap map, long started) {
+            if (count + 2 > RETIRED_BATCH || (map != null && this.map != null && map != this.map)) {
+                time = System.nanoTime();
+                retired.add(this);
+                renew();
+                reclaim();
+                retiring.get().add(block, last, map, started);
+                return;
+            }
+            if (map != null) {
+                this.map = map;
+                this.started = Math.max(this.started, started);
+            }
+            blocks[count++] = block;
+            if (marked(block))
+                blocks[count++] = last;
+        }
+
+        /**
+         * If no search can still be on the blocks, nor an index point to them.
+         */
+        boolean freeable(long now) {
+            return now - time >= FREE_MEMORY_DELAY_MS * 1000000L && (map == null || map.swept > started);
+        }
+
+        void free() {
+            for (int i = 0; i < count; i++) {
+                long block = blocks[i];
+                if (!marked(block))
+                    free(block);
+                else {
+                    long last = blocks[++i];
+                    for (long n = unmarked(block);;) {
+                        long f = unmarked(UNSAFE.getLong(n + NEXT));
+                        free(n);
+                        if (n == last)
+                            break;
+                        n = f;
+                    }
+                }
+            }
+        }
+
+        private static void free(long block) {
+            UNSAFE.freeMemory(block);
+
+            if (STATS)
+                _allocations.decrementAndGet();
+        }
+    }
+
+    private static final ThreadLocal<Retired> retiring = new ThreadLocal<Retired>() {
+
+        @Override
+        protected Retired initialValue() {
+            Retired batch = new Retired();
+            partial.put(Thread.currentThread(), batch);
+            return batch;
+        }
+    };
+
+    private static final ConcurrentLinkedQueue<Retired> retired = new ConcurrentLinkedQueue<Retired>();
+
+    /**
+     * Batch being filled by each thread which retired blocks, so that reclaim can queue
+     * those of threads which exited before filling or flushing them.
+     */
+    private static final ConcurrentHashMap<Thread, Retired> partial = new ConcurrentHashMap<Thread, Retired>();
+
+    private static void renew() {
+        Retired batch = new Retired();
+        retiring.set(batch);
+        partial.put(Thread.currentThread(), batch);
+    }
+
+    /**
+     * Queues the batch of the current thread even if not full, so that it does not wait
+     * for more blocks to be freed, and frees batches retired long enough ago.
+     */
+    static void flush() {
+        Retired batch = retiring.get();
+        if (batch.count != 0) {
+            batch.time = System.nanoTime();
+            retired.add(batch);
+            renew();
+        }
+        reclaim();
+    }
+
+    /**
+     * Queues batches of threads which exited, and frees batches retired long enough ago,
+     * and whose map swept indexes since if they were unlinked while it deferred.
+     */
+    static void reclaim() {
+        long now = System.nanoTime();
+        for (Map.Entry<Thread, Retired> entry : partial.entrySet()) {
+            // Termination happens-before isAlive returns false, so its adds are visible
+            if (!entry.getKey().isAlive() && partial.remove(entry.getKey(), entry.getValue())) {
+                Retired batch = entry.getValue();
+                if (batch.count != 0) {
+                    batch.time = now;
+                    retired.add(batch);
+                }
+            }
+        }
+        for (Retired batch : retired) {
+            if (now - batch.time < FREE_MEMORY_DELAY_MS * 1000000L)
+                return;
+            if (batch.freeable(now) && retired.remove(batch))
+                batch.free();
+        }
     }
 
     /**
@@ -370,6 +634,10 @@ public final class OffHeap {
                 if (r != 0) {
                     long n = node(r);
                     if (value(n) == 0) {
+                        if (deferring()) {
+                            r = right(r); // Skip, left to maintenance
+                            continue;
+                        }
                         if (!unlink(q, r))
                             break; // restart
                         r = right(q); // reread r
@@ -391,6 +659,148 @@ public final class OffHeap {
         }
     }
 
+    /**
+     * Number of slots in an index path. Levels only grow one at a time from the 31
+     * randomLevel can return, so 32 is the highest. Slot 0 is unused, or holds the
+     * base-level predecessor for fingers.
+     */
+    private static final int PATH_LENGTH = 33;
+
+    /**
+     * Returns the lowest level at which path brackets key, i.e. path[j] still precedes
+     * key and its successor does not, or 0 if none up to top. For paths recorded during
+     * the current operation, e.g. getAll's lanes.
+     */
+    private static int resume(byte[] key, long[] path, int top) {
+        return resume(key, path, null, top, 0);
+    }
+
+    /**
+     * Same, for a finger. Slots recorded more than half the reclamation delay before now
+     * might be freed, so they end the walk.
+     */
+    private static int resume(byte[] key, long[] path, long[] times, int top, long now) {
+        for (int j = 1; j <= top; j++) {
+            long p = path[j];
+            if (p == 0 || (times != null && now - times[j] > FREE_MEMORY_DELAY_MS * 1000000L / 2))
+                return 0;
+            long pn = node(p);
+            long v = value(pn);
+            if (v == 0 || (v != BASE_HEADER && compare(key, pn) <= 0))
+                continue;
+            long r = right(p);
+            if (r == 0 || compare(key, node(r)) <= 0)
+                return j;
+        }
+        return 0;
+    }
+
+    /**
+     * Search finger, remembers where the last search of a thread ended so that the next
+     * one can start from there if its key is close, see findPredecessor(key, finger).
+     * Useful when successive keys are close, e.g. scans mixed with updates. Must not be
+     * shared between threads.
+     */
+    public static final class Finger {
+
+        /**
+         * Index path of the last search, and its base-level predecessor in slot 0.
+         */
+        final long[] path = new long[PATH_LENGTH];
+
+        /**
+         * When each slot was last recorded, i.e. known reachable. A search that
+         * resumes low only rewrites the slots below, so the ones above age.
+         */
+        final long[] times = new long[PATH_LENGTH];
+
+        OffHeap map;
+
+        long time;
+
+        /**
+         * Records in the path were reachable at the last use. If older than half the
+         * reclamation delay they might get freed while in use, so start over.
+         */
+        final void enter(OffHeap owner) {
+            long now = System.nanoTime();
+            if (map != owner || now - time > FREE_MEMORY_DELAY_MS * 1000000L / 2) {
+                Arrays.fill(path, 0);
+                map = owner;
+            }
+            time = now;
+        }
+    }
+
+    /**
+     * Variant of findPredecessor starting from a finger, or from the head if null. If the
+     * finger's base-level predecessor still precedes key, and its successor does not, it
+     * is returned as is. Otherwise the lowest recorded index that brackets key is where
+     * the previous and current searches diverge, so the descent resumes from there, for
+     * O(log d) instead of O(log n) steps at distance d. Starting from any index whose node
+     * precedes key is correct since the result is only a hint for the base-level loops,
+     * which detect deleted predecessors and restart. Records of deleted nodes are not
+     * reused, and unlink failures restart from the head, like findPredecessor.
+     */
+    private final long findPredecessor(byte[] key, Finger finger) {
+        if (finger == null)
+            return findPredecessor(key);
+        long[] path = finger.path;
+        long b = path[0];
+        if (b != 0) {
+            long v = value(b);
+            if (v != 0 && (v == BASE_HEADER || compare(key, b) > 0)) {
+                long n = unmarked(next(b));
+                if (n == 0 || compare(key, n) <= 0)
+                    return b;
+            }
+        }
+        long h = head;
+        long now = finger.time;
+        int j = resume(key, path, finger.times, level(h), now);
+        long q;
+        if (j != 0)
+            q = path[j];
+        else {
+            q = h;
+            j = level(h);
+        }
+        long r = right(q);
+        for (;;) {
+            if (r != 0) {
+                long n = node(r);
+                if (value(n) == 0) {
+                    if (deferring()) {
+                        r = right(r); // Skip, left to maintenance
+                        continue;
+                    }
+                    if (!unlink(q, r)) { // restart from head
+                        q = h = head;
+                        j = level(h);
+                        r = right(q);
+                        continue;
+                    }
+                    r = right(q); // reread r
+                    continue;
+                }
+                if (compare(key, n) > 0) {
+                    q = r;
+                    r = right(r);
+                    continue;
+                }
+            }
+            path[j] = q;
+            finger.times[j] = now;
+            long d = down(q);
+            if (d != 0) {
+                q = d;
+                r = right(d);
+                j--;
+            } else
+                return path[0] = node(q);
+        }
+    }
+
     /**
      * Returns node holding key or null if no such, clearing out any deleted nodes seen
      * along the way. Repeatedly traverses at base-level looking for key starting at
@@ -420,13 +830,21 @@ public final class OffHeap {
      * @return node holding key, or null if no such
      */
     private final long findNode(byte[] key) {
-        for (;;) {
-            long b = findPredecessor(key);
+        return findNode(key, null);
+    }
+
+    private final long findNode(byte[] key, Finger finger) {
+        for (int attempts = 0;; attempts++) {
+            if (attempts != 0)
+                restart(Site.FIND, attempts);
+            long b = findPredecessor(key, finger);
             long n = next(b);
             for (;;) {
                 if (n == 0)
                     return 0;
                 long nu = unmarked(n);
+                if (nu == 0) // b is deleted and was last
+                    break;
                 long f = next(nu);
                 if (n != next(b)) // inconsistent read
                     break;
@@ -453,16 +871,18 @@ public final class OffHeap {
      * 
      * @param okey
      *            the key
+     * @param finger
+     *            finger to start from, or null
      * @return the value, or null if absent
      */
-    private final long doGet(byte[] key) {
+    private final long doGet(byte[] key, Finger finger) {
         /*
          * Loop needed here and elsewhere in case value field goes null just as it is
          * about to be returned, in which case we lost a race with a deletion, so must
          * retry.
          */
         for (;;) {
-            long n = findNode(key);
+            long n = findNode(key, finger);
             if (n == 0)
                 return 0;
             long v = value(n);
@@ -483,15 +903,21 @@ public final class OffHeap {
      *            the value that must be associated with key
      * @param onlyIfAbsent
      *            if should not insert if already present
+     * @param finger
+     *            finger to start from, or null
      * @return the old value, or null if newly inserted
      */
-    private final long doPut(byte[] key, long value, boolean onlyIfAbsent) {
-        for (;;) {
-            long b = findPredecessor(key);
+    private final long doPut(byte[] key, long value, boolean onlyIfAbsent, Finger finger) {
+        for (int attempts = 0;; attempts++) {
+            if (attempts != 0)
+                restart(Site.PUT, attempts);
+            long b = findPredecessor(key, finger);
             long n = next(b);
             for (;;) {
                 if (n != 0) {
                     long nu = unmarked(n);
+                    if (nu == 0) // b is deleted and was last
+                        break;
                     long f = next(nu);
                     if (n != next(b)) // inconsistent read
                         break;
@@ -509,10 +935,12 @@ public final class OffHeap {
                         continue;
                     }
                     if (c == 0) {
-                        if (onlyIfAbsent || casValue(n, v, value))
+                        if (onlyIfAbsent)
                             return v;
-                        else
+                        if (!casValue(n, v, value))
                             break; // restart if lost race to replace value
+                        publish(ChangeLog.PUT, key, v, value);
+                        return v;
                     }
                     // else c < 0; fall through
                 }
@@ -520,6 +948,7 @@ public final class OffHeap {
                 long z = newNode(key, value, n);
                 if (!casNext(b, n, z))
                     break; // restart if lost race to append to b
+                publish(ChangeLog.PUT, key, 0, value);
                 int level = randomLevel();
                 if (level > 0)
                     insertIndex(z, level);
@@ -529,24 +958,123 @@ public final class OffHeap {
     }
 
     /**
-     * Returns a random level for inserting a new node. Hardwired to k=1, p=0.5, max 31
-     * (see above and Pugh's "Skip List Cookbook", sec 3.4). This uses the simplest of the
-     * generators described in George Marsaglia's "Xorshift RNGs" paper. This is not a
-     * high-quality generator but is acceptable here.
+     * Highest level randomLevel returns.
+     */
+    static final int MAX_LEVEL = 31;
+
+    /**
+     * Default probability of growing a tower by one more level, see randomLevel.
+     */
+    public static final double DEFAULT_P = 0.5;
+
+    /**
+     * Value of p for which it adapts to the workload, see OffHeap(boolean, double, int).
+     */
+    public static final double ADAPTIVE = 0;
+
+    /**
+     * Bounds of p in adaptive mode.
+     */
+    private static final double MIN_P = 0.125, MAX_P = 0.5;
+
+    /**
+     * Inserts between two adjustments of p in adaptive mode, minus one, on average.
+     */
+    private static final int ADAPT = 1023;
+
+    /**
+     * Returns a random level for inserting a new node. A node gets a first level with
+     * probability p / 2, and each further one with probability p, up to maxLevel. With
+     * the default p = 0.5, a quarter of the nodes are indexed like in
+     * ConcurrentSkipListMap (see Pugh's "Skip List Cookbook", sec 3.4), and a map has
+     * p / 2 / (1 - p) index records per node. This uses the simplest of the generators
+     * described in George Marsaglia's "Xorshift RNGs" paper. This is not a high-quality
+     * generator but is acceptable here.
      */
     private final int randomLevel() {
-        int x = randomSeed;
-        x ^= x << 13;
-        x ^= x >>> 17;
-        randomSeed = x ^= x << 5;
-        if ((x & 0x80000001) != 0) // test highest and lowest bits
+        int x = nextRandom();
+        if (operations != null) {
+            count(INSERTS, 1);
+            if ((x & ADAPT) == 0)
+                adapt();
+        }
+        int threshold = this.threshold;
+        if (x >>> 1 >= threshold >>> 1)
             return 0;
         int level = 1;
-        while (((x >>>= 1) & 1) != 0)
+        while (level < maxLevel && nextRandom() >>> 1 < threshold)
             ++level;
         return level;
     }
 
+    private final int nextRandom() {
+        int x = randomSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        return randomSeed = x ^= x << 5;
+    }
+
+    /**
+     * Probability p scaled to 2^31.
+     */
+    private static int threshold(double p) {
+        return (int) Math.min(p * 2147483648.0, Integer.MAX_VALUE);
+    }
+
+    /* ---------------- Adaptive density -------------- */
+
+    private static final int READS = 0, INSERTS = 1;
+
+    /**
+     * Counts reads or inserts on the stripe of the current thread. Not atomic, plain
+     * increments published lazily, as counts are only used to estimate a ratio and
+     * stripes are mostly written by one thread.
+     */
+    private final void count(int counter, int n) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        int i = stripe * STRIPE + counter;
+        operations.lazySet(i, operations.get(i) + n);
+    }
+
+    /**
+     * Sets p from the ratio of reads to inserts since the last adjustment, so that
+     * nodes are indexed more when reads dominate, where shorter searches pay off, and
+     * less when inserts do, where index records are mostly a cost. One read per insert
+     * gives p = 0.25, p doubles every four times more reads, within MIN_P and MAX_P.
+     */
+    private final void adapt() {
+        long reads = 0, inserts = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            reads += operations.get(i * STRIPE + READS);
+            inserts += operations.get(i * STRIPE + INSERTS);
+        }
+        double ratio = (double) (reads - lastReads + 1) / (inserts - lastInserts + 1);
+        lastReads = reads;
+        lastInserts = inserts;
+        double p = Math.max(MIN_P, Math.min(MAX_P, 0.25 * Math.sqrt(ratio)));
+        threshold = threshold(p);
+    }
+
+    /**
+     * Current probability of growing towers, which changes over time in adaptive mode.
+     */
+    public double p() {
+        return threshold / 2147483648.0;
+    }
+
+    /**
+     * Bytes used by index records, including head indexes, walking all levels.
+     */
+    public long indexBytes() {
+        long count = 0, heads = 0;
+        for (long h = head; h != 0; h = down(h)) {
+            heads++;
+            for (long r = right(h); r != 0; r = right(r))
+                count++;
+        }
+        return count * (RIGHT + 8) + heads * (LEVEL + 4);
+    }
+
     /**
      * Creates and adds index nodes for the given node.
      * 
@@ -617,7 +1145,9 @@ public final class OffHeap {
         byte[] key = key(node(idx));
         // Similar to findPredecessor, but adding index nodes along
         // path to key.
-        for (;;) {
+        for (int attempts = 0;; attempts++) {
+            if (attempts != 0)
+                restart(Site.INDEX, attempts);
             int j = level(h);
             long q = h;
             long r = right(q);
@@ -680,16 +1210,22 @@ public final class OffHeap {
      *            the key
      * @param value
      *            if non-null, the value that must be associated with key
+     * @param finger
+     *            finger to start from, or null
      * @return the node, or null if not found
      */
-    private final long doRemove(byte[] key, long value) {
-        for (;;) {
-            long b = findPredecessor(key);
+    private final long doRemove(byte[] key, long value, Finger finger) {
+        for (int attempts = 0;; attempts++) {
+            if (attempts != 0)
+                restart(Site.REMOVE, attempts);
+            long b = findPredecessor(key, finger);
             long n = next(b);
             for (;;) {
                 if (n == 0)
                     return 0;
                 long nu = unmarked(n);
+                if (nu == 0) // b is deleted and was last
+                    break;
                 long f = next(nu);
                 if (n != next(b)) // inconsistent read
                     break;
@@ -712,10 +1248,10 @@ public final class OffHeap {
                     return 0;
                 if (!casValue(n, v, 0))
                     break;
+                publish(ChangeLog.REMOVE, key, v, 0);
                 if (!mark(n, f) || !casNext(b, n, f))
                     findNode(key); // Retry via findNode
-                else {
-                    onDelete(n);
+                else if (!onUnlink(n)) {
                     findPredecessor(key); // Clean index
                     if (right(head) == 0)
                         tryReduceLevel();
@@ -754,57 +1290,955 @@ public final class OffHeap {
             casHead(d, h); // try to backout
     }
 
-    /* ---------------- Constructors -------------- */
+    /* ---------------- Maintenance -------------- */
 
     /**
-     * Constructs a new, empty map, sorted according to the {@linkplain Comparable natural
-     * ordering} of the keys.
+     * Keys sampled by maintain to measure search paths.
      */
-    public OffHeap() {
-        initialize();
-    }
+    private static final int SAMPLES = 64;
 
     /**
-     * Returns the value to which the specified key is mapped, or {@code null} if this map
-     * contains no mapping for the key.
-     * <p>
-     * More formally, if this map contains a mapping from a key {@code k} to a value
-     * {@code v} such that {@code key} compares equal to {@code k} according to the map's
-     * ordering, then this method returns {@code v}; otherwise it returns {@code null}.
-     * (There can be at most one such mapping.)
-     * 
-     * @throws ClassCastException
-     *             if the specified key cannot be compared with the keys currently in the
-     *             map
-     * @throws NullPointerException
-     *             if the specified key is null
+     * Searches take about 1.85 * log2(n) steps on average with towers from randomLevel
+     * and p = 0.5, and 1.4 * log2(n) with ideal ones. Indexes are rebuilt when the
+     * measured average exceeds this many times log2(n), scaled by searchCost for other
+     * values of p, well above the random case which varies a lot from one sample to
+     * the next.
      */
-    public long get(byte[] key) {
-        return doGet(key);
-    }
+    private static final double DEGRADED = 2.5;
 
     /**
-     * Associates the specified value with the specified key in this map. If the map
-     * previously contained a mapping for the key, the old value is replaced.
-     * 
-     * @param key
-     *            key with which the specified value is to be associated
-     * @param value
-     *            value to be associated with the specified key
-     * @return the previous value associated with the specified key, or <tt>null</tt> if
-     *         there was no mapping for the key
-     * @throws ClassCastException
-     *             if the specified key cannot be compared with the keys currently in the
-     *             map
-     * @throws NullPointerException
-     *             if the specified key or value is null
+     * Below this many live nodes, search paths are not measured.
      */
-    public long put(byte[] key, long value) {
-        if (value == 0)
-            throw new IllegalArgumentException();
-
-        return doPut(key, value, false);
-    }
+    private static final long MEASURED = 1 << 10;
+
+    /**
+     * How long levels replaced by rebuildIndex are kept before being retired.
+     */
+    static final long REPLACED_MS = FREE_MEMORY_DELAY_MS / 4;
+
+    /**
+     * Cleans the whole map in one pass, off the path of user operations. Deleted nodes
+     * still linked at the base level are marked and unlinked, then indexes to deleted
+     * nodes are unlinked level by level before those nodes are retired, empty levels are
+     * removed, and memory retired by the calling thread is queued for reclamation. Safe
+     * to run concurrently with any operation, and with itself. In single writer mode,
+     * only the writer can call it.
+     * <p>
+     * Search paths are measured on keys sampled along the way, and if they have grown
+     * too long compared to the number of live nodes, e.g. after deletions that were not
+     * spread evenly, indexes are rebuilt, see rebuildIndex.
+     *
+     * @return the number of nodes and indexes unlinked
+     */
+    public long maintain() {
+        long pass = sweeps.incrementAndGet();
+        long count = 0, live = 0;
+        byte[] key = new byte[KEY_LENGTH];
+        byte[][] samples = new byte[SAMPLES][];
+        int sampled = 0;
+        long[] unlinked = new long[64]; // Retired once their indexes are swept too
+        int unlinks = 0;
+        for (long b = node(head);;) {
+            long n = next(b);
+            if (n == 0)
+                break;
+            if (marked(n)) { // b is deleted, resume before it
+                UNSAFE.copyMemory(null, b + KEY, key, BYTES, KEY_LENGTH);
+                b = findPredecessor(key);
+                continue;
+            }
+            long f = next(n);
+            if (value(n) == 0) {
+                if (!marked(f))
+                    mark(n, f);
+                else if (casNext(b, n, unmarked(f))) {
+                    if (unlinks == unlinked.length)
+                        unlinked = Arrays.copyOf(unlinked, unlinks * 2);
+                    unlinked[unlinks++] = n;
+                    count++;
+                }
+                continue;
+            }
+            if (sampled < SAMPLES)
+                samples[sampled++] = key(n);
+            else { // Reservoir sampling, keys spread over the whole map
+                long i = ThreadLocalRandom.current().nextLong(live + 1);
+                if (i < SAMPLES)
+                    samples[(int) i] = key(n);
+            }
+            live++;
+            b = n;
+        }
+        count += sweepIndexes();
+        for (int i = 0; i < unlinks; i++)
+            onDelete(unlinked[i]);
+        synchronized (this) {
+            if (pass > swept)
+                swept = pass;
+        }
+        for (long h = head;; h = head) {
+            tryReduceLevel();
+            if (head == h)
+                break;
+        }
+        long steps = 0;
+        for (int i = 0; i < sampled; i++)
+            steps += searchSteps(samples[i]);
+        this.live = live;
+        searchPath = sampled != 0 ? (double) steps / sampled : 0;
+        retireReplaced();
+        double expected = Math.log(live) / Math.log(2) * searchCost(p());
+        if (live >= MEASURED && searchPath > DEGRADED * expected)
+            rebuildIndex();
+        flush();
+        return count;
+    }
+
+    /**
+     * Average number of steps, right or down in index levels and forward in the base
+     * level, of searches for keys sampled by the last maintain, 0 if not run yet.
+     */
+    public double searchPath() {
+        return searchPath;
+    }
+
+    /**
+     * Pugh's expected search cost, (1 / p) * log(n) / log(1 / p), relative to p = 0.5.
+     */
+    private static double searchCost(double p) {
+        return 1 / p / Math.log(1 / p) * Math.log(2) / 2;
+    }
+
+    /**
+     * Unlinks indexes to deleted nodes at all levels.
+     *
+     * @return the number of indexes unlinked
+     */
+    private final long sweepIndexes() {
+        long count = 0;
+        for (long h = head; h != 0; h = down(h)) {
+            long q = h;
+            for (long r = right(q); r != 0;) {
+                if (!indexesDeletedNode(r)) {
+                    q = r;
+                    r = right(r);
+                    continue;
+                }
+                if (unlink(q, r))
+                    count++;
+                else if (indexesDeletedNode(q)) // restart level
+                    q = h;
+                r = right(q);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Number of steps findPredecessorReadOnly takes for key, plus those of the base
+     * level up to key.
+     */
+    private final long searchSteps(byte[] key) {
+        long steps = 0;
+        long q = head;
+        long r = right(q);
+        for (;; steps++) {
+            if (r != 0) {
+                long n = node(r);
+                if (value(n) == 0) {
+                    r = right(r);
+                    continue;
+                }
+                if (compare(key, n) > 0) {
+                    q = r;
+                    r = right(r);
+                    continue;
+                }
+            }
+            long d = down(q);
+            if (d == 0)
+                break;
+            q = d;
+            r = right(d);
+        }
+        for (long n = unmarked(next(node(q))); n != 0 && compare(key, n) > 0; n = unmarked(next(n)))
+            steps++;
+        return steps;
+    }
+
+    /**
+     * Replaces all index levels with new ones, built with ideal tower heights for the
+     * live nodes, like Builder does but spaced by 1 / p, i.e. a level every log2(1 / p)
+     * trailing zero bits of the node's position, rounded. Nodes are walked once at the
+     * base level, and the new levels are published by a single CAS on head, so readers
+     * and writers are never blocked. Those already searching the old levels finish
+     * there, and old levels are only retired by a maintain pass REPLACED_MS later, when
+     * no search can still be on them. Towers linked to old levels meanwhile are lost,
+     * their nodes stay in the base level. Only called by maintain, and tests, so that
+     * the old levels always get retired by a later pass. In single writer mode, only the
+     * writer can call it.
+     *
+     * @return false if head changed during the rebuild, or the previous one's levels
+     *         are not retired yet
+     */
+    final synchronized boolean rebuildIndex() {
+        if (replaced != 0)
+            return false;
+        long h = head;
+        long header = node(h);
+        long[] firsts = new long[PATH_LENGTH], lasts = new long[PATH_LENGTH];
+        long count = 0;
+        int levels = 1;
+        int bits = Math.max(1, (int) Math.round(Math.log(1 / p()) / Math.log(2)));
+        for (long n = unmarked(next(header)); n != 0; n = unmarked(next(n))) {
+            if (value(n) == 0)
+                continue;
+            int level = Math.min(Long.numberOfTrailingZeros(++count) / bits, maxLevel);
+            long idx = 0;
+            for (int i = 1; i <= level; i++) {
+                idx = newIndex(n, idx, 0);
+                if (lasts[i] == 0)
+                    firsts[i] = idx;
+                else
+                    UNSAFE.putLong(lasts[i] + RIGHT, idx);
+                lasts[i] = idx;
+            }
+            if (level > levels)
+                levels = level;
+        }
+        long newh = newHeadIndex(header, 0, firsts[1], 1);
+        for (int i = 2; i <= levels; i++)
+            newh = newHeadIndex(header, newh, firsts[i], i);
+        if (!casHead(h, newh)) { // Never published
+            freeLevels(newh, false);
+            return false;
+        }
+        replaced = h;
+        replacedTime = System.nanoTime();
+        sweepIndexes(); // Nodes deleted during the walk
+        return true;
+    }
+
+    /**
+     * Retires the levels replaced by rebuildIndex once no search can be on them.
+     */
+    private synchronized void retireReplaced() {
+        if (replaced != 0 && System.nanoTime() - replacedTime > REPLACED_MS * 1000000L) {
+            freeLevels(replaced, true);
+            replaced = 0;
+        }
+    }
+
+    /**
+     * Frees or retires all index records reachable from head index h.
+     */
+    private static void freeLevels(long h, boolean retire) {
+        for (long q = h; q != 0;) {
+            long d = down(q);
+            for (long r = right(q); r != 0;) {
+                long next = right(r);
+                if (retire)
+                    onDelete(r);
+                else
+                    Retired.free(r);
+                r = next;
+            }
+            if (retire)
+                onDelete(q);
+            else
+                Retired.free(q);
+            q = d;
+        }
+    }
+
+    /**
+     * Removals leave cleaning indexes and levels to maintain until the given time,
+     * nanoTime, 0 to clean again right away once removed from a Maintenance. Nodes
+     * unlinked meanwhile are freed only after a later pass swept their indexes, see
+     * onUnlink.
+     */
+    final void deferUntil(long time) {
+        deferUntil = time;
+    }
+
+    /**
+     * Added to a Maintenance, but not deferring yet, or anymore. Nodes unlinked are
+     * already held for a later pass, which covers removals that still deferred.
+     */
+    final void attach() {
+        long now = System.nanoTime();
+        deferUntil = now != 0 ? now : -1;
+    }
+
+    private final boolean deferring() {
+        long until = deferUntil;
+        return until != 0 && until - System.nanoTime() > 0;
+    }
+
+    /* ---------------- Contention -------------- */
+
+    /**
+     * What a thread does before restarting an operation after a failed CAS or an
+     * inconsistent read. Restarting right away is best when races are rare, but when
+     * many threads update around the same nodes they keep invalidating each other's
+     * predecessors, and waiting a little lets one of them through.
+     */
+    public enum Backoff {
+
+        /**
+         * Restarts right away.
+         */
+        NONE,
+
+        /**
+         * Waits one spin hint, Thread.onSpinWait if the runtime has it.
+         */
+        SPIN,
+
+        /**
+         * Waits a random number of spin hints, up to twice as many at each restart of
+         * the same operation, capped at MAX_BACKOFF. Randomness keeps threads that
+         * failed together from retrying together.
+         */
+        EXPONENTIAL
+    }
+
+    /**
+     * Places where operations restart after losing a race.
+     */
+    public enum Site {
+
+        /**
+         * doPut, failed to link a new node or replace a value, or met a deletion.
+         */
+        PUT,
+
+        /**
+         * doRemove, failed to clear a value, or met a deletion.
+         */
+        REMOVE,
+
+        /**
+         * findNode, read inconsistent links or met a deletion.
+         */
+        FIND,
+
+        /**
+         * addIndex, failed to link or unlink an index.
+         */
+        INDEX
+    }
+
+    /**
+     * Highest exponent of EXPONENTIAL backoff, up to 1024 spin hints.
+     */
+    private static final int MAX_BACKOFF = 10;
+
+    /**
+     * Counter stripes, one cache line each with a counter per site.
+     */
+    private static final int STRIPES = 16, STRIPE = 8;
+
+    /**
+     * Thread.onSpinWait, or null before Java 9.
+     */
+    private static final MethodHandle ON_SPIN_WAIT;
+
+    /**
+     * Read when spinning without ON_SPIN_WAIT, so that the loop is not removed.
+     */
+    private static volatile int spinWait;
+
+    public Backoff backoff() {
+        return backoff;
+    }
+
+    /**
+     * Sets the backoff of restarted operations, NONE by default.
+     */
+    public void backoff(Backoff value) {
+        if (value == null)
+            throw new NullPointerException();
+
+        backoff = value;
+    }
+
+    /**
+     * Number of restarts at site since creation. Counted on a stripe per thread, so
+     * the sum is only exact when no thread is writing.
+     */
+    public long restarts(Site site) {
+        long sum = 0;
+
+        for (int i = 0; i < STRIPES; i++)
+            sum += restarts.get(i * STRIPE + site.ordinal());
+
+        return sum;
+    }
+
+    /**
+     * Counts a restart and backs off before it.
+     * 
+     * @param count
+     *            number of restarts of the current operation, from 1
+     */
+    private final void restart(Site site, int count) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        restarts.getAndIncrement(stripe * STRIPE + site.ordinal());
+
+        switch (backoff) {
+            case NONE:
+                break;
+            case SPIN:
+                onSpinWait();
+                break;
+            case EXPONENTIAL:
+                int spins = ThreadLocalRandom.current().nextInt(1 << Math.min(count, MAX_BACKOFF));
+
+                for (int i = 0; i <= spins; i++)
+                    onSpinWait();
+
+                break;
+        }
+    }
+
+    private static void onSpinWait() {
+        if (ON_SPIN_WAIT == null) {
+            if (spinWait != 0)
+                spinWait = 0;
+        } else {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /* ---------------- Single writer -------------- */
+
+    /*
+     * With a single writer, links and values can be published with ordered stores,
+     * which only keep earlier stores from being reordered after them, instead of CAS.
+     * Deletion doesn't need marked pointers either, since nothing can be inserted after
+     * a node while it is unlinked. A deleted node gets a zero value, is unlinked from
+     * the base level, and its indexes from each level during the same operation, so
+     * the writer never meets deleted nodes. No other thread can change the path of its
+     * search either, so towers are linked and unlinked from it without a second
+     * descent. Readers never write. They can still reach a
+     * node after it is unlinked, whose key stays valid and whose next pointer still
+     * leads forward into the list, until it is freed after the reclamation delay.
+     */
+
+    /**
+     * Like findPredecessor, but without unlinking anything. Indexes to deleted nodes
+     * are stepped over instead of moved onto, so that the base-level search never starts
+     * from a node that was already deleted, whose next pointer could miss later
+     * insertions. Used by readers in single writer mode and with read-only lookups.
+     */
+    private final long findPredecessorReadOnly(byte[] key) {
+        long q = head;
+        long r = right(q);
+        for (;;) {
+            if (r != 0) {
+                long n = node(r);
+                if (value(n) == 0) {
+                    r = right(r); // Skip, don't unlink
+                    continue;
+                }
+                if (compare(key, n) > 0) {
+                    q = r;
+                    r = right(r);
+                    continue;
+                }
+            }
+            long d = down(q);
+            if (d == 0)
+                return node(q);
+            q = d;
+            r = right(d);
+        }
+    }
+
+    /**
+     * Read-only get. Nodes with zero values are deleted and skipped, in case a live
+     * node for the same key follows. Next pointers of deleted nodes are followed like
+     * others, as in Herlihy and Shavit's wait-free contains, instead of helping to
+     * unlink them. The search never restarts.
+     */
+    private final long doGetReadOnly(byte[] key) {
+        long n = unmarked(next(findPredecessorReadOnly(key)));
+        while (n != 0) {
+            int c = compare(key, n);
+            if (c < 0)
+                return 0;
+            if (c == 0) {
+                long v = value(n);
+                if (v != 0)
+                    return v;
+            }
+            n = unmarked(next(n));
+        }
+        return 0;
+    }
+
+    /**
+     * Like findPredecessorReadOnly, but records the predecessor at each level in the
+     * writer's path, which no other thread can invalidate.
+     */
+    private final long findPredecessorSingle(byte[] key) {
+        long[] path = writerPath;
+        long q = head;
+        for (int j = level(q);;) {
+            long r = right(q);
+            if (r != 0 && compare(key, node(r)) > 0)
+                q = r;
+            else {
+                path[j] = q;
+                long d = down(q);
+                if (d == 0)
+                    return node(q);
+                q = d;
+                j--;
+            }
+        }
+    }
+
+    private final long doPutSingle(byte[] key, long value) {
+        long b = findPredecessorSingle(key);
+        long n = next(b);
+        while (n != 0) {
+            int c = compare(key, n);
+            if (c < 0)
+                break;
+            if (c == 0) {
+                long v = value(n);
+                UNSAFE.putOrderedLong(null, n + VALUE, value);
+                publish(ChangeLog.PUT, key, v, value);
+                return v;
+            }
+            b = n;
+            n = next(n);
+        }
+        long z = newNode(key, value, n);
+        UNSAFE.putOrderedLong(null, b + NEXT, z);
+        publish(ChangeLog.PUT, key, 0, value);
+        int level = randomLevel();
+        if (level > 0)
+            insertIndexSingle(z, level);
+        return 0;
+    }
+
+    /**
+     * Links the tower for node z bottom up after the recorded path, and adds a level
+     * on top if needed, already linked from its head index when published.
+     */
+    private final void insertIndexSingle(long z, int level) {
+        long h = head;
+        int max = level(h);
+        long idx = 0;
+        for (int j = 1; j <= Math.min(level, max); j++) {
+            long q = writerPath[j];
+            idx = newIndex(z, idx, right(q));
+            UNSAFE.putOrderedLong(null, q + RIGHT, idx);
+        }
+        if (level > max)
+            head = newHeadIndex(node(h), h, newIndex(z, idx, 0), max + 1);
+    }
+
+    /**
+     * Zeroes the value, which is when readers see the removal, then unlinks the node
+     * and its indexes after the recorded path and retires them.
+     */
+    private final long doRemoveSingle(byte[] key) {
+        long b = findPredecessorSingle(key);
+        long n = next(b);
+        while (n != 0) {
+            int c = compare(key, n);
+            if (c < 0)
+                return 0;
+            if (c == 0) {
+                long v = value(n);
+                UNSAFE.putOrderedLong(null, n + VALUE, 0);
+                UNSAFE.putOrderedLong(null, b + NEXT, next(n));
+                publish(ChangeLog.REMOVE, key, v, 0);
+                for (int j = 1, top = level(head); j <= top; j++) {
+                    long q = writerPath[j];
+                    long r = right(q);
+                    if (r == 0 || node(r) != n)
+                        break; // Top of the tower
+                    UNSAFE.putOrderedLong(null, q + RIGHT, right(r));
+                    onDelete(r);
+                }
+                onDelete(n);
+                if (right(head) == 0)
+                    tryReduceLevel();
+                return v;
+            }
+            b = n;
+            n = next(n);
+        }
+        return 0;
+    }
+
+    /* ---------------- Constructors -------------- */
+
+    /**
+     * Constructs a new, empty map, sorted according to the {@linkplain Comparable natural
+     * ordering} of the keys.
+     */
+    public OffHeap() {
+        this(false);
+    }
+
+    /**
+     * @param singleWriter
+     *            if only one thread, at a time and with proper handoff, calls put,
+     *            remove and removeRange. Writes then use ordered stores instead of CAS,
+     *            and reads never write to help them. Fingers are not used.
+     */
+    public OffHeap(boolean singleWriter) {
+        this(singleWriter, DEFAULT_P, MAX_LEVEL);
+    }
+
+    /**
+     * @param singleWriter
+     *            see OffHeap(boolean)
+     * @param p
+     *            probability that a tower grows one more level, see randomLevel. Lower
+     *            values use less memory for index records, e.g. 0.25 uses a third of
+     *            the default, and higher ones shorten searches. ADAPTIVE starts at 0.25
+     *            and tunes p to the ratio of reads to inserts, see adapt.
+     * @param maxLevel
+     *            highest level of towers, from 1 to 31
+     */
+    public OffHeap(boolean singleWriter, double p, int maxLevel) {
+        if (!(p == ADAPTIVE || (p > 0 && p < 1)) || maxLevel < 1 || maxLevel > MAX_LEVEL)
+            throw new IllegalArgumentException();
+        this.singleWriter = singleWriter;
+        writerPath = singleWriter ? new long[PATH_LENGTH] : null;
+        threshold = threshold(p == ADAPTIVE ? 0.25 : p);
+        this.maxLevel = maxLevel;
+        operations = p == ADAPTIVE ? new AtomicLongArray(STRIPES * STRIPE) : null;
+        initialize();
+    }
+
+    /**
+     * Publishes a skiplist built by a Builder.
+     */
+    private OffHeap(long head) {
+        randomSeed = seedGenerator.nextInt() | 0x0100; // ensure nonzero
+        singleWriter = false;
+        writerPath = null;
+        threshold = threshold(DEFAULT_P);
+        maxLevel = MAX_LEVEL;
+        operations = null;
+        this.head = head;
+    }
+
+    public boolean readOnlyLookups() {
+        return readOnlyLookups;
+    }
+
+    /**
+     * If true, get and cursors never write to shared memory. By default, like in
+     * ConcurrentSkipListMap, a search that meets a deleted node helps unlink it, which
+     * takes cache lines in exclusive state even for pure reads, and on read-mostly
+     * workloads makes every core invalidate the others' copies of hot nodes. Read-only
+     * lookups step over deleted nodes instead, fingers are not used, and cleanup is
+     * left to writers, whose searches still help, or to a maintenance thread. Deleted
+     * nodes can then stay in the way of reads longer. Always the case in single writer
+     * mode.
+     */
+    public void readOnlyLookups(boolean value) {
+        readOnlyLookups = value;
+    }
+
+    public ChangeLog changeLog() {
+        return changes;
+    }
+
+    /**
+     * Attaches a log to which puts, replaces and removes which change the map publish
+     * a record, or detaches it if null. Writes in progress may or may not publish.
+     */
+    public void changeLog(ChangeLog log) {
+        changes = log;
+    }
+
+    private void publish(int op, byte[] key, long previous, long value) {
+        ChangeLog log = changes;
+        if (log != null)
+            log.publish(op, key, previous, value);
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or {@code null} if this map
+     * contains no mapping for the key.
+     * <p>
+     * More formally, if this map contains a mapping from a key {@code k} to a value
+     * {@code v} such that {@code key} compares equal to {@code k} according to the map's
+     * ordering, then this method returns {@code v}; otherwise it returns {@code null}.
+     * (There can be at most one such mapping.)
+     * 
+     * @throws ClassCastException
+     *             if the specified key cannot be compared with the keys currently in the
+     *             map
+     * @throws NullPointerException
+     *             if the specified key is null
+     */
+    public long get(byte[] key) {
+        if (operations != null)
+            count(READS, 1);
+
+        if (singleWriter || readOnlyLookups)
+            return doGetReadOnly(key);
+
+        return doGet(key, null);
+    }
+
+    /**
+     * Like get, but starts searching from where the last operation using this finger
+     * ended, which is faster if keys are close.
+     */
+    public long get(byte[] key, Finger finger) {
+        if (operations != null)
+            count(READS, 1);
+
+        if (singleWriter || readOnlyLookups)
+            return doGetReadOnly(key);
+
+        finger.enter(this);
+        return doGet(key, finger);
+    }
+
+    /**
+     * Number of searches getAll runs side by side.
+     */
+    private static final int LANES = 16;
+
+    /**
+     * Looks up a batch of keys, storing the value for keys[i], or 0 if absent, in
+     * results[i]. Keys are sorted and split in contiguous runs, one per lane. Each lane
+     * resumes from the index path of its previous search instead of the head, which
+     * avoids most of the upper levels, and lanes are advanced one hop at a time in turn,
+     * so that the cache misses of independent searches overlap instead of being paid
+     * one after the other. Lanes only read, deleted nodes are skipped over instead of
+     * helped, cleanup is left to writers. The only allocations are per batch.
+     *
+     * @param keys
+     *            the keys, in any order, duplicates allowed
+     * @param results
+     *            receives the values, at least as long as keys
+     * @throws NullPointerException
+     *             if a key is null
+     */
+    public void getAll(byte[][] keys, long[] results) {
+        int count = keys.length;
+        if (results.length < count)
+            throw new IllegalArgumentException();
+        if (operations != null)
+            count(READS, count);
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        sort(keys, order, 0, count);
+
+        int lanes = Math.min(LANES, count);
+        int[] pos = new int[lanes], end = new int[lanes], level = new int[lanes];
+        long[] q = new long[lanes], r = new long[lanes];
+        long[][] paths = new long[lanes][PATH_LENGTH];
+        long h = head;
+        int top = level(h);
+        int active = 0;
+        for (int l = 0; l < lanes; l++) {
+            pos[l] = (int) ((long) count * l / lanes);
+            end[l] = (int) ((long) count * (l + 1) / lanes);
+            if (pos[l] < end[l]) {
+                q[l] = h;
+                r[l] = right(h);
+                level[l] = top;
+                active++;
+            }
+        }
+
+        long[] nodes = new long[lanes];
+        long touched = 0;
+        while (active > 0) {
+            /*
+             * Load what each lane needs next before any lane branches on it. Those loads
+             * do not depend on each other, so their misses are served in parallel, and
+             * the steps below then mostly hit the cache.
+             */
+            for (int l = 0; l < lanes; l++)
+                if (pos[l] != end[l])
+                    nodes[l] = level[l] > 0 ? r[l] != 0 ? node(r[l]) : 0 : r[l];
+            for (int l = 0; l < lanes; l++)
+                if (nodes[l] != 0)
+                    touched += UNSAFE.getLong(nodes[l] + KEY);
+
+            for (int l = 0; l < lanes; l++) {
+                if (pos[l] == end[l])
+                    continue;
+                byte[] key = keys[order[pos[l]]];
+                long result;
+                if (level[l] > 0) { // Index levels
+                    long ri = r[l];
+                    if (ri != 0) {
+                        long n = nodes[l];
+                        if (value(n) == 0) {
+                            r[l] = right(ri); // Skip, don't unlink
+                            continue;
+                        }
+                        if (compare(key, n) > 0) {
+                            q[l] = ri;
+                            r[l] = right(ri);
+                            continue;
+                        }
+                    }
+                    paths[l][level[l]] = q[l];
+                    long d = down(q[l]);
+                    if (d != 0) {
+                        q[l] = d;
+                        r[l] = right(d);
+                        level[l]--;
+                    } else {
+                        r[l] = unmarked(next(node(q[l])));
+                        level[l] = 0;
+                    }
+                    continue;
+                } else { // Base level
+                    long n = r[l];
+                    if (n != 0) {
+                        long v = value(n);
+                        int c = compare(key, n);
+                        if (v == 0 || c > 0) {
+                            r[l] = unmarked(next(n));
+                            continue;
+                        }
+                        result = c == 0 ? v : 0;
+                    } else
+                        result = 0;
+                }
+
+                // Lane found its key, start the next one from its path
+                results[order[pos[l]]] = result;
+                while (++pos[l] < end[l] && compare(keys[order[pos[l]]], key) == 0)
+                    results[order[pos[l]]] = result;
+                if (pos[l] == end[l]) {
+                    active--;
+                    continue;
+                }
+                key = keys[order[pos[l]]];
+                int j = resume(key, paths[l], top);
+                q[l] = j != 0 ? paths[l][j] : h;
+                r[l] = right(q[l]);
+                level[l] = j != 0 ? j : top;
+            }
+        }
+        sink = touched;
+    }
+
+    /**
+     * Keeps getAll's prefetching loads from being optimized away.
+     */
+    @SuppressWarnings("unused")
+    private static long sink;
+
+    static int compare(byte[] a, byte[] b) {
+        assert a.length == KEY_LENGTH && b.length == KEY_LENGTH;
+
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Sorts a permutation of keys, [from, to), quicksort with insertion sort for small
+     * ranges. Keys themselves are left in place.
+     */
+    static void sort(byte[][] keys, int[] order, int from, int to) {
+        while (to - from > 16) {
+            int m = (from + to) >>> 1;
+            byte[] pivot = keys[order[m]];
+            int i = from, j = to - 1;
+            while (i <= j) {
+                while (compare(keys[order[i]], pivot) < 0)
+                    i++;
+                while (compare(keys[order[j]], pivot) > 0)
+                    j--;
+                if (i <= j) {
+                    int t = order[i];
+                    order[i++] = order[j];
+                    order[j--] = t;
+                }
+            }
+            // Recurse on smaller side to bound stack depth
+            if (j - from < to - i) {
+                sort(keys, order, from, j + 1);
+                from = i;
+            } else {
+                sort(keys, order, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            int t = order[i];
+            int j = i - 1;
+            while (j >= from && compare(keys[order[j]], keys[t]) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = t;
+        }
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map. If the map
+     * previously contained a mapping for the key, the old value is replaced.
+     * 
+     * @param key
+     *            key with which the specified value is to be associated
+     * @param value
+     *            value to be associated with the specified key
+     * @return the previous value associated with the specified key, or <tt>null</tt> if
+     *         there was no mapping for the key
+     * @throws ClassCastException
+     *             if the specified key cannot be compared with the keys currently in the
+     *             map
+     * @throws NullPointerException
+     *             if the specified key or value is null
+     */
+    public long put(byte[] key, long value) {
+        if (value == 0)
+            throw new IllegalArgumentException();
+
+        if (singleWriter)
+            return doPutSingle(key, value);
+
+        return doPut(key, value, false, null);
+    }
+
+    /**
+     * Like put, but starts searching from where the last operation using this finger
+     * ended, which is faster if keys are close.
+     */
+    public long put(byte[] key, long value, Finger finger) {
+        if (value == 0)
+            throw new IllegalArgumentException();
+
+        if (singleWriter)
+            return doPutSingle(key, value);
+
+        finger.enter(this);
+        return doPut(key, value, false, finger);
+    }
 
     /**
      * Removes the mapping for the specified key from this map if present.
@@ -819,8 +2253,912 @@ public final class OffHeap {
      * @throws NullPointerException
      *             if the specified key is null
      */
-    public long remove(byte[] key) {
-        return doRemove(key, 0);
+    public long remove(byte[] key) {
+        if (singleWriter)
+            return doRemoveSingle(key);
+
+        return doRemove(key, 0, null);
+    }
+
+    /**
+     * Like remove, but starts searching from where the last operation using this finger
+     * ended, which is faster if keys are close.
+     */
+    public long remove(byte[] key, Finger finger) {
+        if (singleWriter)
+            return doRemoveSingle(key);
+
+        finger.enter(this);
+        return doRemove(key, 0, finger);
+    }
+
+    /**
+     * Puts value only if key is not mapped.
+     *
+     * @return the current value, or 0 if value was put
+     */
+    public long putIfAbsent(byte[] key, long value) {
+        if (value == 0)
+            throw new IllegalArgumentException();
+
+        if (singleWriter) {
+            long v = doGetReadOnly(key);
+            return v != 0 ? v : doPutSingle(key, value);
+        }
+
+        return doPut(key, value, true, null);
+    }
+
+    /**
+     * Replaces the value of key only if currently mapped to expect.
+     *
+     * @return true if the value was replaced
+     */
+    public boolean replace(byte[] key, long expect, long update) {
+        if (expect == 0 || update == 0)
+            throw new IllegalArgumentException();
+
+        if (singleWriter) {
+            if (doGetReadOnly(key) != expect)
+                return false;
+            doPutSingle(key, update);
+            return true;
+        }
+
+        for (;;) {
+            long n = findNode(key);
+            if (n == 0)
+                return false;
+            long v = value(n);
+            if (v != 0) {
+                if (v != expect)
+                    return false;
+                if (casValue(n, v, update)) {
+                    publish(ChangeLog.PUT, key, v, update);
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes key only if currently mapped to value.
+     *
+     * @return true if the mapping was removed
+     */
+    public boolean remove(byte[] key, long value) {
+        if (value == 0)
+            throw new IllegalArgumentException();
+
+        if (singleWriter) {
+            if (doGetReadOnly(key) != value)
+                return false;
+            doRemoveSingle(key);
+            return true;
+        }
+
+        return doRemove(key, value, null) != 0;
+    }
+
+    /**
+     * Removes all mappings with keys from lo inclusive to hi exclusive. Nodes are deleted
+     * and marked in one sweep, then unlinked together by a single CAS on the predecessor
+     * of the run, instead of searching for each of them. Index levels are then cleaned in
+     * one pass over the range, and the run is retired as a whole. Not atomic, mappings
+     * added concurrently to the range may or may not be removed. Concurrent readers see
+     * each node either present or removed, like with remove.
+     *
+     * @return the number of mappings removed
+     */
+    public long removeRange(byte[] lo, byte[] hi) {
+        if (compare(lo, hi) >= 0)
+            return 0;
+        long removed = 0;
+        for (;;) {
+            long b = findPredecessor(lo);
+            long n = next(b);
+            for (;;) { // Find first node >= lo, like doRemove
+                if (n == 0)
+                    return removed;
+                long nu = unmarked(n);
+                if (nu == 0) // b is deleted and was last
+                    break;
+                long f = next(nu);
+                if (n != next(b)) // inconsistent read
+                    break;
+                long v = value(nu);
+                if (v == 0) { // n is deleted
+                    helpDelete(n, nu, b, f);
+                    break;
+                }
+                if (n != nu || value(b) == 0) // b is deleted
+                    break;
+                if (compare(lo, n) > 0) {
+                    b = n;
+                    n = f;
+                    continue;
+                }
+
+                // Delete and mark, marked next fields cannot change anymore
+                long last = 0;
+                long z = n;
+                while (z != 0 && compare(hi, z) > 0) {
+                    long zv = value(z);
+                    if (zv != 0) {
+                        if (!casValue(z, zv, 0))
+                            continue;
+                        removed++;
+                        ChangeLog log = changes;
+                        if (log != null)
+                            log.publish(ChangeLog.REMOVE, z + KEY, zv, 0);
+                    }
+                    f = next(z);
+                    if (!marked(f) && !mark(z, f))
+                        continue;
+                    last = z;
+                    z = unmarked(next(z));
+                }
+                if (last == 0)
+                    return removed;
+                if (casNext(b, n, z)) {
+                    clearIndexes(lo, hi);
+                    onDelete(n, last);
+                } else {
+                    // Someone helped, unlink the rest one by one. Helpers retire the
+                    // nodes, their indexes past lo must go too
+                    findNode(lo);
+                    clearIndexes(lo, hi);
+                }
+                if (right(head) == 0)
+                    tryReduceLevel();
+                return removed;
+            }
+        }
+    }
+
+    /**
+     * Unlinks indexes to deleted nodes in [lo, hi) at all levels. Descends to the
+     * predecessor of lo like findPredecessor, but sweeps each level up to hi before going
+     * down. Restarts until a pass completes, as retired nodes must not stay indexed.
+     */
+    private final void clearIndexes(byte[] lo, byte[] hi) {
+        restart: for (;;) {
+            long q = head;
+            for (;;) {
+                long r = right(q);
+                while (r != 0) {
+                    long n = node(r);
+                    if (value(n) == 0) {
+                        if (!unlink(q, r))
+                            continue restart;
+                        r = right(q);
+                    } else if (compare(lo, n) > 0) {
+                        q = r;
+                        r = right(r);
+                    } else
+                        break;
+                }
+                long p = q;
+                while (r != 0 && compare(hi, node(r)) > 0) {
+                    if (value(node(r)) == 0) {
+                        if (!unlink(p, r))
+                            continue restart;
+                        r = right(p);
+                    } else {
+                        p = r;
+                        r = right(r);
+                    }
+                }
+                long d = down(q);
+                if (d == 0)
+                    return;
+                q = d;
+            }
+        }
+    }
+
+    /* ---------------- Cursors -------------- */
+
+    /**
+     * Returns a cursor over mappings in ascending key order, starting at the first key
+     * greater than or equal to from, or at the first mapping if from is null.
+     */
+    public Cursor cursor(byte[] from) {
+        return new Cursor(this, from);
+    }
+
+    /**
+     * Weakly consistent iteration, like ConcurrentSkipListMap's iterators. Each mapping
+     * is returned at most once, and reflects the state of the map at some point since
+     * the cursor was created. Steps don't allocate. A cursor idle for more than half the
+     * reclamation delay finds its position again from its last key, so that it never
+     * follows freed nodes. Must not be shared between threads.
+     */
+    public static final class Cursor {
+
+        private final OffHeap map;
+
+        private final byte[] from, key = new byte[KEY_LENGTH];
+
+        private long node, value, time;
+
+        private boolean started;
+
+        Cursor(OffHeap map, byte[] from) {
+            this.map = map;
+            this.from = from;
+        }
+
+        /**
+         * Moves to the next mapping.
+         *
+         * @return false if there are no more mappings
+         */
+        public boolean next() {
+            long now = System.nanoTime();
+            long n = node;
+            byte[] bound = null;
+            if (n == 0 || now - time > FREE_MEMORY_DELAY_MS * 1000000L / 2) {
+                bound = started ? key : from;
+                if (bound == null)
+                    n = node(map.head);
+                else if (map.singleWriter || map.readOnlyLookups)
+                    n = map.findPredecessorReadOnly(bound);
+                else
+                    n = map.findPredecessor(bound);
+            }
+            time = now;
+            for (;;) {
+                n = unmarked(OffHeap.next(n));
+                if (n == 0) {
+                    node = 0;
+                    return false;
+                }
+                long v = OffHeap.value(n);
+                if (v == 0) // deleted
+                    continue;
+                if (bound != null) {
+                    int c = compare(bound, n);
+                    if (c > 0 || (c == 0 && started))
+                        continue;
+                    bound = null;
+                }
+                node = n;
+                value = v;
+                UNSAFE.copyMemory(null, n + KEY, key, BYTES, KEY_LENGTH);
+                started = true;
+                return true;
+            }
+        }
+
+        /**
+         * Key of the current mapping. The array belongs to the cursor and is overwritten
+         * by next.
+         */
+        public byte[] key() {
+            if (!started)
+                throw new IllegalStateException();
+            return key;
+        }
+
+        /**
+         * Value of the current mapping, as of when next returned.
+         */
+        public long value() {
+            if (!started)
+                throw new IllegalStateException();
+            return value;
+        }
+    }
+
+    /**
+     * Retires all memory of a map which is not going to be written to anymore, e.g.
+     * after it has been replaced. Readers can still finish with it during the
+     * reclamation delay. Callers switch it to read-only lookups before unpublishing
+     * it, and deleted nodes and stale indexes are unlinked here first, so that readers
+     * which started before have nothing left to unlink and retire a second time.
+     */
+    final void retire() {
+        maintain();
+        long h = head;
+        long header = node(h);
+        long last = header;
+        for (long n = unmarked(next(header)); n != 0; n = unmarked(UNSAFE.getLong(n + NEXT)))
+            last = n;
+        onDelete(header, last);
+        freeLevels(h, true);
+        synchronized (this) {
+            if (replaced != 0) {
+                freeLevels(replaced, true);
+                replaced = 0;
+            }
+        }
+    }
+
+    /* ---------------- Bulk loading -------------- */
+
+    /**
+     * Builds a map from keys in ascending order, in a single pass, instead of searching
+     * for each key like put does. Base nodes are appended to the end of the list, and
+     * index towers are built bottom-up with ideal spacing, i.e. every second node is
+     * indexed at level 1, every fourth at level 2 etc., which minimizes search paths
+     * for a given number of index nodes. Like buildFromSorted in ConcurrentSkipListMap,
+     * but without a map to start from, so nodes are linked with plain writes and only
+     * published by the volatile head write in build. Not thread safe.
+     */
+    public static final class Builder {
+
+        private final long offset;
+
+        private long count;
+
+        private long first, last;
+
+        /**
+         * First and last index nodes at each level, 0 if none yet.
+         */
+        private final long[] firsts = new long[PATH_LENGTH], lasts = new long[PATH_LENGTH];
+
+        private int levels;
+
+        private boolean built;
+
+        public Builder() {
+            this(0);
+        }
+
+        /**
+         * @param offset
+         *            position of the first node in the final list, when this builder
+         *            produces a segment for append.
+         */
+        Builder(long offset) {
+            this.offset = offset;
+        }
+
+        /**
+         * Number of nodes added so far, duplicates excluded.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Appends a mapping. If key is equal to the last one added, its value replaces
+         * the previous one.
+         *
+         * @throws IllegalArgumentException
+         *             if key is lower than the last one added, or value is 0
+         */
+        public void add(byte[] key, long value) {
+            if (built)
+                throw new IllegalStateException();
+            if (value == 0)
+                throw new IllegalArgumentException();
+            if (last != 0) {
+                int c = compare(key, last);
+                if (c < 0)
+                    throw new IllegalArgumentException("Keys must be added in ascending order");
+                if (c == 0) {
+                    UNSAFE.putLong(last + VALUE, value);
+                    return;
+                }
+            }
+            long z = newNode(key, value, 0);
+            if (last == 0)
+                first = z;
+            else
+                UNSAFE.putLong(last + NEXT, z);
+            last = z;
+            int level = Math.min(Long.numberOfTrailingZeros(offset + ++count), MAX_LEVEL);
+            long idx = 0;
+            for (int i = 1; i <= level; i++) {
+                idx = newIndex(z, idx, 0);
+                if (lasts[i] == 0)
+                    firsts[i] = idx;
+                else
+                    UNSAFE.putLong(lasts[i] + RIGHT, idx);
+                lasts[i] = idx;
+            }
+            if (level > levels)
+                levels = level;
+        }
+
+        /**
+         * Appends a segment built from an offset equal to this builder's offset plus
+         * count, and whose keys all follow the ones added to this builder.
+         */
+        void append(Builder segment) {
+            if (built || segment.built || segment.offset != offset + count)
+                throw new IllegalStateException();
+            segment.built = true;
+            if (segment.first == 0)
+                return;
+            if (last != 0) {
+                if (compare(key(segment.first), last) <= 0)
+                    throw new IllegalArgumentException("Keys must be added in ascending order");
+                UNSAFE.putLong(last + NEXT, segment.first);
+            } else
+                first = segment.first;
+            last = segment.last;
+            for (int i = 1; i <= segment.levels; i++) {
+                if (segment.firsts[i] == 0)
+                    continue;
+                if (lasts[i] == 0)
+                    firsts[i] = segment.firsts[i];
+                else
+                    UNSAFE.putLong(lasts[i] + RIGHT, segment.firsts[i]);
+                lasts[i] = segment.lasts[i];
+            }
+            if (segment.levels > levels)
+                levels = segment.levels;
+            count += segment.count;
+        }
+
+        /**
+         * Publishes the map. The builder cannot be used afterwards.
+         */
+        public OffHeap build() {
+            if (built)
+                throw new IllegalStateException();
+            built = true;
+            long header = newNode();
+            UNSAFE.putLong(header + NEXT, first);
+            long h = newHeadIndex(header, 0, firsts[1], 1);
+            for (int i = 2; i <= levels; i++)
+                h = newHeadIndex(header, h, firsts[i], i);
+            return new OffHeap(h);
+        }
+    }
+
+    /* ---------------- Snapshots -------------- */
+
+    private static final long SNAPSHOT_MAGIC = 0x6f66666e736e7031L; // offnsnp1
+
+    /**
+     * Block header: entries, stored payload length, flags, padding, checksum of the
+     * stored payload. A block with no entries ends the stream, its payload is the total
+     * number of entries.
+     */
+    private static final int BLOCK_HEADER = 24, COMPRESSED = 1;
+
+    private static final int ENTRY = KEY_LENGTH + 8;
+
+    private static final int BLOCK_ENTRIES = (1 << 20) / ENTRY;
+
+    /**
+     * Writes the mappings to channel, from its position, in ascending key order. The
+     * stream is a file header followed by blocks of up to about 1MB, each with a
+     * checksum, and deflated if compress is set and it makes them smaller. Entries are
+     * a key and a little-endian value, copied through a direct buffer. Like cursors, the
+     * snapshot is weakly consistent, it is point in time only if writers are paused.
+     *
+     * @return the number of mappings written
+     */
+    public long snapshotTo(FileChannel channel, boolean compress) throws IOException {
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_HEADER + BLOCK_ENTRIES * ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        byte[] raw = compress ? new byte[BLOCK_ENTRIES * ENTRY] : null;
+        byte[] deflated = compress ? new byte[BLOCK_ENTRIES * ENTRY] : null;
+        long total = 0;
+
+        try {
+            block.putLong(SNAPSHOT_MAGIC).putLong(0);
+            writeFully(channel, frame(block, 0, 16));
+            Cursor cursor = cursor(null);
+            int count = 0;
+            frame(block, BLOCK_HEADER, block.capacity());
+
+            for (boolean more = cursor.next();;) {
+                if (more) {
+                    block.put(cursor.key()).putLong(cursor.value());
+                    count++;
+                    more = cursor.next();
+                }
+
+                if (count == BLOCK_ENTRIES || (!more && count != 0)) {
+                    int length = count * ENTRY, flags = 0;
+
+                    if (compress) {
+                        frame(block, BLOCK_HEADER, block.capacity()).get(raw, 0, length);
+                        deflater.reset();
+                        deflater.setInput(raw, 0, length);
+                        deflater.finish();
+                        int size = deflater.deflate(deflated);
+
+                        if (deflater.finished() && size < length) {
+                            frame(block, BLOCK_HEADER, block.capacity()).put(deflated, 0, size);
+                            length = size;
+                            flags = COMPRESSED;
+                        }
+                    }
+
+                    writeBlock(channel, block, count, length, flags);
+                    total += count;
+                    count = 0;
+                    frame(block, BLOCK_HEADER, block.capacity());
+                }
+
+                if (!more)
+                    break;
+            }
+
+            frame(block, BLOCK_HEADER, block.capacity()).putLong(total);
+            writeBlock(channel, block, 0, 8, 0);
+            return total;
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    public long snapshotTo(FileChannel channel) throws IOException {
+        return snapshotTo(channel, false);
+    }
+
+    /**
+     * Reads a stream written by snapshotTo from channel's position, and builds a map
+     * with a Builder in the same pass.
+     *
+     * @throws IOException
+     *             if the stream is truncated, or a checksum doesn't match
+     */
+    public static OffHeap loadFrom(FileChannel channel) throws IOException {
+        BlockReader reader = new BlockReader(channel);
+        ByteBuffer block = reader.block;
+        byte[] key = new byte[KEY_LENGTH];
+        Builder builder = new Builder();
+        boolean built = false;
+
+        try {
+            readFully(channel, frame(block, 0, 16));
+
+            if (block.getLong(0) != SNAPSHOT_MAGIC)
+                throw new IOException("Not a snapshot");
+
+            for (int count; (count = reader.next(builder.count())) != 0;) {
+                for (int i = 0; i < count; i++) {
+                    block.get(key);
+                    long value = block.getLong();
+
+                    try {
+                        builder.add(key, value);
+                    } catch (IllegalArgumentException e) { // Order or zero value
+                        throw new IOException(e);
+                    }
+                }
+            }
+
+            built = true;
+            return builder.build();
+        } finally {
+            reader.end();
+
+            if (!built) // Frees what was loaded, after the usual delay
+                builder.build().retire();
+        }
+    }
+
+    /**
+     * Reads blocks of a stream, checks and inflates them.
+     */
+    private static final class BlockReader {
+
+        private final ReadableByteChannel channel;
+
+        final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_HEADER + BLOCK_ENTRIES * ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+
+        private Inflater inflater;
+
+        private byte[] deflated, raw;
+
+        BlockReader(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads the next block, and frames its entries in the buffer.
+         *
+         * @param total
+         *            entries read so far, which the end block must match
+         * @return the number of entries, 0 at the end of the stream
+         */
+        int next(long total) throws IOException {
+            readFully(channel, frame(block, 0, BLOCK_HEADER));
+            int count = block.getInt(0), length = block.getInt(4), flags = block.getInt(8);
+            long checksum = block.getLong(16);
+
+            if (count < 0 || count > BLOCK_ENTRIES || length < 0 || length > BLOCK_ENTRIES * ENTRY)
+                throw new IOException("Corrupt block");
+
+            readFully(channel, frame(block, 0, length));
+
+            if (checksum(block, length) != checksum)
+                throw new IOException("Corrupt block");
+
+            if (count == 0) {
+                if (length != 8 || block.getLong(0) != total)
+                    throw new IOException("Corrupt stream end");
+
+                return 0;
+            }
+
+            if ((flags & COMPRESSED) != 0) {
+                if (inflater == null) {
+                    inflater = new Inflater();
+                    deflated = new byte[BLOCK_ENTRIES * ENTRY];
+                    raw = new byte[BLOCK_ENTRIES * ENTRY];
+                }
+
+                frame(block, 0, length).get(deflated, 0, length);
+                inflater.reset();
+                inflater.setInput(deflated, 0, length);
+
+                try {
+                    if (inflater.inflate(raw, 0, count * ENTRY) != count * ENTRY)
+                        throw new IOException("Corrupt block");
+                } catch (DataFormatException e) {
+                    throw new IOException(e);
+                }
+
+                frame(block, 0, block.capacity()).put(raw, 0, count * ENTRY);
+            } else if (length != count * ENTRY)
+                throw new IOException("Corrupt block");
+
+            frame(block, 0, count * ENTRY);
+            return count;
+        }
+
+        void end() {
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+
+    /* ---------------- Range export -------------- */
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /**
+     * Writes mappings with keys from lo inclusive to hi exclusive, null for no bound, to
+     * channel in ascending key order. The stream is blocks like snapshotTo's, without
+     * its header and never compressed, so that readers can check them. Keys and values
+     * are copied from nodes straight into direct buffers, without allocation per entry.
+     * Two buffers alternate, one filled by the caller while a helper thread writes the
+     * other to the channel. Each block starts with a search from the last key of the
+     * previous one, so that the walk never follows nodes freed while the channel was
+     * slow. Weakly consistent, like cursors.
+     *
+     * @return the number of mappings written
+     */
+    public long exportRange(byte[] lo, byte[] hi, final WritableByteChannel channel) throws IOException {
+        final ArrayBlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(3);
+        final ArrayBlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<ByteBuffer>(2);
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+        for (int i = 0; i < 2; i++)
+            empty.add(ByteBuffer.allocateDirect(BLOCK_HEADER + BLOCK_ENTRIES * ENTRY).order(ByteOrder.LITTLE_ENDIAN));
+
+        Thread writer = new Thread("offn-export") {
+
+            @Override
+            public void run() {
+                for (;;) {
+                    ByteBuffer block;
+
+                    try {
+                        block = full.take();
+                    } catch (InterruptedException e) {
+                        continue; // Only the end marker stops the writer
+                    }
+
+                    if (block == END)
+                        return;
+
+                    if (failure.get() == null) {
+                        try {
+                            writeFully(channel, block);
+                        } catch (IOException e) {
+                            failure.set(e);
+                        }
+                    }
+
+                    empty.add(block);
+                }
+            }
+        };
+
+        writer.setDaemon(true);
+        writer.start();
+        byte[] last = new byte[KEY_LENGTH];
+        long total = 0;
+
+        try {
+            for (int count = BLOCK_ENTRIES; count == BLOCK_ENTRIES && failure.get() == null;) {
+                ByteBuffer block = take(empty);
+                count = exportBlock(block, total == 0 ? lo : last, total != 0, hi, last);
+
+                if (count == 0)
+                    empty.add(block);
+                else {
+                    full.add(header(block, count, count * ENTRY, 0));
+                    total += count;
+                }
+            }
+
+            ByteBuffer block = take(empty);
+            frame(block, BLOCK_HEADER, block.capacity()).putLong(total);
+            full.add(header(block, 0, 8, 0));
+        } finally {
+            full.add(END);
+
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (failure.get() != null)
+            throw failure.get();
+
+        return total;
+    }
+
+    /**
+     * Copies up to a block of mappings starting at bound, or after it, and before hi,
+     * into block after its header, and the last key into last.
+     *
+     * @return the number of entries, less than a block at the end of the range
+     */
+    private int exportBlock(ByteBuffer block, byte[] bound, boolean after, byte[] hi, byte[] last) {
+        long n;
+
+        if (bound == null)
+            n = node(head);
+        else if (singleWriter || readOnlyLookups)
+            n = findPredecessorReadOnly(bound);
+        else
+            n = findPredecessor(bound);
+
+        long address = UNSAFE.getLong(block, ADDRESS) + BLOCK_HEADER;
+        int count = 0;
+
+        while (count < BLOCK_ENTRIES) {
+            n = unmarked(next(n));
+
+            if (n == 0)
+                break;
+
+            long v = value(n);
+
+            if (v == 0) // deleted
+                continue;
+
+            if (bound != null) {
+                int c = compare(bound, n);
+
+                if (c > 0 || (c == 0 && after))
+                    continue;
+
+                bound = null;
+            }
+
+            if (hi != null && compare(hi, n) <= 0)
+                break;
+
+            UNSAFE.copyMemory(n + KEY, address, KEY_LENGTH);
+            block.putLong(BLOCK_HEADER + count * ENTRY + KEY_LENGTH, v);
+            address += ENTRY;
+            count++;
+        }
+
+        if (count != 0)
+            UNSAFE.copyMemory(null, address - ENTRY, last, BYTES, KEY_LENGTH);
+
+        return count;
+    }
+
+    private static ByteBuffer take(ArrayBlockingQueue<ByteBuffer> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Puts the mappings of a stream written by exportRange, read from channel. Keys
+     * come in order, so puts go through a finger. Mappings of blocks read before an
+     * error remain.
+     *
+     * @return the number of mappings read
+     * @throws IOException
+     *             if the stream is truncated, or a checksum doesn't match
+     */
+    public long importFrom(ReadableByteChannel channel) throws IOException {
+        BlockReader reader = new BlockReader(channel);
+        ByteBuffer block = reader.block;
+        byte[] key = new byte[KEY_LENGTH];
+        Finger finger = new Finger();
+        long total = 0;
+
+        try {
+            for (int count; (count = reader.next(total)) != 0; total += count) {
+                for (int i = 0; i < count; i++) {
+                    block.get(key);
+                    long value = block.getLong();
+
+                    if (value == 0)
+                        throw new IOException("Corrupt block");
+
+                    put(key, value, finger);
+                }
+            }
+
+            return total;
+        } finally {
+            reader.end();
+        }
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer block, int count, int length, int flags) throws IOException {
+        writeFully(channel, header(block, count, length, flags));
+    }
+
+    /**
+     * Fills the header of a block whose payload is in place, and frames the block.
+     */
+    private static ByteBuffer header(ByteBuffer block, int count, int length, int flags) {
+        long checksum = checksum(block, BLOCK_HEADER, length);
+        block.putInt(0, count).putInt(4, length).putInt(8, flags).putInt(12, 0).putLong(16, checksum);
+        return frame(block, 0, BLOCK_HEADER + length);
+    }
+
+    /**
+     * Sets the window of a buffer. Through Buffer, whose methods return ByteBuffer only
+     * since Java 9.
+     */
+    private static ByteBuffer frame(ByteBuffer buffer, int position, int limit) {
+        Buffer b = buffer;
+        b.limit(limit);
+        b.position(position);
+        return buffer;
+    }
+
+    private static long checksum(ByteBuffer buffer, int length) {
+        return checksum(buffer, 0, length);
+    }
+
+    /**
+     * Multiplicative hash of the payload, 8 bytes at a time, to detect corruption.
+     */
+    private static long checksum(ByteBuffer buffer, int offset, int length) {
+        long h = length;
+        int i = 0;
+
+        for (; i + 8 <= length; i += 8) {
+            h = (h ^ buffer.getLong(offset + i)) * 0x9e3779b97f4a7c15L;
+            h ^= h >>> 29;
+        }
+
+        for (; i < length; i++) {
+            h = (h ^ buffer.get(offset + i)) * 0x9e3779b97f4a7c15L;
+            h ^= h >>> 29;
+        }
+
+        return h;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Truncated stream");
     }
 
     /*
@@ -830,16 +3168,35 @@ public final class OffHeap {
 
     private static final long headOffset;
 
+    static final long BYTES;
+
+    /**
+     * Offset of the native address field of direct buffers.
+     */
+    static final long ADDRESS;
+
     static {
         UNSAFE = getUnsafe();
         BASE_HEADER = UNSAFE.allocateMemory(1);
+        BYTES = UNSAFE.arrayBaseOffset(byte[].class);
 
         try {
             Class<?> k = OffHeap.class;
             headOffset = UNSAFE.objectFieldOffset(k.getDeclaredField("head"));
+            ADDRESS = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
         } catch (NoSuchFieldException ex) {
             throw new IllegalStateException(ex);
         }
+
+        MethodHandle onSpinWait;
+
+        try {
+            onSpinWait = MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException ex) {
+            onSpinWait = null;
+        }
+
+        ON_SPIN_WAIT = onSpinWait;
     }
 
     private static Unsafe getUnsafe() {
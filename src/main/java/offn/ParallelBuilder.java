@@ -0,0 +1,414 @@
+package offn;
+
+import static offn.OffHeap.BYTES;
+import static offn.OffHeap.KEY_LENGTH;
+import static offn.OffHeap.UNSAFE;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds a map from keys in any order. Pairs are staged in native memory, sorted by an
+ * MSD radix sort on key bytes running on a ForkJoinPool, and the sorted run is turned
+ * into a skiplist by OffHeap.Builder segments built in parallel and then appended.
+ * Staging and sorting need twice the size of the pairs, 32 bytes each, in native
+ * memory, released by build. The radix sort is stable, so for duplicate keys the value
+ * added last wins, as if each pair had been put in order. Not thread safe.
+ */
+@SuppressWarnings("restriction")
+public final class ParallelBuilder {
+
+    /**
+     * Staged pair layout. Key, padding, value.
+     */
+    private static final int VALUE = 24, ENTRY = 32;
+
+    /**
+     * Ranges at most this long are insertion sorted.
+     */
+    private static final int INSERTION_SORT = 32;
+
+    /**
+     * Ranges longer than this are counted and scattered by several tasks.
+     */
+    private static final long PARALLEL = 1 << 16;
+
+    private long buffer;
+
+    private long capacity, count;
+
+    public ParallelBuilder() {
+        this(1 << 16);
+    }
+
+    /**
+     * @param capacity
+     *            expected number of pairs, the buffer grows if needed
+     */
+    public ParallelBuilder(long capacity) {
+        this.capacity = Math.max(capacity, 16);
+        buffer = UNSAFE.allocateMemory(this.capacity * ENTRY);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Stages a mapping.
+     *
+     * @throws IllegalArgumentException
+     *             if value is 0
+     */
+    public void add(byte[] key, long value) {
+        if (buffer == 0)
+            throw new IllegalStateException();
+        if (value == 0)
+            throw new IllegalArgumentException();
+        if (key.length != KEY_LENGTH)
+            throw new IllegalArgumentException();
+        if (count == capacity) {
+            capacity *= 2;
+            buffer = UNSAFE.reallocateMemory(buffer, capacity * ENTRY);
+        }
+        long entry = buffer + count++ * ENTRY;
+        UNSAFE.copyMemory(key, BYTES, null, entry, KEY_LENGTH);
+        UNSAFE.putLong(entry + VALUE, value);
+    }
+
+    /**
+     * Sorts and builds on a new pool with one thread per core.
+     */
+    public OffHeap build() {
+        ForkJoinPool pool = new ForkJoinPool();
+
+        try {
+            return build(pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Sorts and builds the map. The builder cannot be used afterwards.
+     */
+    public OffHeap build(ForkJoinPool pool) {
+        if (buffer == 0)
+            throw new IllegalStateException();
+        long scratch = UNSAFE.allocateMemory(Math.max(count, 1) * ENTRY);
+
+        try {
+            pool.invoke(new Sort(buffer, scratch, buffer, 0, count, 0));
+        } finally {
+            UNSAFE.freeMemory(scratch);
+        }
+
+        try {
+            return load(pool);
+        } finally {
+            UNSAFE.freeMemory(buffer);
+            buffer = 0;
+        }
+    }
+
+    /* ---------------- Sorting -------------- */
+
+    private static int digit(long entry, int d) {
+        return UNSAFE.getByte(entry + d) & 0xff;
+    }
+
+    private static int compare(long a, long b, int from) {
+        for (int i = from; i < KEY_LENGTH; i++) {
+            int x = digit(a, i);
+            int y = digit(b, i);
+
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Sorts entries [lo, hi) of in, whose keys share their first d bytes, into out at
+     * the same positions. in and out are the staging and scratch buffers, alternating
+     * at each digit, and target is the one the result must end up in.
+     */
+    private static final class Sort extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long in, out, target, lo, hi;
+
+        private final int d;
+
+        Sort(long in, long out, long target, long lo, long hi, int d) {
+            this.in = in;
+            this.out = out;
+            this.target = target;
+            this.lo = lo;
+            this.hi = hi;
+            this.d = d;
+        }
+
+        @Override
+        protected void compute() {
+            long length = hi - lo;
+
+            if (length <= INSERTION_SORT || d == KEY_LENGTH) {
+                insertionSort(in, lo, hi, d);
+
+                if (in != target)
+                    UNSAFE.copyMemory(in + lo * ENTRY, target + lo * ENTRY, length * ENTRY);
+
+                return;
+            }
+
+            long[] starts;
+
+            if (length > PARALLEL)
+                starts = parallelScatter();
+            else {
+                long[] counts = new long[256];
+                count(in, lo, hi, d, counts);
+                starts = offsets(lo, counts);
+                scatter(in, out, lo, hi, d, starts.clone());
+            }
+
+            // Buckets are now in out, sorted on one more digit
+            Sort[] buckets = new Sort[256];
+            int forks = 0;
+
+            for (int b = 0; b < 256; b++) {
+                long start = starts[b], end = b < 255 ? starts[b + 1] : hi;
+
+                if (end > start)
+                    buckets[forks++] = new Sort(out, in, target, start, end, d + 1);
+            }
+
+            if (length > PARALLEL) {
+                for (int i = 0; i < forks; i++)
+                    buckets[i].fork();
+
+                for (int i = 0; i < forks; i++)
+                    buckets[i].join();
+            } else
+                for (int i = 0; i < forks; i++)
+                    buckets[i].compute();
+        }
+
+        /**
+         * Counts and scatters chunks of the range in parallel. Chunks are scattered in
+         * order within each bucket, so the sort stays stable.
+         */
+        private long[] parallelScatter() {
+            int chunks = (int) Math.min(getPool().getParallelism() * 4, (hi - lo) / (PARALLEL / 4));
+            final long[][] counts = new long[chunks][256];
+            RecursiveAction[] tasks = new RecursiveAction[chunks];
+
+            for (int c = 0; c < chunks; c++) {
+                final int chunk = c;
+                final long from = chunkStart(c, chunks), to = chunkStart(c + 1, chunks);
+
+                tasks[c] = new RecursiveAction() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        count(in, from, to, d, counts[chunk]);
+                    }
+                };
+            }
+
+            invokeAll(tasks);
+            long[] totals = new long[256];
+
+            for (int c = 0; c < chunks; c++)
+                for (int b = 0; b < 256; b++)
+                    totals[b] += counts[c][b];
+
+            long[] starts = offsets(lo, totals);
+            long[] next = starts.clone();
+
+            // Per chunk positions, each chunk follows previous ones in every bucket
+            for (int c = 0; c < chunks; c++) {
+                for (int b = 0; b < 256; b++) {
+                    long n = counts[c][b];
+                    counts[c][b] = next[b];
+                    next[b] += n;
+                }
+            }
+
+            for (int c = 0; c < chunks; c++) {
+                final int chunk = c;
+                final long from = chunkStart(c, chunks), to = chunkStart(c + 1, chunks);
+
+                tasks[c] = new RecursiveAction() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        scatter(in, out, from, to, d, counts[chunk]);
+                    }
+                };
+            }
+
+            invokeAll(tasks);
+            return starts;
+        }
+
+        private long chunkStart(int c, int chunks) {
+            return lo + (hi - lo) * c / chunks;
+        }
+    }
+
+    private static void count(long in, long lo, long hi, int d, long[] counts) {
+        for (long i = lo; i < hi; i++)
+            counts[digit(in + i * ENTRY, d)]++;
+    }
+
+    private static long[] offsets(long lo, long[] counts) {
+        long[] starts = new long[256];
+        long offset = lo;
+
+        for (int b = 0; b < 256; b++) {
+            starts[b] = offset;
+            offset += counts[b];
+        }
+
+        return starts;
+    }
+
+    private static void scatter(long in, long out, long lo, long hi, int d, long[] next) {
+        for (long i = lo; i < hi; i++) {
+            long entry = in + i * ENTRY;
+            UNSAFE.copyMemory(entry, out + next[digit(entry, d)]++ * ENTRY, ENTRY);
+        }
+    }
+
+    /**
+     * Stable, entries move through locals instead of a temporary entry.
+     */
+    private static void insertionSort(long base, long lo, long hi, int d) {
+        for (long i = lo + 1; i < hi; i++) {
+            long entry = base + i * ENTRY;
+            long j = i - 1;
+
+            while (j >= lo && compare(base + j * ENTRY, entry, d) > 0)
+                j--;
+
+            if (++j == i)
+                continue;
+
+            long k0 = UNSAFE.getLong(entry), k1 = UNSAFE.getLong(entry + 8);
+            long k2 = UNSAFE.getLong(entry + 16), value = UNSAFE.getLong(entry + VALUE);
+            long slot = base + j * ENTRY;
+            UNSAFE.copyMemory(slot, slot + ENTRY, (i - j) * ENTRY);
+            UNSAFE.putLong(slot, k0);
+            UNSAFE.putLong(slot + 8, k1);
+            UNSAFE.putLong(slot + 16, k2);
+            UNSAFE.putLong(slot + VALUE, value);
+        }
+    }
+
+    /* ---------------- Loading -------------- */
+
+    /**
+     * Builds the skiplist from the sorted buffer. Chunks end on key boundaries so that
+     * duplicates are merged within a chunk. A first pass counts distinct keys in each
+     * chunk, which gives the position of each chunk's first node in the final list, so
+     * that segments built in parallel get the same towers as a sequential build.
+     */
+    private OffHeap load(ForkJoinPool pool) {
+        int chunks = (int) Math.max(1, Math.min(pool.getParallelism() * 4, count / PARALLEL));
+        final long[] bounds = new long[chunks + 1];
+
+        for (int c = 1; c < chunks; c++) {
+            long i = Math.max(count * c / chunks, bounds[c - 1]);
+
+            while (i > 0 && i < count && compare(entry(i - 1), entry(i), 0) == 0)
+                i++;
+
+            bounds[c] = i;
+        }
+
+        bounds[chunks] = count;
+        final long[] distinct = new long[chunks];
+        RecursiveAction[] tasks = new RecursiveAction[chunks];
+
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+
+            tasks[c] = new RecursiveAction() {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    long n = 0;
+
+                    for (long i = bounds[chunk]; i < bounds[chunk + 1]; i++)
+                        if (i == bounds[chunk] || compare(entry(i - 1), entry(i), 0) != 0)
+                            n++;
+
+                    distinct[chunk] = n;
+                }
+            };
+        }
+
+        invokeAll(pool, tasks);
+        final OffHeap.Builder[] segments = new OffHeap.Builder[chunks];
+        long offset = 0;
+
+        for (int c = 0; c < chunks; c++) {
+            segments[c] = new OffHeap.Builder(offset);
+            offset += distinct[c];
+        }
+
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+
+            tasks[c] = new RecursiveAction() {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    byte[] key = new byte[KEY_LENGTH];
+
+                    for (long i = bounds[chunk]; i < bounds[chunk + 1]; i++) {
+                        long entry = entry(i);
+                        UNSAFE.copyMemory(null, entry, key, BYTES, KEY_LENGTH);
+                        segments[chunk].add(key, UNSAFE.getLong(entry + VALUE));
+                    }
+                }
+            };
+        }
+
+        invokeAll(pool, tasks);
+        OffHeap.Builder builder = segments[0];
+
+        for (int c = 1; c < chunks; c++)
+            builder.append(segments[c]);
+
+        return builder.build();
+    }
+
+    private long entry(long i) {
+        return buffer + i * ENTRY;
+    }
+
+    private static void invokeAll(ForkJoinPool pool, final RecursiveAction[] tasks) {
+        pool.invoke(new RecursiveAction() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+}
@@ -0,0 +1,547 @@
+package offn;
+
+import static offn.OffHeap.ADDRESS;
+import static offn.OffHeap.BYTES;
+import static offn.OffHeap.KEY_LENGTH;
+import static offn.OffHeap.UNSAFE;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hot standby copies of an OffHeap in other processes. A Primary serves a map on a
+ * TCP socket. Each Replica which connects gets a snapshot, the stream exportRange
+ * writes, then the records of a ChangeLog attached to the map, in frames of up to
+ * BATCH records. A replica reads the snapshot into a fresh map, which replaces its
+ * current one, and applies each frame of records in one pass, as the only writer of
+ * its map. When the connection drops, the replica reconnects and asks for the records
+ * after the last one it applied, which the primary sends if they are still in its
+ * ring, or a new snapshot otherwise.
+ * <p>
+ * Frames have a fixed header: payload length, type, id of the primary, a sequence
+ * number, and the number of records the primary published, from which replicas tell
+ * their lag. Records are a key and its value in the primary's map when the record is
+ * sent, 0 if absent, not the value of the change. The primary's ring overwrites, so
+ * that a slow or dead replica never blocks the map's writers. A replica lapped while
+ * streaming is disconnected, and gets a snapshot when it reconnects. The ring must
+ * hold the writes made during a snapshot, or replicas keep resyncing.
+ * <p>
+ * Records of a key written concurrently by several threads may be out of order in the
+ * change log, which is why the value sent is read from the map again. The record of
+ * each change is sent after it, with the value read then, so the last one sent for a
+ * key has its latest value, and replicas converge once writes stop.
+ */
+public final class Replication {
+
+    private static final int LENGTH = 0, TYPE = 4, ID = 8, SEQ = 16, PUBLISHED = 24, FRAME_HEADER = 32;
+
+    /**
+     * HELLO asks for the records from SEQ of primary ID. The primary answers RESUME, or
+     * SNAPSHOT followed by the exportRange stream, records then starting at SEQ. Then
+     * CHANGES frames, empty ones as heartbeats.
+     */
+    private static final int HELLO = 1, RESUME = 2, SNAPSHOT = 3, CHANGES = 4;
+
+    private static final int ENTRY = KEY_LENGTH + 8;
+
+    /**
+     * Records per frame.
+     */
+    static final int BATCH = 4096;
+
+    /**
+     * Primary's longest park when there is nothing to send, and interval between
+     * heartbeats, and replica's delay between connection attempts.
+     */
+    private static final long IDLE_NANOS = 100000, HEARTBEAT_NANOS = 100000000, RETRY_NANOS = 100000000;
+
+    private Replication() {
+    }
+
+    /**
+     * Serves a map to replicas.
+     */
+    public static final class Primary implements Closeable {
+
+        private final OffHeap map;
+
+        private final ChangeLog log;
+
+        private final long id;
+
+        private final ServerSocketChannel server;
+
+        private final CopyOnWriteArrayList<Session> sessions = new CopyOnWriteArrayList<Session>();
+
+        private final Thread acceptor;
+
+        private volatile boolean closed;
+
+        /**
+         * Attaches a change log of capacity records to map, and listens on address.
+         */
+        public Primary(OffHeap map, InetSocketAddress address, int capacity) throws IOException {
+            if (map.changeLog() != null)
+                throw new IllegalStateException();
+
+            this.map = map;
+            long random;
+
+            do
+                random = new SecureRandom().nextLong();
+            while (random == 0); // Replicas which never synced
+
+            id = random;
+            log = new ChangeLog(capacity, ChangeLog.Overflow.OVERWRITE); // Validates first
+            ServerSocketChannel channel = null;
+
+            try {
+                channel = ServerSocketChannel.open();
+                channel.bind(address);
+            } catch (IOException e) {
+                if (channel != null)
+                    channel.close();
+
+                log.close();
+                throw e;
+            }
+
+            server = channel;
+            map.changeLog(log);
+
+            acceptor = new Thread("offn-primary") {
+
+                @Override
+                public void run() {
+                    accept();
+                }
+            };
+
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        public InetSocketAddress address() throws IOException {
+            return (InetSocketAddress) server.getLocalAddress();
+        }
+
+        /**
+         * Number of records published so far.
+         */
+        public long published() {
+            return log.published();
+        }
+
+        /**
+         * Replicas connected.
+         */
+        public int replicas() {
+            return sessions.size();
+        }
+
+        private void accept() {
+            while (!closed) {
+                SocketChannel channel;
+
+                try {
+                    channel = server.accept();
+                } catch (IOException e) { // Closed
+                    return;
+                }
+
+                Session session = new Session(channel);
+                sessions.add(session);
+                session.start();
+            }
+        }
+
+        private final class Session extends Thread {
+
+            final SocketChannel channel;
+
+            Session(SocketChannel channel) {
+                super("offn-primary-session");
+                setDaemon(true);
+                this.channel = channel;
+            }
+
+            @Override
+            public void run() {
+                ChangeLog.Subscriber subscriber = null;
+
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    Batch batch = new Batch(map);
+                    ByteBuffer frame = batch.frame;
+                    readFully(channel, frame(frame, 0, FRAME_HEADER));
+
+                    if (frame.getInt(TYPE) != HELLO || frame.getInt(LENGTH) != 0)
+                        throw new IOException("Not a replica");
+
+                    if (frame.getLong(ID) == id)
+                        subscriber = log.subscribe(frame.getLong(SEQ));
+
+                    if (subscriber != null)
+                        writeFully(channel, header(frame, RESUME, id, subscriber.position(), log.published(), 0));
+                    else {
+                        // Before the snapshot, so that writes during it are sent after
+                        subscriber = log.subscribe();
+                        writeFully(channel, header(frame, SNAPSHOT, id, subscriber.position(), log.published(), 0));
+                        map.exportRange(null, null, channel);
+                    }
+
+                    stream(subscriber, batch);
+                } catch (IOException e) {
+                    // Replica gone or lapped, it reconnects
+                } finally {
+                    if (subscriber != null)
+                        subscriber.unsubscribe();
+
+                    sessions.remove(this);
+
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+
+            private void stream(ChangeLog.Subscriber subscriber, Batch batch) throws IOException {
+                long sent = System.nanoTime();
+
+                while (!closed) {
+                    long first = subscriber.position();
+                    frame(batch.frame, 0, batch.frame.capacity());
+                    batch.count = 0;
+                    subscriber.poll(batch, BATCH);
+
+                    if (subscriber.lost() != 0)
+                        throw new IOException("Lapped");
+
+                    if (batch.count == 0 && System.nanoTime() - sent < HEARTBEAT_NANOS) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                        continue;
+                    }
+
+                    writeFully(channel, header(batch.frame, CHANGES, id, first, log.published(), batch.count * ENTRY));
+                    sent = System.nanoTime();
+                }
+            }
+        }
+
+        /**
+         * Stops serving, disconnects replicas and detaches the change log. Writes to the
+         * map must have returned.
+         */
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            server.close();
+            join(acceptor);
+
+            for (Session session : sessions) {
+                session.channel.close();
+                join(session);
+            }
+
+            map.changeLog(null);
+            log.close();
+        }
+    }
+
+    /**
+     * Copies the keys of records into a frame after its header, with their current
+     * value in the map.
+     */
+    private static final class Batch implements ChangeLog.Handler {
+
+        final ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_HEADER + BATCH * ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+
+        private final long address = UNSAFE.getLong(frame, ADDRESS);
+
+        private final OffHeap map;
+
+        int count;
+
+        Batch(OffHeap map) {
+            this.map = map;
+        }
+
+        @Override
+        public void onChange(long seq, int op, byte[] key, long previous, long value) {
+            int offset = FRAME_HEADER + count * ENTRY;
+            UNSAFE.copyMemory(key, BYTES, null, address + offset, KEY_LENGTH);
+            frame.putLong(offset + KEY_LENGTH, map.get(key));
+            count++;
+        }
+    }
+
+    /**
+     * Copy of a primary's map, kept up to date by a thread which reconnects as needed.
+     * Reads go to the current map, which a snapshot replaces.
+     */
+    public static final class Replica implements Closeable {
+
+        private final InetSocketAddress primary;
+
+        private final Thread thread;
+
+        private volatile OffHeap map = new OffHeap(true);
+
+        /**
+         * Primary the map is a copy of, 0 before the first snapshot.
+         */
+        private long id;
+
+        /**
+         * Sequence number of the next record to apply, and records the primary had
+         * published as of the last frame.
+         */
+        private volatile long applied, published;
+
+        private volatile long snapshots, resumes;
+
+        private volatile SocketChannel channel;
+
+        private volatile boolean closed;
+
+        /**
+         * Delay between connection attempts.
+         */
+        private final long retryNanos;
+
+        public Replica(InetSocketAddress primary) {
+            this(primary, RETRY_NANOS);
+        }
+
+        /**
+         * @param retryNanos
+         *            delay between connection attempts, e.g. longer in tests so that
+         *            writes are made while the replica is disconnected
+         */
+        Replica(InetSocketAddress primary, long retryNanos) {
+            this.primary = primary;
+            this.retryNanos = retryNanos;
+
+            thread = new Thread("offn-replica") {
+
+                @Override
+                public void run() {
+                    replicate();
+                }
+            };
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public long get(byte[] key) {
+            return map.get(key);
+        }
+
+        public OffHeap.Cursor cursor(byte[] from) {
+            return map.cursor(from);
+        }
+
+        /**
+         * Current copy, replaced by snapshots. Must not be written to.
+         */
+        public OffHeap map() {
+            return map;
+        }
+
+        /**
+         * Sequence number of the next record to apply.
+         */
+        public long applied() {
+            return applied;
+        }
+
+        /**
+         * Records published by the primary but not applied yet, as of the last frame
+         * received, heartbeats included.
+         */
+        public long lag() {
+            return Math.max(0, published - applied);
+        }
+
+        public boolean connected() {
+            return channel != null;
+        }
+
+        /**
+         * Full resyncs, the first one included.
+         */
+        public long snapshots() {
+            return snapshots;
+        }
+
+        /**
+         * Reconnections which resumed from the last record applied.
+         */
+        public long resumes() {
+            return resumes;
+        }
+
+        private void replicate() {
+            ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_HEADER + BATCH * ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+
+            while (!closed) {
+                SocketChannel c = null;
+
+                try {
+                    c = SocketChannel.open(primary);
+                    channel = c;
+
+                    if (!closed) // Else close didn't see the channel
+                        session(c, frame);
+                } catch (IOException e) {
+                    // Primary gone or stream broken, retry
+                } finally {
+                    channel = null;
+
+                    if (c != null) {
+                        try {
+                            c.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+
+                if (!closed)
+                    LockSupport.parkNanos(retryNanos);
+            }
+        }
+
+        private void session(SocketChannel c, ByteBuffer frame) throws IOException {
+            c.socket().setTcpNoDelay(true);
+            writeFully(c, header(frame, HELLO, id, applied, 0, 0));
+            readFully(c, frame(frame, 0, FRAME_HEADER));
+            int type = frame.getInt(TYPE);
+            long seq = frame.getLong(SEQ);
+
+            if (type == SNAPSHOT) {
+                OffHeap fresh = new OffHeap(true);
+                boolean loaded = false;
+
+                try {
+                    fresh.importFrom(c);
+                    loaded = true;
+                } finally {
+                    if (!loaded)
+                        fresh.retire();
+                }
+
+                OffHeap old = map;
+                id = frame.getLong(ID);
+                applied = seq;
+                map = fresh;
+                old.retire(); // Readers finish during the reclamation delay
+                snapshots++;
+            } else if (type == RESUME && frame.getLong(ID) == id && seq == applied)
+                resumes++;
+            else
+                throw new IOException("Unexpected frame");
+
+            published = frame.getLong(PUBLISHED);
+            byte[] key = new byte[KEY_LENGTH];
+
+            for (;;) {
+                readFully(c, frame(frame, 0, FRAME_HEADER));
+                int length = frame.getInt(LENGTH);
+
+                if (frame.getInt(TYPE) != CHANGES || length < 0 || length > BATCH * ENTRY || length % ENTRY != 0)
+                    throw new IOException("Corrupt frame");
+
+                if (frame.getLong(SEQ) != applied)
+                    throw new IOException("Out of sequence");
+
+                long next = applied + length / ENTRY, total = frame.getLong(PUBLISHED);
+                readFully(c, frame(frame, FRAME_HEADER, FRAME_HEADER + length));
+                frame(frame, FRAME_HEADER, FRAME_HEADER + length);
+                OffHeap m = map;
+
+                while (frame.hasRemaining()) {
+                    frame.get(key);
+                    long value = frame.getLong();
+
+                    if (value != 0)
+                        m.put(key, value);
+                    else
+                        m.remove(key);
+                }
+
+                applied = next;
+                published = total;
+            }
+        }
+
+        /**
+         * Drops the connection, which the replica then reopens, e.g. for tests.
+         */
+        void disconnect() throws IOException {
+            SocketChannel c = channel;
+
+            if (c != null)
+                c.close();
+        }
+
+        /**
+         * Stops replicating. The map can still be read.
+         */
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            disconnect();
+            LockSupport.unpark(thread);
+            join(thread);
+        }
+    }
+
+    /* ---------------- Frames -------------- */
+
+    /**
+     * Fills the header of a frame whose payload is in place, and frames it.
+     */
+    private static ByteBuffer header(ByteBuffer frame, int type, long id, long seq, long published, int length) {
+        frame.putInt(LENGTH, length).putInt(TYPE, type).putLong(ID, id).putLong(SEQ, seq).putLong(PUBLISHED, published);
+        return frame(frame, 0, FRAME_HEADER + length);
+    }
+
+    private static ByteBuffer frame(ByteBuffer buffer, int position, int limit) {
+        Buffer b = buffer;
+        b.limit(limit);
+        b.position(position);
+        return buffer;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Connection closed");
+    }
+
+    private static void join(Thread thread) throws IOException {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package offn;
+
+import static offn.OffHeap.KEY_LENGTH;
+import static offn.OffHeap.compare;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Range partitions keys over independent OffHeap maps, so that writers on different
+ * ranges don't contend on the same head and upper index levels. Routing is a binary
+ * search in an immutable table of shard lower bounds, replaced as a whole when shards
+ * are split or merged.
+ * <p>
+ * Writers register in striped counters of their shard while they write. A split or
+ * merge freezes the shards involved, waits for registered writers to leave, rebuilds
+ * their mappings with OffHeap.Builder and publishes a new table. Writers arriving on a
+ * frozen shard wait for the new table. Readers are not blocked, they use the frozen
+ * map, which still has the latest mappings, and retry only if the table changed
+ * during their read. Replaced maps are retired and freed after the reclamation delay.
+ * <p>
+ * Shards larger than maxShardSize are split by the writer noticing it. Splitting hot
+ * shards and merging small cold ones is done by rebalance, e.g. called periodically.
+ */
+public final class ShardedOffHeap {
+
+    /**
+     * Per stripe fields, padded to a cache line.
+     */
+    private static final int INFLIGHT = 0, SIZE = 1, OPS = 2, PAD = 8;
+
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2);
+
+    /**
+     * Inserts in a stripe between two size checks, minus one.
+     */
+    private static final int CHECK = 1023;
+
+    /**
+     * A shard is hot if it received this many times the average number of writes
+     * since last rebalance.
+     */
+    private static final int HOT = 4;
+
+    private final int minShards;
+
+    private final long maxShardSize;
+
+    private final Object rebalancing = new Object();
+
+    private volatile Table table;
+
+    public ShardedOffHeap() {
+        this(Runtime.getRuntime().availableProcessors() * 4, 1 << 22);
+    }
+
+    /**
+     * @param shards
+     *            initial number of shards, evenly splitting the space of random keys,
+     *            and minimum number left by merges
+     * @param maxShardSize
+     *            shards are split when they become larger
+     */
+    public ShardedOffHeap(int shards, long maxShardSize) {
+        if (shards < 1 || shards > 1 << 16 || maxShardSize < 2)
+            throw new IllegalArgumentException();
+        Shard[] array = new Shard[shards];
+
+        for (int i = 0; i < shards; i++) {
+            byte[] low = null;
+
+            if (i > 0) {
+                int prefix = (int) (((long) i << 16) / shards);
+                low = new byte[KEY_LENGTH];
+                low[0] = (byte) (prefix >>> 8);
+                low[1] = (byte) prefix;
+            }
+
+            array[i] = new Shard(low, new OffHeap(), 0);
+        }
+
+        this.minShards = shards;
+        this.maxShardSize = maxShardSize;
+        table = new Table(array);
+    }
+
+    /* ---------------- Shards -------------- */
+
+    private static final class Shard {
+
+        /**
+         * Smallest key routed to this shard, null for the first one.
+         */
+        final byte[] low;
+
+        final OffHeap map;
+
+        final AtomicLongArray stripes = new AtomicLongArray(STRIPES * PAD);
+
+        volatile boolean frozen;
+
+        /**
+         * Number of writes at last rebalance, guarded by rebalancing.
+         */
+        long ops;
+
+        Shard(byte[] low, OffHeap map, long size) {
+            this.low = low;
+            this.map = map;
+            stripes.set(SIZE, size);
+        }
+
+        final long sum(int field) {
+            long sum = 0;
+
+            for (int i = 0; i < STRIPES; i++)
+                sum += stripes.get(i * PAD + field);
+
+            return sum;
+        }
+    }
+
+    private static final class Table {
+
+        final Shard[] shards;
+
+        Table(Shard[] shards) {
+            this.shards = shards;
+        }
+
+        /**
+         * Index of the last shard whose low bound is not greater than key.
+         */
+        final int route(byte[] key) {
+            int lo = 1, hi = shards.length - 1, index = 0;
+
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+
+                if (compare(shards[mid].low, key) <= 0) {
+                    index = mid;
+                    lo = mid + 1;
+                } else
+                    hi = mid - 1;
+            }
+
+            return index;
+        }
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+    }
+
+    /**
+     * Registers a writer on the shard, or waits for the table to change if the shard
+     * is frozen and returns false.
+     */
+    private boolean enter(Table t, Shard shard, int stripe) {
+        shard.stripes.incrementAndGet(stripe + INFLIGHT);
+
+        if (!shard.frozen)
+            return true;
+
+        shard.stripes.decrementAndGet(stripe + INFLIGHT);
+
+        while (shard.frozen && table == t)
+            Thread.yield();
+
+        return false;
+    }
+
+    /* ---------------- Map operations -------------- */
+
+    public long get(byte[] key) {
+        for (;;) {
+            Table t = table;
+            long value = t.shards[t.route(key)].map.get(key);
+
+            if (table == t)
+                return value;
+        }
+    }
+
+    public long put(byte[] key, long value) {
+        for (;;) {
+            Table t = table;
+            Shard shard = t.shards[t.route(key)];
+            int stripe = stripe();
+
+            if (!enter(t, shard, stripe))
+                continue;
+
+            long previous;
+            boolean check = false;
+
+            try {
+                previous = shard.map.put(key, value);
+                count(shard, stripe);
+
+                if (previous == 0)
+                    check = (shard.stripes.incrementAndGet(stripe + SIZE) & CHECK) == 0;
+            } finally {
+                shard.stripes.decrementAndGet(stripe + INFLIGHT);
+            }
+
+            if (check && shard.sum(SIZE) > maxShardSize)
+                splitLarge(key);
+
+            return previous;
+        }
+    }
+
+    public long remove(byte[] key) {
+        for (;;) {
+            Table t = table;
+            Shard shard = t.shards[t.route(key)];
+            int stripe = stripe();
+
+            if (!enter(t, shard, stripe))
+                continue;
+
+            try {
+                long previous = shard.map.remove(key);
+                count(shard, stripe);
+
+                if (previous != 0)
+                    shard.stripes.decrementAndGet(stripe + SIZE);
+
+                return previous;
+            } finally {
+                shard.stripes.decrementAndGet(stripe + INFLIGHT);
+            }
+        }
+    }
+
+    /**
+     * Counts a write for hot shard detection. Racy, an estimate is enough.
+     */
+    private static void count(Shard shard, int stripe) {
+        shard.stripes.lazySet(stripe + OPS, shard.stripes.get(stripe + OPS) + 1);
+    }
+
+    /**
+     * Number of mappings. Not atomic with concurrent writes.
+     */
+    public long size() {
+        Shard[] shards = table.shards;
+        long size = 0;
+
+        for (int i = 0; i < shards.length; i++)
+            size += shards[i].sum(SIZE);
+
+        return size;
+    }
+
+    public int shards() {
+        return table.shards.length;
+    }
+
+    /* ---------------- Splits and merges -------------- */
+
+    private void splitLarge(byte[] key) {
+        synchronized (rebalancing) {
+            Table t = table;
+            int index = t.route(key);
+
+            if (t.shards[index].sum(SIZE) > maxShardSize)
+                split(t, index);
+        }
+    }
+
+    /**
+     * Splits shards larger than maxShardSize, then the hottest shard if it received
+     * much more writes than average since last call, then merges pairs of neighbors
+     * which are not hot and small enough to stay under a quarter of maxShardSize.
+     */
+    public void rebalance() {
+        synchronized (rebalancing) {
+            for (int i = 0; i < table.shards.length;) {
+                if (table.shards[i].sum(SIZE) > maxShardSize)
+                    split(table, i);
+                else
+                    i++;
+            }
+
+            Shard[] shards = table.shards;
+            long[] ops = new long[shards.length];
+            long total = 0;
+            int hottest = 0;
+
+            for (int i = 0; i < shards.length; i++) {
+                long sum = shards[i].sum(OPS);
+                ops[i] = sum - shards[i].ops;
+                shards[i].ops = sum;
+                total += ops[i];
+
+                if (ops[i] > ops[hottest])
+                    hottest = i;
+            }
+
+            long average = total / shards.length;
+
+            if (ops[hottest] > average * HOT && shards[hottest].sum(SIZE) > 1) {
+                split(table, hottest);
+                return;
+            }
+
+            for (int i = 0; i + 1 < table.shards.length && table.shards.length > minShards;) {
+                Shard a = table.shards[i], b = table.shards[i + 1];
+                boolean cold = ops[i] <= average * HOT && ops[i + 1] <= average * HOT;
+
+                if (cold && a.sum(SIZE) + b.sum(SIZE) < maxShardSize / 4) {
+                    merge(table, i);
+                    ops[i] += ops[i + 1];
+                    System.arraycopy(ops, i + 2, ops, i + 1, ops.length - i - 2);
+                } else
+                    i++;
+            }
+        }
+    }
+
+    /**
+     * Sets the frozen flag and waits for registered writers to leave.
+     */
+    private static void freeze(Shard shard) {
+        shard.frozen = true;
+
+        for (int i = 0; i < STRIPES; i++)
+            while (shard.stripes.get(i * PAD + INFLIGHT) != 0)
+                Thread.yield();
+    }
+
+    private void split(Table t, int index) {
+        Shard shard = t.shards[index];
+        freeze(shard);
+        long count = 0;
+
+        for (OffHeap.Cursor cursor = shard.map.cursor(null); cursor.next();)
+            count++;
+
+        if (count < 2) {
+            shard.frozen = false;
+            return;
+        }
+
+        OffHeap.Builder left = new OffHeap.Builder(), right = new OffHeap.Builder();
+        OffHeap.Cursor cursor = shard.map.cursor(null);
+        byte[] middle = null;
+
+        for (long i = 0; cursor.next(); i++) {
+            if (i == count / 2)
+                middle = cursor.key().clone();
+
+            (i < count / 2 ? left : right).add(cursor.key(), cursor.value());
+        }
+
+        Shard a = new Shard(shard.low, left.build(), left.count());
+        Shard b = new Shard(middle, right.build(), right.count());
+        replace(t, index, 1, a, b);
+    }
+
+    private void merge(Table t, int index) {
+        Shard a = t.shards[index], b = t.shards[index + 1];
+        freeze(a);
+        freeze(b);
+        OffHeap.Builder builder = new OffHeap.Builder();
+
+        for (OffHeap.Cursor cursor = a.map.cursor(null); cursor.next();)
+            builder.add(cursor.key(), cursor.value());
+
+        for (OffHeap.Cursor cursor = b.map.cursor(null); cursor.next();)
+            builder.add(cursor.key(), cursor.value());
+
+        replace(t, index, 2, new Shard(a.low, builder.build(), builder.count()));
+    }
+
+    /**
+     * Publishes a table where count shards starting at index are replaced, and
+     * retires their maps. Readers still on a replaced map must not unlink anything
+     * retire frees, so its lookups become read-only before the table changes.
+     */
+    private void replace(Table t, int index, int count, Shard... replacements) {
+        for (int i = index; i < index + count; i++)
+            t.shards[i].map.readOnlyLookups(true);
+
+        Shard[] shards = new Shard[t.shards.length - count + replacements.length];
+        System.arraycopy(t.shards, 0, shards, 0, index);
+        System.arraycopy(replacements, 0, shards, index, replacements.length);
+        int tail = t.shards.length - index - count;
+        System.arraycopy(t.shards, index + count, shards, index + replacements.length, tail);
+        table = new Table(shards);
+
+        for (int i = index; i < index + count; i++)
+            t.shards[i].map.retire();
+    }
+
+    /* ---------------- Cursors -------------- */
+
+    /**
+     * Returns a cursor over mappings of all shards in ascending key order, starting at
+     * the first key greater than or equal to from, or at the first mapping if from is
+     * null. Weakly consistent, like OffHeap.Cursor. Shards cover ordered disjoint
+     * ranges, so the merge visits them one after the other.
+     */
+    public Cursor cursor(byte[] from) {
+        return new Cursor(from);
+    }
+
+    public final class Cursor {
+
+        private final byte[] from, key = new byte[KEY_LENGTH];
+
+        private Table table;
+
+        private int index;
+
+        private OffHeap.Cursor cursor;
+
+        private long value;
+
+        private boolean started;
+
+        Cursor(byte[] from) {
+            this.from = from;
+        }
+
+        /**
+         * Moves to the next mapping. If shards have been split or merged since last
+         * call, continues after the current key in the new ones.
+         *
+         * @return false if there are no more mappings
+         */
+        public boolean next() {
+            for (;;) {
+                Table t = ShardedOffHeap.this.table;
+                boolean skip = false;
+
+                if (t != table) {
+                    byte[] position = started ? key : from;
+                    table = t;
+                    index = position != null ? t.route(position) : 0;
+                    cursor = t.shards[index].map.cursor(position);
+                    skip = started;
+                }
+
+                if (cursor.next()) {
+                    if (skip && compare(cursor.key(), key) == 0)
+                        continue;
+
+                    System.arraycopy(cursor.key(), 0, key, 0, KEY_LENGTH);
+                    value = cursor.value();
+                    started = true;
+                    return true;
+                }
+
+                if (index == t.shards.length - 1)
+                    return false;
+
+                cursor = t.shards[++index].map.cursor(null);
+            }
+        }
+
+        /**
+         * Key of the current mapping. The array belongs to the cursor and is overwritten
+         * by next.
+         */
+        public byte[] key() {
+            if (!started)
+                throw new IllegalStateException();
+            return key;
+        }
+
+        public long value() {
+            if (!started)
+                throw new IllegalStateException();
+            return value;
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package offn;
+
+import static offn.OffHeap.FREE_MEMORY_DELAY_MS;
+import static offn.OffHeap.KEY_LENGTH;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * OffHeap whose values are variable length byte sequences, kept out of the map in an
+ * append-only value log. Node values are pointers to log records, so nodes stay small
+ * and the index stays in cache, while values are written sequentially. Gets return
+ * read-only views of the log, without copying.
+ * <p>
+ * The log is a series of fixed size segment files, mapped. Writers reserve space from
+ * a counter, and a record never spans segments, so the one which doesn't fit pads the
+ * end of the current segment and takes the start of the next. Records have a header
+ * with the key, so that the log can be replayed into a fresh map on open, and removes
+ * append a tombstone. Like DurableOffHeap, the map is updated under a lock striped by
+ * key, together with the append, so records of a key are in the log in the order they
+ * were applied. Nothing is forced until sync or close, and replay stops at the first
+ * record of a segment which doesn't check.
+ * <p>
+ * Bytes of records which were replaced or removed are counted as garbage in their
+ * segment. A background thread, or collect, relocates live records of complete
+ * segments with enough garbage to the end of the log, and replaces the node values
+ * with a CAS, then forces the log and deletes the segment. Tombstones are relocated
+ * too while older segments could still hold a value for their key. Collected segments
+ * stay mapped during the reclamation delay, for readers, and views keep their
+ * segment mapped as long as they are reachable.
+ */
+public final class ValueLogOffHeap implements Closeable {
+
+    private static final int OP = 0, LENGTH = 4, KEY = 8, CHECKSUM = 28, HEADER = 32;
+
+    private static final int PUT = 1, REMOVE = 2, PAD = 3;
+
+    private static final int STRIPES = 256;
+
+    /**
+     * Pause of the collector between passes.
+     */
+    private static final long COLLECT_NANOS = 1000000000L;
+
+    private static final String SUFFIX = ".vlog";
+
+    private final OffHeap map = new OffHeap();
+
+    private final File directory;
+
+    private final int segmentSize, segmentBits;
+
+    private final double garbageRatio;
+
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * Segments by id, null once deleted and past the reclamation delay.
+     */
+    private volatile Segment[] table = new Segment[0];
+
+    /**
+     * Log offset of the next record.
+     */
+    private final AtomicLong tail;
+
+    /**
+     * Collected segments waiting for the delay, only used by collect.
+     */
+    private final ArrayDeque<Segment> retired = new ArrayDeque<Segment>();
+
+    private final Object collecting = new Object();
+
+    private volatile boolean closed;
+
+    private final Thread collector;
+
+    private static final class Segment {
+
+        final long id;
+
+        final File file;
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * Duplicate for views.
+         */
+        final ByteBuffer view;
+
+        /**
+         * Bytes written, records and padding, complete once the segment size.
+         */
+        final AtomicLong filled = new AtomicLong();
+
+        final AtomicLong garbage = new AtomicLong();
+
+        volatile boolean dirty;
+
+        volatile long retiredAt;
+
+        Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            view = buffer.asReadOnlyBuffer();
+        }
+    }
+
+    public ValueLogOffHeap(File directory) throws IOException {
+        this(directory, 1 << 26, 0.5);
+    }
+
+    /**
+     * Opens or creates a value log in directory, and replays it.
+     *
+     * @param segmentSize
+     *            power of two, from 64KB to 1GB, also the largest record
+     * @param garbageRatio
+     *            part of a segment which must be garbage for it to be collected
+     */
+    public ValueLogOffHeap(File directory, int segmentSize, double garbageRatio) throws IOException {
+        if (Integer.bitCount(segmentSize) != 1 || segmentSize < 1 << 16 || segmentSize > 1 << 30 || !(garbageRatio > 0 && garbageRatio <= 1))
+            throw new IllegalArgumentException();
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        segmentBits = Integer.numberOfTrailingZeros(segmentSize);
+        this.garbageRatio = garbageRatio;
+
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+
+        tail = new AtomicLong(replay());
+
+        collector = new Thread("offn-value-collector") {
+
+            @Override
+            public void run() {
+                while (!closed) {
+                    LockSupport.parkNanos(COLLECT_NANOS);
+
+                    try {
+                        if (!closed)
+                            collect();
+                    } catch (IOException e) {
+                        // Retried next pass, and segments stay as they are
+                    }
+                }
+            }
+        };
+
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    /**
+     * Number of segment files.
+     */
+    public int segments() {
+        int count = 0;
+
+        for (Segment s : table)
+            if (s != null && s.retiredAt == 0)
+                count++;
+
+        return count;
+    }
+
+    /* ---------------- Map operations -------------- */
+
+    /**
+     * Returns a read-only view of the value in the log, or null. The view stays valid
+     * after the value is replaced or relocated.
+     */
+    public ByteBuffer get(byte[] key) {
+        long pointer = map.get(key);
+
+        if (pointer == 0)
+            return null;
+
+        long offset = pointer - 1;
+        Segment s = table[(int) (offset >>> segmentBits)];
+        int position = (int) offset & (segmentSize - 1);
+        ByteBuffer view = s.view.duplicate();
+        Buffer b = view;
+        b.limit(position + HEADER + s.buffer.getInt(position + LENGTH));
+        b.position(position + HEADER);
+        return view.slice();
+    }
+
+    /**
+     * Appends the value's remaining bytes to the log and maps key to them. The value's
+     * position is left unchanged.
+     */
+    public void put(byte[] key, ByteBuffer value) {
+        if (key.length != KEY_LENGTH || value.remaining() > segmentSize - HEADER)
+            throw new IllegalArgumentException();
+
+        if (closed)
+            throw new IllegalStateException();
+
+        synchronized (stripe(key)) {
+            long previous = map.put(key, append(PUT, key, value));
+
+            if (previous != 0)
+                discard(previous);
+        }
+    }
+
+    /**
+     * @return false if key was not mapped
+     */
+    public boolean remove(byte[] key) {
+        if (key.length != KEY_LENGTH)
+            throw new IllegalArgumentException();
+
+        if (closed)
+            throw new IllegalStateException();
+
+        synchronized (stripe(key)) {
+            long previous = map.remove(key);
+
+            if (previous == 0)
+                return false;
+
+            discard(previous);
+            discard(append(REMOVE, key, null));
+            return true;
+        }
+    }
+
+    /**
+     * Forces records appended so far to disk.
+     */
+    public void sync() {
+        for (Segment s : table) {
+            if (s != null && s.dirty) {
+                s.dirty = false;
+                s.buffer.force();
+            }
+        }
+    }
+
+    private Object stripe(byte[] key) {
+        return stripes[Arrays.hashCode(key) & (STRIPES - 1)];
+    }
+
+    /* ---------------- Log -------------- */
+
+    private static int size(int length) {
+        return (HEADER + length + 7) & ~7;
+    }
+
+    /**
+     * Reserves space at the end of the log, writes the record and returns its pointer,
+     * offset + 1.
+     */
+    private long append(int op, byte[] key, ByteBuffer value) {
+        int length = value != null ? value.remaining() : 0;
+        int size = size(length);
+        long offset;
+
+        for (;;) {
+            offset = tail.get();
+            long end = (offset | (segmentSize - 1)) + 1;
+
+            if (end - offset >= size) {
+                if (tail.compareAndSet(offset, offset + size))
+                    break;
+            } else if (tail.compareAndSet(offset, end + size)) {
+                Segment s = segment(offset >>> segmentBits);
+                s.buffer.putInt((int) offset & (segmentSize - 1), PAD);
+                s.filled.addAndGet(end - offset);
+                offset = end;
+                break;
+            }
+        }
+
+        Segment s = segment(offset >>> segmentBits);
+        ByteBuffer buffer = s.buffer;
+        int position = (int) offset & (segmentSize - 1);
+        buffer.putInt(position + LENGTH, length);
+
+        for (int i = 0; i < KEY_LENGTH; i++)
+            buffer.put(position + KEY + i, key[i]);
+
+        if (value != null) {
+            ByteBuffer target = buffer.duplicate();
+            Buffer b = target;
+            b.position(position + HEADER);
+            target.put(value.duplicate());
+        }
+
+        buffer.putInt(position + CHECKSUM, checksum(buffer, position, op, length, offset));
+        buffer.putInt(position + OP, op);
+        s.dirty = true;
+        s.filled.addAndGet(size);
+        return offset + 1;
+    }
+
+    /**
+     * Counts the record of a pointer as garbage.
+     */
+    private void discard(long pointer) {
+        long offset = pointer - 1;
+        Segment s = table[(int) (offset >>> segmentBits)];
+        s.garbage.addAndGet(size(s.buffer.getInt(((int) offset & (segmentSize - 1)) + LENGTH)));
+    }
+
+    private static int checksum(ByteBuffer buffer, int position, int op, int length, long offset) {
+        long h = mix(offset, (long) op << 32 | length);
+        h = mix(h, buffer.getLong(position + KEY));
+        h = mix(h, buffer.getLong(position + KEY + 8));
+        h = mix(h, buffer.getInt(position + KEY + 16));
+        int i = position + HEADER, end = i + length;
+
+        for (; i + 8 <= end; i += 8)
+            h = mix(h, buffer.getLong(i));
+
+        for (; i < end; i++)
+            h = mix(h, buffer.get(i));
+
+        return (int) (h ^ h >>> 32);
+    }
+
+    private static long mix(long h, long x) {
+        h = (h ^ x) * 0x9e3779b97f4a7c15L;
+        return h ^ h >>> 29;
+    }
+
+    /**
+     * Size of the valid record at position, or 0 at the end of the segment, or if it
+     * doesn't check.
+     */
+    private int record(Segment s, int position) {
+        if (position + HEADER > segmentSize)
+            return 0;
+
+        ByteBuffer buffer = s.buffer;
+        int op = buffer.getInt(position + OP);
+        int length = buffer.getInt(position + LENGTH);
+
+        if ((op != PUT && (op != REMOVE || length != 0)) || length < 0 || length > segmentSize - HEADER - position)
+            return 0;
+
+        long offset = (s.id << segmentBits) + position;
+
+        if (buffer.getInt(position + CHECKSUM) != checksum(buffer, position, op, length, offset))
+            return 0;
+
+        return size(length);
+    }
+
+    private Segment segment(long id) {
+        Segment[] t = table;
+
+        if (id < t.length && t[(int) id] != null)
+            return t[(int) id];
+
+        synchronized (this) {
+            t = table;
+
+            if (id < t.length && t[(int) id] != null)
+                return t[(int) id];
+
+            try {
+                return open(id);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+    }
+
+    /**
+     * Maps a segment, creating its file if needed. Holding the lock.
+     */
+    private Segment open(long id) throws IOException {
+        File file = new File(directory, String.format("%016x", id) + SUFFIX);
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        Segment s;
+
+        try {
+            if (f.length() != segmentSize)
+                f.setLength(segmentSize);
+
+            s = new Segment(id, file, f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } finally {
+            f.close(); // Mapping stays valid
+        }
+
+        Segment[] t = table;
+
+        if (id >= t.length)
+            t = Arrays.copyOf(t, (int) Math.max(id + 1, t.length * 2L));
+        else
+            t = t.clone();
+
+        t[(int) id] = s;
+        table = t;
+        return s;
+    }
+
+    /* ---------------- Replay -------------- */
+
+    /**
+     * Applies records of all segments in order, and returns the offset after the last
+     * one. The rest of the last segment is cleared, so that later replays stop there.
+     */
+    private long replay() throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+
+            if (name.endsWith(SUFFIX) && name.length() == 16 + SUFFIX.length()) {
+                try {
+                    ids.add(Long.parseLong(name.substring(0, 16), 16));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+
+        Collections.sort(ids);
+        byte[] key = new byte[KEY_LENGTH];
+        long end = 0;
+
+        for (int i = 0; i < ids.size(); i++) {
+            Segment s;
+
+            synchronized (this) {
+                s = open(ids.get(i));
+            }
+
+            int position = 0, size;
+
+            while ((size = record(s, position)) != 0) {
+                for (int k = 0; k < KEY_LENGTH; k++)
+                    key[k] = s.buffer.get(position + KEY + k);
+
+                long pointer = ((s.id << segmentBits) + position) + 1;
+                long previous;
+
+                if (s.buffer.getInt(position + OP) == PUT)
+                    previous = map.put(key, pointer);
+                else {
+                    previous = map.remove(key);
+                    discard(pointer);
+                }
+
+                if (previous != 0)
+                    discard(previous);
+
+                position += size;
+            }
+
+            if (i < ids.size() - 1)
+                s.filled.set(segmentSize);
+            else {
+                for (int p = position; p < segmentSize; p += 8)
+                    s.buffer.putLong(p, 0);
+
+                s.filled.set(position);
+                s.dirty = true;
+                end = (s.id << segmentBits) + position;
+            }
+        }
+
+        return end;
+    }
+
+    /* ---------------- Collection -------------- */
+
+    /**
+     * Relocates live records of complete segments which have enough garbage, and
+     * deletes them. Also done periodically by a background thread.
+     *
+     * @return bytes of segments deleted
+     */
+    public long collect() throws IOException {
+        synchronized (collecting) {
+            long now = System.currentTimeMillis();
+
+            while (!retired.isEmpty() && now - retired.peek().retiredAt > FREE_MEMORY_DELAY_MS) {
+                Segment s = retired.poll();
+
+                synchronized (this) {
+                    Segment[] t = table.clone();
+                    t[(int) s.id] = null;
+                    table = t;
+                }
+            }
+
+            long freed = 0;
+            Segment[] t = table;
+
+            for (int i = 0; i < t.length; i++) {
+                Segment s = t[i];
+
+                if (s != null && s.retiredAt == 0 && s.filled.get() == segmentSize && s.garbage.get() >= garbageRatio * segmentSize) {
+                    relocate(s);
+                    freed += segmentSize;
+                }
+            }
+
+            return freed;
+        }
+    }
+
+    private void relocate(Segment s) throws IOException {
+        boolean older = false;
+        Segment[] t = table;
+
+        for (int i = 0; i < s.id && !older; i++)
+            older = t[i] != null && t[i].retiredAt == 0;
+
+        byte[] key = new byte[KEY_LENGTH];
+        ByteBuffer value = s.buffer.duplicate();
+        int position = 0, size;
+
+        while ((size = record(s, position)) != 0) {
+            for (int k = 0; k < KEY_LENGTH; k++)
+                key[k] = s.buffer.get(position + KEY + k);
+
+            long pointer = ((s.id << segmentBits) + position) + 1;
+
+            synchronized (stripe(key)) {
+                if (s.buffer.getInt(position + OP) == PUT) {
+                    if (map.get(key) == pointer) {
+                        Buffer b = value;
+                        b.limit(position + HEADER + s.buffer.getInt(position + LENGTH));
+                        b.position(position + HEADER);
+                        boolean replaced = map.replace(key, pointer, append(PUT, key, value));
+                        assert replaced;
+                    }
+                } else if (older && map.get(key) == 0)
+                    discard(append(REMOVE, key, null));
+            }
+
+            position += size;
+        }
+
+        // Relocated records must be durable before the originals are gone
+        sync();
+        s.retiredAt = System.currentTimeMillis();
+        retired.add(s);
+
+        if (!s.file.delete())
+            throw new IOException("Cannot delete " + s.file);
+    }
+
+    /**
+     * Stops the collector and forces the log. Writes must have returned. The map can
+     * still be read.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(collector);
+
+        try {
+            collector.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+
+        sync();
+    }
+}
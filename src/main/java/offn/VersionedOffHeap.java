@@ -0,0 +1,683 @@
+package offn;
+
+import static offn.OffHeap.UNSAFE;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Multi-version map, for scans that must see a consistent state while writes go on.
+ * Each key of the underlying OffHeap maps to the newest of a chain of version records
+ * in native memory, each with a version stamped from a global clock, a value, 0 for
+ * removals, and the previous record.
+ * <p>
+ * A write links a new record with version 0 in front of the chain, with a CAS on the
+ * node's value through OffHeap.replace, then stamps it with the next clock value.
+ * Readers finding a record still at 0 stamp it themselves, so that nobody waits for a
+ * writer. A snapshot reads the clock, and sees in each chain the newest record stamped
+ * at or below its version. Pending records it stamps get a later version, so they stay
+ * invisible to it. Writes which returned before the snapshot was taken are all stamped
+ * at or below it, and writes linked after get higher versions.
+ * <p>
+ * The horizon is a version at or below every open snapshot, recomputed from their
+ * slots by about one write in 64 and by vacuum. In each chain, records older than
+ * the newest one at or below the horizon can't be seen anymore. Writers cut them off
+ * their chain and retire them, freed after OffHeap's reclamation delay. Removal
+ * records older than the horizon make their key unreachable, and vacuum removes them
+ * from the map.
+ * <p>
+ * Transactions buffer their writes and read at a snapshot. To commit, a transaction
+ * links one record per written key, pointing to its descriptor, which act as write
+ * locks. It then gets a commit version, like a single write, and validates that no
+ * other write was stamped between its snapshot and its commit version on the keys it
+ * read. Its records become visible at once when the descriptor's status is set to
+ * committed. A reader meeting the record of a transaction which is not committed yet
+ * gives it a version above its own snapshot if it has none, or else waits for it a
+ * bounded time, then aborts it. Single writes abort such transactions the same way,
+ * and transactions abort themselves on the records of others, so nobody blocks.
+ */
+public final class VersionedOffHeap {
+
+    /**
+     * Version record layout. TXN is the descriptor of the transaction which wrote the
+     * record until it is settled, i.e. its version is set, or 0.
+     */
+    private static final int VERSION = 0, VALUE = 8, PREV = 16, TXN = 24, LENGTH = 32;
+
+    /**
+     * Transaction descriptor layout.
+     */
+    private static final int STATUS = 0, COMMIT = 8, DESCRIPTOR = 16;
+
+    private static final int ACTIVE = 0, COMMITTED = 1, ABORTED = 2;
+
+    /**
+     * Version of aborted records, above any snapshot.
+     */
+    private static final long NEVER = Long.MAX_VALUE;
+
+    /**
+     * Reads of a transaction's status before aborting it.
+     */
+    private static final int SPINS = 64;
+
+    /**
+     * Writes between two horizon updates, minus one.
+     */
+    private static final int ADVANCE = 63;
+
+    /**
+     * Maximum number of snapshots open at once, including those of transactions, and
+     * number of slots threads start probing from.
+     */
+    private static final int SLOTS = 1024, START = 64, PAD = 8;
+
+    private static final long FREE = Long.MAX_VALUE;
+
+    private final OffHeap map = new OffHeap();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Versions of open snapshots, one per padded slot, FREE if unused.
+     */
+    private final AtomicLongArray snapshots = new AtomicLongArray(SLOTS * PAD);
+
+    /**
+     * Slots above this have never been used.
+     */
+    private final AtomicInteger used = new AtomicInteger();
+
+    private volatile long horizon;
+
+    private static final AtomicLongFieldUpdater<VersionedOffHeap> HORIZON = //
+    AtomicLongFieldUpdater.newUpdater(VersionedOffHeap.class, "horizon");
+
+    private final AtomicLong commits = new AtomicLong(), aborts = new AtomicLong();
+
+    /* ---------------- Records -------------- */
+
+    private static long newRecord(long value, long txn) {
+        long record = UNSAFE.allocateMemory(LENGTH);
+        UNSAFE.putLong(record + VERSION, 0);
+        UNSAFE.putLong(record + VALUE, value);
+        UNSAFE.putLong(record + PREV, 0);
+        UNSAFE.putLong(record + TXN, txn);
+        return record;
+    }
+
+    private static long value(long record) {
+        return UNSAFE.getLong(record + VALUE);
+    }
+
+    private static long prev(long record) {
+        return UNSAFE.getLongVolatile(null, record + PREV);
+    }
+
+    private static long txn(long record) {
+        return UNSAFE.getLongVolatile(null, record + TXN);
+    }
+
+    /**
+     * Returns the record's version, stamping it first if it is a pending single write.
+     * Returns NEVER for records of aborted transactions, and 0 for those of active
+     * ones.
+     */
+    private long settle(long record) {
+        long version = UNSAFE.getLongVolatile(null, record + VERSION);
+
+        if (version != 0)
+            return version;
+
+        long txn = txn(record);
+
+        if (txn == 0) {
+            UNSAFE.compareAndSwapLong(null, record + VERSION, 0, clock.incrementAndGet());
+            return UNSAFE.getLongVolatile(null, record + VERSION);
+        }
+
+        int status = UNSAFE.getIntVolatile(null, txn + STATUS);
+
+        if (status == ACTIVE) // Or settled meanwhile and the descriptor reused
+            return UNSAFE.getLongVolatile(null, record + VERSION);
+
+        return status == COMMITTED ? UNSAFE.getLongVolatile(null, txn + COMMIT) : NEVER;
+    }
+
+    /**
+     * Like settle, but resolves records of active transactions. If the transaction
+     * has no commit version, gives it one above version, so the record is invisible
+     * at version. Otherwise waits for it a bounded time, then aborts it.
+     */
+    private long resolve(long record, long version) {
+        for (int spins = 0;; spins++) {
+            long v = settle(record);
+
+            if (v != 0)
+                return v;
+
+            long txn = txn(record);
+
+            if (txn == 0) // Settled since, its version is set
+                continue;
+
+            long commit = UNSAFE.getLongVolatile(null, txn + COMMIT);
+
+            if (commit == 0) {
+                UNSAFE.compareAndSwapLong(null, txn + COMMIT, 0, clock.incrementAndGet());
+                commit = UNSAFE.getLongVolatile(null, txn + COMMIT);
+            }
+
+            if (commit > version)
+                return commit;
+
+            if (spins == SPINS)
+                UNSAFE.compareAndSwapInt(null, txn + STATUS, ACTIVE, ABORTED);
+            else if (spins > SPINS)
+                Thread.yield();
+        }
+    }
+
+    /**
+     * Newest record of a chain visible at version, or 0.
+     */
+    private long visible(long record, long version) {
+        while (record != 0 && resolve(record, version) > version)
+            record = prev(record);
+
+        return record;
+    }
+
+    /**
+     * Detaches the records older than the newest one at or below the horizon, and
+     * retires them. Links are taken with a CAS, so that concurrent trims of the same
+     * chain retire each record once.
+     */
+    private void trim(long record) {
+        long horizon = this.horizon;
+
+        while (record != 0 && settled(record) > horizon)
+            record = prev(record);
+
+        if (record != 0)
+            retire(detach(record));
+    }
+
+    /**
+     * Version of a record for trimming, records of active transactions are kept.
+     */
+    private long settled(long record) {
+        long version = settle(record);
+        return version != 0 ? version : NEVER;
+    }
+
+    private static long detach(long record) {
+        for (;;) {
+            long prev = prev(record);
+
+            if (prev == 0 || UNSAFE.compareAndSwapLong(null, record + PREV, prev, 0))
+                return prev;
+        }
+    }
+
+    private static void retire(long record) {
+        while (record != 0) {
+            long prev = detach(record);
+            OffHeap.onDelete(record);
+            record = prev;
+        }
+    }
+
+    /* ---------------- Writes -------------- */
+
+    public long get(byte[] key) {
+        long head = map.get(key);
+        long record = head != 0 ? visible(head, clock.get()) : 0;
+        return record != 0 ? value(record) : 0;
+    }
+
+    public long put(byte[] key, long value) {
+        if (value == 0)
+            throw new IllegalArgumentException();
+
+        return write(key, value);
+    }
+
+    public long remove(byte[] key) {
+        return write(key, 0);
+    }
+
+    /**
+     * Links a new record in front of the chain and stamps it. The head is settled
+     * first, aborting its transaction if needed, so that chains stay in version order.
+     *
+     * @return the previous value, or 0
+     */
+    private long write(byte[] key, long value) {
+        long record = newRecord(value, 0);
+
+        for (;;) {
+            long head = map.get(key);
+
+            if (head == 0 && value == 0) { // Nothing to remove
+                UNSAFE.freeMemory(record);
+                return 0;
+            }
+
+            if (head != 0)
+                resolve(head, NEVER - 1);
+
+            UNSAFE.putLong(record + PREV, head);
+
+            if (head == 0 ? map.putIfAbsent(key, record) == 0 : map.replace(key, head, record)) {
+                long version = clock.incrementAndGet();
+                UNSAFE.compareAndSwapLong(null, record + VERSION, 0, version);
+                long previous = visible(head, NEVER - 1);
+                previous = previous != 0 ? value(previous) : 0;
+
+                if ((version & ADVANCE) == 0)
+                    advance();
+
+                trim(record);
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Links a transaction's record in front of the chain. Fails if the head is the
+     * record of another active transaction.
+     */
+    private boolean link(byte[] key, long record) {
+        for (;;) {
+            long head = map.get(key);
+
+            if (head != 0 && settle(head) == 0)
+                return false;
+
+            UNSAFE.putLong(record + PREV, head);
+
+            if (head == 0 ? map.putIfAbsent(key, record) == 0 : map.replace(key, head, record))
+                return true;
+        }
+    }
+
+    /**
+     * Removes a transaction's aborted record from its chain if still in front, or
+     * leaves it to be trimmed.
+     */
+    private void unlink(byte[] key, long record) {
+        long prev = prev(record);
+
+        if (prev != 0 ? map.replace(key, record, prev) : map.remove(key, record))
+            OffHeap.onDelete(record);
+    }
+
+    /* ---------------- Snapshots -------------- */
+
+    {
+        for (int i = 0; i < SLOTS; i++)
+            snapshots.set(i * PAD, FREE);
+    }
+
+    /**
+     * Moves the horizon to the oldest open snapshot, or to the clock if none. A slot
+     * is scanned either after its snapshot pinned it, or before, in which case the
+     * clock read here precedes the snapshot's own read of it.
+     */
+    private void advance() {
+        long version = clock.get();
+        int used = this.used.get();
+
+        for (int i = 0; i < used; i++)
+            version = Math.min(version, snapshots.get(i * PAD));
+
+        for (;;) {
+            long current = horizon;
+
+            if (version <= current || HORIZON.compareAndSet(this, current, version))
+                return;
+        }
+    }
+
+    /**
+     * Opens a read view of all writes which returned before this call. Must be closed
+     * for old versions to be reclaimed. The slot is first pinned with the horizon, and
+     * made part of scans, which keeps the horizon from moving past the version read
+     * next.
+     */
+    public Snapshot snapshot() {
+        long pin = horizon;
+        int start = (int) Thread.currentThread().getId() & (START - 1);
+
+        for (int spins = 0;; spins++) {
+            int index = (start + spins) & (SLOTS - 1), slot = index * PAD;
+
+            if (snapshots.get(slot) == FREE && snapshots.compareAndSet(slot, FREE, pin)) {
+                for (int u; (u = used.get()) <= index;)
+                    used.compareAndSet(u, index + 1);
+
+                long version = clock.get();
+                snapshots.set(slot, version);
+                return new Snapshot(version, slot);
+            }
+
+            if (spins >= SLOTS)
+                Thread.yield();
+        }
+    }
+
+    public final class Snapshot {
+
+        private final long version;
+
+        private final int slot;
+
+        private boolean closed;
+
+        Snapshot(long version, int slot) {
+            this.version = version;
+            this.slot = slot;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public long get(byte[] key) {
+            if (closed)
+                throw new IllegalStateException();
+            long head = map.get(key);
+            long record = head != 0 ? visible(head, version) : 0;
+            return record != 0 ? value(record) : 0;
+        }
+
+        /**
+         * Ordered scan of the mappings as of this snapshot.
+         */
+        public Cursor cursor(byte[] from) {
+            if (closed)
+                throw new IllegalStateException();
+            return new Cursor(map.cursor(from), version);
+        }
+
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            snapshots.set(slot, FREE);
+        }
+    }
+
+    public final class Cursor {
+
+        private final OffHeap.Cursor cursor;
+
+        private final long version;
+
+        private long value;
+
+        Cursor(OffHeap.Cursor cursor, long version) {
+            this.cursor = cursor;
+            this.version = version;
+        }
+
+        /**
+         * Moves to the next key mapped at the snapshot's version.
+         *
+         * @return false if there are no more mappings
+         */
+        public boolean next() {
+            while (cursor.next()) {
+                long record = visible(cursor.value(), version);
+
+                if (record != 0 && (value = VersionedOffHeap.value(record)) != 0)
+                    return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Key of the current mapping. The array belongs to the cursor and is overwritten
+         * by next.
+         */
+        public byte[] key() {
+            return cursor.key();
+        }
+
+        public long value() {
+            return value;
+        }
+    }
+
+    /* ---------------- Transactions -------------- */
+
+    private static final Comparator<byte[]> ORDER = new Comparator<byte[]>() {
+
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return OffHeap.compare(a, b);
+        }
+    };
+
+    /**
+     * Starts a transaction, which reads at a new snapshot.
+     */
+    public Transaction begin() {
+        return new Transaction(snapshot());
+    }
+
+    public long commits() {
+        return commits.get();
+    }
+
+    public long aborts() {
+        return aborts.get();
+    }
+
+    /**
+     * Optimistic transaction, serializable at its commit version, or at its snapshot
+     * if it only reads. Reads see the transaction's own writes. Not thread safe.
+     */
+    public final class Transaction {
+
+        private final Snapshot snapshot;
+
+        /**
+         * Record each key was read from, 0 if none.
+         */
+        private final TreeMap<byte[], Long> reads = new TreeMap<byte[], Long>(ORDER);
+
+        /**
+         * Values to write, 0 for removals.
+         */
+        private final TreeMap<byte[], Long> writes = new TreeMap<byte[], Long>(ORDER);
+
+        private boolean done;
+
+        Transaction(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public long get(byte[] key) {
+            check();
+            Long written = writes.get(key);
+
+            if (written != null)
+                return written;
+
+            long head = map.get(key);
+            long record = head != 0 ? visible(head, snapshot.version) : 0;
+
+            if (!reads.containsKey(key))
+                reads.put(key.clone(), record);
+
+            return record != 0 ? value(record) : 0;
+        }
+
+        public void put(byte[] key, long value) {
+            if (value == 0)
+                throw new IllegalArgumentException();
+            check();
+            writes.put(key.clone(), value);
+        }
+
+        public void remove(byte[] key) {
+            check();
+            writes.put(key.clone(), 0L);
+        }
+
+        /**
+         * Links records for the writes in key order, gets a commit version, validates
+         * reads, and publishes everything with one CAS on the descriptor's status.
+         *
+         * @return false if the transaction aborted
+         */
+        public boolean commit() {
+            check();
+            done = true;
+
+            try {
+                if (writes.isEmpty()) {
+                    commits.incrementAndGet();
+                    return true;
+                }
+
+                long txn = UNSAFE.allocateMemory(DESCRIPTOR);
+                UNSAFE.putInt(txn + STATUS, ACTIVE);
+                UNSAFE.putLong(txn + COMMIT, 0);
+                byte[][] keys = writes.keySet().toArray(new byte[writes.size()][]);
+                long[] records = new long[keys.length];
+                int linked = 0;
+                boolean ok = true;
+
+                for (; linked < keys.length; linked++) {
+                    long record = newRecord(writes.get(keys[linked]), txn);
+
+                    if (!link(keys[linked], record)) {
+                        UNSAFE.freeMemory(record);
+                        ok = false;
+                        break;
+                    }
+
+                    records[linked] = record;
+                }
+
+                long commit = 0;
+
+                if (ok) {
+                    UNSAFE.compareAndSwapLong(null, txn + COMMIT, 0, clock.incrementAndGet());
+                    commit = UNSAFE.getLongVolatile(null, txn + COMMIT);
+                    ok = validate(txn, commit);
+                }
+
+                if (ok)
+                    ok = UNSAFE.compareAndSwapInt(null, txn + STATUS, ACTIVE, COMMITTED);
+                else
+                    UNSAFE.compareAndSwapInt(null, txn + STATUS, ACTIVE, ABORTED);
+
+                // Settle records, then they don't need the descriptor anymore
+                for (int i = 0; i < linked; i++) {
+                    UNSAFE.putLongVolatile(null, records[i] + VERSION, ok ? commit : NEVER);
+                    UNSAFE.putLongVolatile(null, records[i] + TXN, 0);
+                }
+
+                for (int i = 0; i < linked; i++) {
+                    if (ok)
+                        trim(records[i]);
+                    else
+                        unlink(keys[i], records[i]);
+                }
+
+                OffHeap.onDelete(txn);
+                (ok ? commits : aborts).incrementAndGet();
+
+                if (ok && (commit & ADVANCE) == 0)
+                    advance();
+
+                return ok;
+            } finally {
+                snapshot.close();
+            }
+        }
+
+        /**
+         * Checks that for each key read, the newest record at or below the commit
+         * version, ignoring the transaction's own, is still the one read. Records of
+         * other active transactions might end up below it, so they fail validation.
+         */
+        private boolean validate(long txn, long commit) {
+            for (Map.Entry<byte[], Long> read : reads.entrySet()) {
+                long record = map.get(read.getKey());
+
+                for (; record != 0; record = prev(record)) {
+                    if (txn(record) == txn)
+                        continue;
+
+                    long version = settle(record);
+
+                    if (version == 0)
+                        return false;
+
+                    if (version <= commit)
+                        break;
+                }
+
+                if (record != read.getValue())
+                    return false;
+            }
+
+            return true;
+        }
+
+        public void abort() {
+            if (done)
+                return;
+            done = true;
+            aborts.incrementAndGet();
+            snapshot.close();
+        }
+
+        private void check() {
+            if (done)
+                throw new IllegalStateException();
+        }
+    }
+
+    /* ---------------- Vacuum -------------- */
+
+    /**
+     * Trims every chain and removes keys whose newest record is a removal at or below
+     * the horizon. Writes only trim the chain they write to, so this reclaims keys
+     * that are not written anymore. Meant to be called periodically.
+     *
+     * @return the number of keys removed
+     */
+    public long vacuum() {
+        advance();
+        long horizon = this.horizon, removed = 0;
+        byte[] key = new byte[OffHeap.KEY_LENGTH];
+
+        for (OffHeap.Cursor cursor = map.cursor(null); cursor.next();) {
+            long head = cursor.value();
+
+            if (value(head) == 0 && settled(head) <= horizon) {
+                System.arraycopy(cursor.key(), 0, key, 0, key.length);
+
+                if (map.remove(key, head)) {
+                    retire(head);
+                    removed++;
+                }
+            } else
+                trim(head);
+        }
+
+        return removed;
+    }
+}
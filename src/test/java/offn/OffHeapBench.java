@@ -0,0 +1,1371 @@
+/**
+ * This file is part of ObjectFabric (http://objectfabric.org).
+ *
+ * ObjectFabric is licensed under the Apache License, Version 2.0, the terms
+ * of which may be found at http://www.apache.org/licenses/LICENSE-2.0.html.
+ *
+ * Copyright ObjectFabric Inc.
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package offn;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rough throughput numbers, run manually: java -cp ... offn.OffHeapBench [name]
+ */
+public class OffHeapBench {
+  static final int ENTRIES = 1000000;
+
+  static final int ROUNDS = 3;
+
+  public static void main(String[] args) throws Exception {
+    String name = args.length > 0 ? args[0] : null;
+
+    if( name == null || name.equals("getAll") )
+      getAll();
+
+    if( name == null || name.equals("load") )
+      load();
+
+    if( name == null || name.equals("parallelLoad") )
+      parallelLoad();
+
+    if( name == null || name.equals("finger") )
+      finger();
+
+    if( name == null || name.equals("sharded") )
+      sharded();
+
+    if( name == null || name.equals("singleWriter") )
+      singleWriter();
+
+    if( name == null || name.equals("combining") )
+      combining();
+
+    if( name == null || name.equals("transactions") )
+      transactions();
+
+    if( name == null || name.equals("backoff") )
+      backoff();
+
+    if( name == null || name.equals("readOnlyLookups") )
+      readOnlyLookups();
+
+    if( name == null || name.equals("maintenance") )
+      maintenance();
+
+    if( name == null || name.equals("rebuildIndex") )
+      rebuildIndex();
+
+    if( name == null || name.equals("density") )
+      density();
+
+    if( name == null || name.equals("mapped") )
+      mapped();
+
+    if( name == null || name.equals("snapshot") )
+      snapshot();
+
+    if( name == null || name.equals("durable") )
+      durable();
+
+    if( name == null || name.equals("lsm") )
+      lsm();
+
+    if( name == null || name.equals("valueLog") )
+      valueLog();
+
+    if( name == null || name.equals("export") )
+      export();
+
+    if( name == null || name.equals("changeLog") )
+      changeLog();
+
+    if( name == null || name.equals("replication") )
+      replication();
+
+    if( name == null || name.equals("changeIndex") )
+      changeIndex();
+  }
+
+  static byte[][] keys(int count, long seed) {
+    Random rand = new Random(seed);
+    byte[][] keys = new byte[count][];
+
+    for( int i = 0; i < count; i++ ) {
+      keys[i] = new byte[20];
+      rand.nextBytes(keys[i]);
+    }
+
+    return keys;
+  }
+
+  static OffHeap fill(byte[][] keys) {
+    OffHeap map = new OffHeap();
+
+    for( int i = 0; i < keys.length; i++ )
+      map.put(keys[i], i + 1);
+
+    return map;
+  }
+
+  static void report(String name, long ops, long nanos) {
+    System.out.println(String.format("%-40s %10.0f ops/s", name, ops * 1e9 / nanos));
+  }
+
+  static void getAll() {
+    byte[][] keys = keys(ENTRIES, 0);
+    OffHeap map = fill(keys);
+    Random rand = new Random(1);
+
+    for( int batch : new int[] { 10, 100, 500 } ) {
+      byte[][] query = new byte[batch][];
+      long[] results = new long[batch];
+      int batches = 1000000 / batch;
+
+      for( int round = 0; round < ROUNDS; round++ ) {
+        long loop = 0, all = 0;
+
+        for( int b = 0; b < batches; b++ ) {
+          for( int i = 0; i < batch; i++ )
+            query[i] = keys[rand.nextInt(keys.length)];
+
+          long start = System.nanoTime();
+
+          for( int i = 0; i < batch; i++ )
+            results[i] = map.get(query[i]);
+
+          loop += System.nanoTime() - start;
+
+          // Different keys, otherwise the loop warms the cache for getAll
+          for( int i = 0; i < batch; i++ )
+            query[i] = keys[rand.nextInt(keys.length)];
+
+          start = System.nanoTime();
+          map.getAll(query, results);
+          all += System.nanoTime() - start;
+        }
+
+        if( round == ROUNDS - 1 ) {
+          report("get loop, batch " + batch, (long) batches * batch, loop);
+          report("getAll, batch " + batch, (long) batches * batch, all);
+        }
+      }
+    }
+  }
+
+  static void load() {
+    byte[][] keys = keys(ENTRIES, 0);
+    Arrays.sort(keys, OffHeapTest.UNSIGNED);
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      long start = System.nanoTime();
+      fill(keys);
+      long put = System.nanoTime() - start;
+      start = System.nanoTime();
+      OffHeap.Builder builder = new OffHeap.Builder();
+
+      for( int i = 0; i < keys.length; i++ )
+        builder.add(keys[i], i + 1);
+
+      builder.build();
+      long build = System.nanoTime() - start;
+
+      if( round == ROUNDS - 1 ) {
+        report("put, sorted keys", keys.length, put);
+        report("Builder", keys.length, build);
+      }
+    }
+  }
+
+  static void parallelLoad() {
+    byte[][] keys = keys(ENTRIES, 0);
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      long start = System.nanoTime();
+      fill(keys);
+      long put = System.nanoTime() - start;
+      int cores = Runtime.getRuntime().availableProcessors();
+
+      if( round == ROUNDS - 1 )
+        report("put, random keys", keys.length, put);
+
+      for( int threads = 1; threads <= cores; threads *= 2 ) {
+        start = System.nanoTime();
+        ParallelBuilder builder = new ParallelBuilder(keys.length);
+
+        for( int i = 0; i < keys.length; i++ )
+          builder.add(keys[i], i + 1);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        builder.build(pool);
+        pool.shutdown();
+
+        if( round == ROUNDS - 1 )
+          report("ParallelBuilder, " + threads + " threads", keys.length, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Forward walk with small random strides, one put for every four gets.
+   */
+  static void finger() {
+    byte[][] keys = keys(ENTRIES, 0);
+    Arrays.sort(keys, OffHeapTest.UNSIGNED);
+    OffHeap map = fill(keys);
+    Random rand = new Random(1);
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      for( int pass = 0; pass < 2; pass++ ) {
+        OffHeap.Finger finger = pass == 0 ? null : new OffHeap.Finger();
+        long start = System.nanoTime();
+        int ops = 0;
+
+        for( int i = 0; i < keys.length; i += 1 + rand.nextInt(16), ops++ ) {
+          if( finger == null ) {
+            if( ops % 5 == 0 )
+              map.put(keys[i], i + 1);
+            else
+              map.get(keys[i]);
+          } else {
+            if( ops % 5 == 0 )
+              map.put(keys[i], i + 1, finger);
+            else
+              map.get(keys[i], finger);
+          }
+        }
+
+        if( round == ROUNDS - 1 )
+          report(finger == null ? "get/put, close keys" : "get/put, close keys, finger", ops, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Half puts and half gets on random keys, 1 to 64 threads, single map vs shards.
+   */
+  static void sharded() throws Exception {
+    final byte[][] keys = keys(ENTRIES, 0);
+    final int ops = 2000000;
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      for( int threads = 1; threads <= 64; threads *= 2 ) {
+        for( int pass = 0; pass < 2; pass++ ) {
+          final OffHeap single = pass == 0 ? fill(keys) : null;
+          final ShardedOffHeap sharded = pass == 0 ? null : new ShardedOffHeap();
+
+          if( sharded != null )
+            for( int i = 0; i < keys.length; i++ )
+              sharded.put(keys[i], i + 1);
+
+          Thread[] workers = new Thread[threads];
+
+          for( int t = 0; t < threads; t++ ) {
+            final int seed = t;
+            final int count = ops / threads;
+
+            workers[t] = new Thread() {
+
+              @Override
+              public void run() {
+                Random rand = new Random(seed);
+
+                for( int i = 0; i < count; i++ ) {
+                  int k = rand.nextInt(keys.length);
+
+                  if( single != null ) {
+                    if( (i & 1) == 0 )
+                      single.put(keys[k], i + 1);
+                    else
+                      single.get(keys[k]);
+                  } else {
+                    if( (i & 1) == 0 )
+                      sharded.put(keys[k], i + 1);
+                    else
+                      sharded.get(keys[k]);
+                  }
+                }
+              }
+            };
+          }
+
+          long start = System.nanoTime();
+
+          for( Thread worker : workers )
+            worker.start();
+
+          for( Thread worker : workers )
+            worker.join();
+
+          long nanos = System.nanoTime() - start;
+
+          if( round == ROUNDS - 1 )
+            report((single != null ? "OffHeap, " : "ShardedOffHeap, ") + threads + " threads", ops, nanos);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writer side only, puts of new keys, overwrites, then removes. Small maps stay in
+   * cache, where the cost of CAS instructions is not hidden by misses.
+   */
+  static void singleWriter() {
+    for( int size : new int[] { 10000, ENTRIES } ) {
+      byte[][] keys = keys(size, 0);
+      int repeat = ENTRIES / size;
+
+      for( int round = 0; round < ROUNDS; round++ ) {
+        for( int pass = 0; pass < 2; pass++ ) {
+          String mode = (pass == 0 ? "CAS, " : "single writer, ") + size;
+          long insert = 0, update = 0, remove = 0;
+
+          for( int r = 0; r < repeat; r++ ) {
+            OffHeap map = new OffHeap(pass == 1);
+            long start = System.nanoTime();
+
+            for( int i = 0; i < keys.length; i++ )
+              map.put(keys[i], i + 1);
+
+            insert += System.nanoTime() - start;
+            start = System.nanoTime();
+
+            for( int i = 0; i < keys.length; i++ )
+              map.put(keys[i], i + 2);
+
+            update += System.nanoTime() - start;
+            start = System.nanoTime();
+
+            for( int i = 0; i < keys.length; i++ )
+              map.remove(keys[i]);
+
+            remove += System.nanoTime() - start;
+          }
+
+          if( round == ROUNDS - 1 ) {
+            report("insert, " + mode, ENTRIES, insert);
+            report("update, " + mode, ENTRIES, update);
+            report("remove, " + mode, ENTRIES, remove);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Zipfian keys, s = 0.99 over 1000 keys, all threads putting. Every 16th operation
+   * is timed for percentiles.
+   */
+  static void combining() throws Exception {
+    final byte[][] keys = keys(1000, 0);
+    final double[] cdf = new double[keys.length];
+    double sum = 0;
+
+    for( int i = 0; i < keys.length; i++ )
+      cdf[i] = sum += 1 / Math.pow(i + 1, 0.99);
+
+    for( int i = 0; i < keys.length; i++ )
+      cdf[i] /= sum;
+
+    final int ops = 1000000;
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      for( int threads = 4; threads <= 64; threads *= 4 ) {
+        for( int pass = 0; pass < 2; pass++ ) {
+          final OffHeap plain = pass == 0 ? new OffHeap() : null;
+          final CombiningOffHeap combining = pass == 0 ? null : new CombiningOffHeap();
+          final int count = ops / threads & ~15;
+          final long[][] latencies = new long[threads][count / 16];
+          Thread[] workers = new Thread[threads];
+
+          for( int t = 0; t < threads; t++ ) {
+            final int thread = t;
+
+            workers[t] = new Thread() {
+
+              @Override
+              public void run() {
+                Random rand = new Random(thread);
+
+                for( int i = 0; i < count; i++ ) {
+                  int k = Arrays.binarySearch(cdf, rand.nextDouble());
+                  byte[] key = keys[Math.min(k < 0 ? -k - 1 : k, keys.length - 1)];
+                  long start = (i & 15) == 0 ? System.nanoTime() : 0;
+
+                  if( plain != null )
+                    plain.put(key, i + 1);
+                  else
+                    combining.put(key, i + 1);
+
+                  if( (i & 15) == 0 )
+                    latencies[thread][i >> 4] = System.nanoTime() - start;
+                }
+              }
+            };
+          }
+
+          long start = System.nanoTime();
+
+          for( Thread worker : workers )
+            worker.start();
+
+          for( Thread worker : workers )
+            worker.join();
+
+          long nanos = System.nanoTime() - start;
+
+          if( round == ROUNDS - 1 ) {
+            long[] all = new long[threads * (count / 16)];
+
+            for( int t = 0; t < threads; t++ )
+              System.arraycopy(latencies[t], 0, all, t * (count / 16), count / 16);
+
+            Arrays.sort(all);
+            String mode = (plain != null ? "put, " : "combining put, ") + threads + " threads";
+            report(mode, (long) count * threads, nanos);
+            System.out.println(String.format("%-40s %10d ns p99, %d ns p999", "", all[all.length * 99 / 100], all[all.length * 999 / 1000]));
+
+            if( combining != null )
+              System.out.println(String.format("%-40s %10.1f ops/batch", "", combining.averageBatch()));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Transfers between two random accounts, fewer accounts meaning more contention.
+   */
+  static void transactions() throws Exception {
+    final int ops = 200000;
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      for( int accounts : new int[] { 4, 64, 100000 } ) {
+        for( int threads = 1; threads <= 16; threads *= 4 ) {
+          final VersionedOffHeap map = new VersionedOffHeap();
+          final byte[][] keys = keys(accounts, 0);
+
+          for( int i = 0; i < keys.length; i++ )
+            map.put(keys[i], 1000000);
+
+          final int count = ops / threads;
+          Thread[] workers = new Thread[threads];
+
+          for( int t = 0; t < threads; t++ ) {
+            final int seed = t;
+
+            workers[t] = new Thread() {
+
+              @Override
+              public void run() {
+                Random rand = new Random(seed);
+
+                for( int i = 0; i < count; ) {
+                  byte[] from = keys[rand.nextInt(keys.length)], to = keys[rand.nextInt(keys.length)];
+
+                  if( from == to )
+                    continue;
+
+                  VersionedOffHeap.Transaction txn = map.begin();
+                  long a = txn.get(from), b = txn.get(to);
+                  txn.put(from, a - 1);
+                  txn.put(to, b + 1);
+
+                  if( txn.commit() )
+                    i++;
+                }
+              }
+            };
+          }
+
+          long start = System.nanoTime();
+
+          for( Thread worker : workers )
+            worker.start();
+
+          for( Thread worker : workers )
+            worker.join();
+
+          long nanos = System.nanoTime() - start;
+
+          if( round == ROUNDS - 1 ) {
+            report("transfer, " + accounts + " accounts, " + threads + " threads", map.commits(), nanos);
+            double rate = (double) map.aborts() / (map.commits() + map.aborts());
+            System.out.println(String.format("%-40s %10.2f%% aborts", "", rate * 100));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Puts and removes on a few adjacent keys, so that threads keep changing each
+   * other's predecessors.
+   */
+  static void backoff() throws Exception {
+    final byte[][] keys = keys(64, 0);
+    final int ops = 1000000;
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      for( int threads = 4; threads <= 64; threads *= 4 ) {
+        for( OffHeap.Backoff backoff : OffHeap.Backoff.values() ) {
+          final OffHeap map = new OffHeap();
+          map.backoff(backoff);
+          final int count = ops / threads & ~15;
+          final long[][] latencies = new long[threads][count / 16];
+          Thread[] workers = new Thread[threads];
+
+          for( int t = 0; t < threads; t++ ) {
+            final int thread = t;
+
+            workers[t] = new Thread() {
+
+              @Override
+              public void run() {
+                Random rand = new Random(thread);
+
+                for( int i = 0; i < count; i++ ) {
+                  byte[] key = keys[rand.nextInt(keys.length)];
+                  long start = (i & 15) == 0 ? System.nanoTime() : 0;
+
+                  if( (i & 1) == 0 )
+                    map.put(key, i + 1);
+                  else
+                    map.remove(key);
+
+                  if( (i & 15) == 0 )
+                    latencies[thread][i >> 4] = System.nanoTime() - start;
+                }
+              }
+            };
+          }
+
+          long start = System.nanoTime();
+
+          for( Thread worker : workers )
+            worker.start();
+
+          for( Thread worker : workers )
+            worker.join();
+
+          long nanos = System.nanoTime() - start;
+
+          if( round == ROUNDS - 1 ) {
+            long[] all = new long[threads * (count / 16)];
+
+            for( int t = 0; t < threads; t++ )
+              System.arraycopy(latencies[t], 0, all, t * (count / 16), count / 16);
+
+            Arrays.sort(all);
+            report(backoff.name().toLowerCase() + ", " + threads + " threads", (long) count * threads, nanos);
+            StringBuilder restarts = new StringBuilder();
+
+            for( OffHeap.Site site : OffHeap.Site.values() )
+              restarts.append(site.name().toLowerCase() + " " + map.restarts(site) + " ");
+
+            System.out.println(String.format("%-40s %10d ns p99, restarts %s", "", all[all.length * 99 / 100], restarts));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Read-mostly, one operation in 32 removes a key and puts it back.
+   */
+  static void readOnlyLookups() throws Exception {
+    final byte[][] keys = keys(100000, 0);
+    final int ops = 4000000;
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      for( int threads = 1; threads <= 16; threads *= 4 ) {
+        for( int pass = 0; pass < 2; pass++ ) {
+          final OffHeap map = fill(keys);
+          map.readOnlyLookups(pass == 1);
+          final int count = ops / threads;
+          Thread[] workers = new Thread[threads];
+
+          for( int t = 0; t < threads; t++ ) {
+            final int seed = t;
+
+            workers[t] = new Thread() {
+
+              @Override
+              public void run() {
+                Random rand = new Random(seed);
+
+                for( int i = 0; i < count; i++ ) {
+                  int k = rand.nextInt(keys.length);
+
+                  if( (i & 31) == 0 ) {
+                    map.remove(keys[k]);
+                    map.put(keys[k], k + 1);
+                  } else
+                    map.get(keys[k]);
+                }
+              }
+            };
+          }
+
+          long start = System.nanoTime();
+
+          for( Thread worker : workers )
+            worker.start();
+
+          for( Thread worker : workers )
+            worker.join();
+
+          long nanos = System.nanoTime() - start;
+
+          if( round == ROUNDS - 1 )
+            report((pass == 0 ? "helping gets, " : "read-only gets, ") + threads + " threads", ops, nanos);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes and puts back random keys, with cleanup in removals or in a maintenance
+   * thread, and reports removal latencies.
+   */
+  static void maintenance() throws Exception {
+    final byte[][] keys = keys(100000, 0);
+    final int ops = 1000000, threads = 4;
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      for( int pass = 0; pass < 2; pass++ ) {
+        final OffHeap map = fill(keys);
+        Maintenance maintenance = pass == 0 ? null : new Maintenance(10);
+
+        if( maintenance != null )
+          maintenance.add(map);
+
+        final int count = ops / threads & ~15;
+        final long[][] latencies = new long[threads][count / 16];
+        Thread[] workers = new Thread[threads];
+
+        for( int t = 0; t < threads; t++ ) {
+          final int thread = t;
+
+          workers[t] = new Thread() {
+
+            @Override
+            public void run() {
+              Random rand = new Random(thread);
+
+              for( int i = 0; i < count; i++ ) {
+                int k = rand.nextInt(keys.length);
+                long start = (i & 15) == 0 ? System.nanoTime() : 0;
+                map.remove(keys[k]);
+
+                if( (i & 15) == 0 )
+                  latencies[thread][i >> 4] = System.nanoTime() - start;
+
+                map.put(keys[k], k + 1);
+              }
+            }
+          };
+        }
+
+        long start = System.nanoTime();
+
+        for( Thread worker : workers )
+          worker.start();
+
+        for( Thread worker : workers )
+          worker.join();
+
+        long nanos = System.nanoTime() - start;
+
+        if( maintenance != null )
+          maintenance.close();
+
+        if( round == ROUNDS - 1 ) {
+          long[] all = new long[threads * (count / 16)];
+
+          for( int t = 0; t < threads; t++ )
+            System.arraycopy(latencies[t], 0, all, t * (count / 16), count / 16);
+
+          Arrays.sort(all);
+          report((maintenance == null ? "remove, " : "remove, maintenance, ") + threads + " threads", (long) count * threads, nanos);
+          System.out.println(String.format("%-40s %10d ns p50, %d ns p99", "", all[all.length / 2], all[all.length * 99 / 100]));
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets after removing 4 keys in 5, before and after rebuilding indexes.
+   */
+  static void rebuildIndex() {
+    byte[][] keys = keys(ENTRIES, 0);
+    byte[][] live = new byte[ENTRIES / 5][];
+
+    for( int i = 0; i < live.length; i++ )
+      live[i] = keys[i * 5];
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      OffHeap map = fill(keys);
+
+      for( int i = 0; i < keys.length; i++ )
+        if( i % 5 != 0 )
+          map.remove(keys[i]);
+
+      for( int pass = 0; pass < 2; pass++ ) {
+        if( pass == 1 )
+          map.rebuildIndex();
+
+        map.maintain();
+        Random rand = new Random(0);
+        long start = System.nanoTime();
+
+        for( int i = 0; i < ENTRIES; i++ )
+          map.get(live[rand.nextInt(live.length)]);
+
+        long nanos = System.nanoTime() - start;
+
+        if( round == ROUNDS - 1 ) {
+          report(pass == 0 ? "get, after removals" : "get, rebuilt", ENTRIES, nanos);
+          System.out.println(String.format("%-40s %10.1f steps", "", map.searchPath()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Index memory and search steps for several values of p, and adaptive with 16 gets
+   * per put.
+   */
+  static void density() {
+    byte[][] keys = keys(ENTRIES, 0);
+    double[] settings = { 0.125, 0.25, 0.5, 0.75, OffHeap.ADAPTIVE };
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      for( double p : settings ) {
+        OffHeap map = new OffHeap(false, p, 31);
+        Random rand = new Random(0);
+        long start = System.nanoTime();
+
+        for( int i = 0; i < keys.length; i++ ) {
+          map.put(keys[i], i + 1);
+
+          for( int j = 0; j < 16; j++ )
+            map.get(keys[rand.nextInt(i + 1)]);
+        }
+
+        long nanos = System.nanoTime() - start;
+        map.maintain();
+
+        if( round == ROUNDS - 1 ) {
+          String name = p == OffHeap.ADAPTIVE ? String.format("adaptive, p = %.3f", map.p()) : "p = " + p;
+          report(name + ", 16 gets per put", keys.length * 17L, nanos);
+          System.out.println(String.format("%-40s %10.1f index bytes/entry, %.1f steps", "", (double) map.indexBytes() / keys.length, map.searchPath()));
+        }
+      }
+    }
+  }
+
+  static void mapped() throws Exception {
+    byte[][] keys = keys(ENTRIES, 0);
+    File file = File.createTempFile("offn", ".map");
+
+    try {
+      for( int round = 0; round < ROUNDS; round++ ) {
+        file.delete();
+        long start = System.nanoTime();
+        OffHeap heap = fill(keys);
+        long reload = System.nanoTime() - start;
+        heap.retire();
+
+        MappedOffHeap map = new MappedOffHeap(file);
+        start = System.nanoTime();
+
+        for( int i = 0; i < keys.length; i++ )
+          map.put(keys[i], i + 1);
+
+        long puts = System.nanoTime() - start;
+        map.close();
+
+        start = System.nanoTime();
+        map = new MappedOffHeap(file);
+        long open = System.nanoTime() - start;
+        start = System.nanoTime();
+
+        for( int i = 0; i < keys.length; i++ )
+          map.get(keys[i]);
+
+        long gets = System.nanoTime() - start;
+        map.abandon();
+
+        start = System.nanoTime();
+        map = new MappedOffHeap(file);
+        long recover = System.nanoTime() - start;
+        map.close();
+
+        // Gets pin a reader slot when shared
+        map = new MappedOffHeap(file, MappedOffHeap.Mode.WRITER);
+        start = System.nanoTime();
+
+        for( int i = 0; i < keys.length; i++ )
+          map.get(keys[i]);
+
+        long shared = System.nanoTime() - start;
+        map.close();
+
+        if( round == ROUNDS - 1 ) {
+          report("OffHeap put", keys.length, reload);
+          report("mapped put", keys.length, puts);
+          report("mapped get, after reopen", keys.length, gets);
+          report("mapped get, shared", keys.length, shared);
+          System.out.println(String.format("%-40s %10.1f ms", "reload into OffHeap", reload / 1e6));
+          System.out.println(String.format("%-40s %10.1f ms", "mapped reopen, clean", open / 1e6));
+          System.out.println(String.format("%-40s %10.1f ms", "mapped reopen, recovered", recover / 1e6));
+        }
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  static void snapshot() throws Exception {
+    byte[][] keys = keys(ENTRIES, 0);
+    File file = File.createTempFile("offn", ".snapshot");
+
+    try {
+      for( int round = 0; round < ROUNDS; round++ ) {
+        long start = System.nanoTime();
+        OffHeap map = fill(keys);
+        long reload = System.nanoTime() - start;
+
+        for( boolean compress : new boolean[] { false, true } ) {
+          RandomAccessFile out = new RandomAccessFile(file, "rw");
+          out.setLength(0);
+          start = System.nanoTime();
+          map.snapshotTo(out.getChannel(), compress);
+          long write = System.nanoTime() - start;
+          long length = out.length();
+          out.close();
+
+          RandomAccessFile in = new RandomAccessFile(file, "r");
+          start = System.nanoTime();
+          OffHeap loaded = OffHeap.loadFrom(in.getChannel());
+          long read = System.nanoTime() - start;
+          in.close();
+          loaded.retire();
+
+          if( round == ROUNDS - 1 ) {
+            String name = compress ? "compressed" : "raw";
+            report("snapshotTo, " + name, keys.length, write);
+            report("loadFrom, " + name, keys.length, read);
+            System.out.println(String.format("%-40s %10.1f bytes/entry", "", (double) length / keys.length));
+          }
+        }
+
+        map.retire();
+
+        if( round == ROUNDS - 1 )
+          report("reload with puts", keys.length, reload);
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Puts of random keys for a second per setting, sync or async with a sync at the
+   * end, at various group commit intervals.
+   */
+  static void durable() throws Exception {
+    final byte[][] keys = keys(ENTRIES, 0);
+    File file = File.createTempFile("offn", ".log");
+
+    try {
+      for( int round = 0; round < ROUNDS; round++ ) {
+        for( boolean sync : new boolean[] { true, false } ) {
+          for( long micros : new long[] { 0, 1000, 10000 } ) {
+            for( int threads = 1; threads <= 16; threads *= 4 ) {
+              file.delete();
+              final DurableOffHeap map = new DurableOffHeap(file, sync, micros, 4096);
+              final AtomicBoolean done = new AtomicBoolean();
+              final AtomicLong ops = new AtomicLong();
+              Thread[] workers = new Thread[threads];
+
+              for( int t = 0; t < threads; t++ ) {
+                final int seed = t;
+
+                workers[t] = new Thread() {
+
+                  @Override
+                  public void run() {
+                    Random rand = new Random(seed);
+                    long count = 0;
+
+                    while( !done.get() ) {
+                      map.put(keys[rand.nextInt(keys.length)], count + 1);
+                      count++;
+                    }
+
+                    ops.addAndGet(count);
+                  }
+                };
+              }
+
+              long start = System.nanoTime();
+
+              for( Thread worker : workers )
+                worker.start();
+
+              Thread.sleep(1000);
+              done.set(true);
+
+              for( Thread worker : workers )
+                worker.join();
+
+              map.sync();
+              long nanos = System.nanoTime() - start;
+              map.close();
+
+              if( round == ROUNDS - 1 )
+                report((sync ? "sync" : "async") + ", " + micros + "us, " + threads + " threads", ops.get(), nanos);
+            }
+          }
+        }
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Loads twice the entries through memtables of an eighth of them, then reads back
+   * once everything is in runs.
+   */
+  static void lsm() throws Exception {
+    byte[][] keys = keys(ENTRIES * 2, 0);
+    byte[][] absent = keys(ENTRIES, 1);
+    File dir = File.createTempFile("offn", ".lsm");
+
+    try {
+      for( int round = 0; round < ROUNDS; round++ ) {
+        dir.delete();
+        LsmOffHeap map = new LsmOffHeap(dir, ENTRIES / 8);
+        long start = System.nanoTime();
+
+        for( int i = 0; i < keys.length; i++ )
+          map.put(keys[i], i + 1);
+
+        map.close();
+        long load = System.nanoTime() - start;
+        map = new LsmOffHeap(dir, ENTRIES / 8);
+        int runs = map.runs();
+        Random rand = new Random(2);
+        start = System.nanoTime();
+
+        for( int i = 0; i < ENTRIES; i++ )
+          if( map.get(keys[rand.nextInt(keys.length)]) == 0 )
+            throw new AssertionError();
+
+        long get = System.nanoTime() - start;
+        start = System.nanoTime();
+
+        for( int i = 0; i < ENTRIES; i++ )
+          if( map.get(absent[i]) != 0 )
+            throw new AssertionError();
+
+        long miss = System.nanoTime() - start;
+        LsmOffHeap.Cursor cursor = map.cursor(null);
+        long count = 0;
+        start = System.nanoTime();
+
+        while( cursor.next() )
+          count++;
+
+        long scan = System.nanoTime() - start;
+        map.close();
+
+        for( File file : dir.listFiles() )
+          file.delete();
+
+        if( round == ROUNDS - 1 ) {
+          report("lsm load, flushes and compactions", keys.length, load);
+          report("lsm get, " + runs + " runs", ENTRIES, get);
+          report("lsm get, absent keys", ENTRIES, miss);
+          report("lsm scan", count, scan);
+        }
+      }
+    } finally {
+      dir.delete();
+    }
+  }
+
+  /**
+   * 1KB values, half of them written twice, so that first segments are half garbage.
+   */
+  static void valueLog() throws Exception {
+    byte[][] keys = keys(ENTRIES / 4, 0);
+    ByteBuffer value = ByteBuffer.allocateDirect(1024);
+    File dir = File.createTempFile("offn", ".vlog");
+
+    try {
+      for( int round = 0; round < ROUNDS; round++ ) {
+        dir.delete();
+        ValueLogOffHeap map = new ValueLogOffHeap(dir, 1 << 26, 0.25);
+        long start = System.nanoTime();
+
+        for( int i = 0; i < keys.length; i++ ) {
+          value.putLong(0, i);
+          map.put(keys[i], value);
+        }
+
+        long put = System.nanoTime() - start;
+        Random rand = new Random(1);
+        start = System.nanoTime();
+
+        for( int i = 0; i < ENTRIES; i++ ) {
+          int k = rand.nextInt(keys.length);
+
+          if( map.get(keys[k]).getLong(0) != k )
+            throw new AssertionError();
+        }
+
+        long get = System.nanoTime() - start;
+
+        for( int i = 0; i < keys.length; i += 2 ) {
+          value.putLong(0, i);
+          map.put(keys[i], value);
+        }
+
+        start = System.nanoTime();
+        long freed = map.collect();
+        long collect = System.nanoTime() - start;
+        map.close();
+
+        for( File file : dir.listFiles() )
+          file.delete();
+
+        if( round == ROUNDS - 1 ) {
+          report("value log put, 1KB", keys.length, put);
+          report("value log get, view", ENTRIES, get);
+          System.out.println(String.format("%-40s %10.1f MB/s", "value log collect, " + (freed >> 20) + "MB freed", (freed >> 20) * 1e9 / collect));
+        }
+      }
+    } finally {
+      dir.delete();
+    }
+  }
+
+  /**
+   * Exports to a channel which drops bytes, against a cursor copying keys into a
+   * buffer, then to a file imported in an empty map.
+   */
+  static void export() throws Exception {
+    byte[][] keys = keys(ENTRIES, 0);
+    OffHeap map = fill(keys);
+    WritableByteChannel sink = new WritableByteChannel() {
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public int write(ByteBuffer src) {
+        int n = src.remaining();
+        Buffer b = src;
+        b.position(src.limit());
+        return n;
+      }
+    };
+
+    File file = File.createTempFile("offn", ".export");
+
+    try {
+      for( int round = 0; round < ROUNDS; round++ ) {
+        long start = System.nanoTime();
+        map.exportRange(null, null, sink);
+        long export = System.nanoTime() - start;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        Buffer b = buffer;
+        OffHeap.Cursor cursor = map.cursor(null);
+        start = System.nanoTime();
+
+        while( cursor.next() ) {
+          if( buffer.remaining() < 28 ) {
+            b.flip();
+            sink.write(buffer);
+            b.clear();
+          }
+
+          buffer.put(cursor.key()).putLong(cursor.value());
+        }
+
+        long copy = System.nanoTime() - start;
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(0);
+        map.exportRange(null, null, out.getChannel());
+        out.getChannel().position(0);
+        OffHeap imported = new OffHeap();
+        start = System.nanoTime();
+        imported.importFrom(out.getChannel());
+        long read = System.nanoTime() - start;
+        out.close();
+        imported.retire();
+
+        if( round == ROUNDS - 1 ) {
+          report("exportRange", keys.length, export);
+          report("cursor copy", keys.length, copy);
+          report("importFrom, empty map", keys.length, read);
+        }
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Updates with no change log, publishing with a consumer thread polling, and
+   * publishing to an overwritten ring nobody polls. Then the publish path on its own,
+   * single threaded on a map which fits in cache, so that the cost of a put does not
+   * hide it.
+   */
+  static void changeLog() throws Exception {
+    byte[][] keys = keys(ENTRIES, 0);
+    final OffHeap map = fill(keys);
+    long value = 1;
+
+    for( int round = 0; round < ROUNDS; round++ ) {
+      long base = 0;
+
+      for( String mode : new String[] { "no log", "block, polled", "overwrite" } ) {
+        ChangeLog log = null;
+        Thread consumer = null;
+        final AtomicBoolean done = new AtomicBoolean();
+
+        if( !mode.equals("no log") ) {
+          log = new ChangeLog(1 << 16, mode.equals("overwrite") ? ChangeLog.Overflow.OVERWRITE : ChangeLog.Overflow.BLOCK);
+          map.changeLog(log);
+        }
+
+        if( mode.equals("block, polled") ) {
+          final ChangeLog.Subscriber subscriber = log.subscribe();
+          final ChangeLog.Handler handler = new ChangeLog.Handler() {
+
+            @Override
+            public void onChange(long seq, int op, byte[] key, long previous, long value) {
+            }
+          };
+
+          consumer = new Thread() {
+
+            @Override
+            public void run() {
+              while( !done.get() || subscriber.lag() != 0 )
+                if( subscriber.poll(handler, 1024) == 0 )
+                  Thread.yield();
+            }
+          };
+
+          consumer.start();
+        }
+
+        long start = System.nanoTime();
+        value++;
+
+        for( int i = 0; i < keys.length; i++ )
+          map.put(keys[i], value);
+
+        long nanos = System.nanoTime() - start;
+        done.set(true);
+
+        if( consumer != null )
+          consumer.join();
+
+        map.changeLog(null);
+
+        if( log != null )
+          log.close();
+
+        if( base == 0 )
+          base = nanos;
+
+        if( round == ROUNDS - 1 ) {
+          report("put, " + mode, keys.length, nanos);
+
+          if( log != null )
+            System.out.println(String.format("%-40s %10.1f ns/put overhead", "", (nanos - base) / (double) keys.length));
+        }
+      }
+    }
+
+    byte[][] hot = keys(1024, 1);
+    OffHeap small = fill(hot);
+    ChangeLog log = new ChangeLog(1 << 12, ChangeLog.Overflow.OVERWRITE);
+    int count = 10000000;
+    long without = Long.MAX_VALUE, with = Long.MAX_VALUE, publish = Long.MAX_VALUE;
+
+    // Best of alternating runs, after the first ones warmed both paths
+    for( int round = 0; round < ROUNDS * 4; round++ ) {
+      small.changeLog(round % 2 == 0 ? null : log);
+      long start = System.nanoTime();
+
+      for( int i = 0; i < count; i++ )
+        small.put(hot[i & 1023], i + 1);
+
+      long nanos = System.nanoTime() - start;
+
+      if( round >= 2 ) {
+        if( round % 2 == 0 )
+          without = Math.min(without, nanos);
+        else
+          with = Math.min(with, nanos);
+      }
+
+      start = System.nanoTime();
+
+      for( int i = 0; i < count; i++ )
+        log.publish(ChangeLog.PUT, hot[i & 1023], i, i + 1);
+
+      if( round >= 2 )
+        publish = Math.min(publish, System.nanoTime() - start);
+    }
+
+    small.changeLog(null);
+    log.close();
+    System.out.println(String.format("%-40s %10.1f ns/put", "put, cached, no log", without / (double) count));
+    System.out.println(String.format("%-40s %10.1f ns/put", "put, cached, overwrite", with / (double) count));
+    System.out.println(String.format("%-40s %10.1f ns/put overhead, target < 20", "", (with - without) / (double) count));
+    System.out.println(String.format("%-40s %10.1f ns", "publish alone", publish / (double) count));
+  }
+
+  /**
+   * Initial sync of a replica over loopback, then puts streamed to it, until it
+   * applied the last one.
+   */
+  static void replication() throws Exception {
+    byte[][] keys = keys(ENTRIES, 0);
+    OffHeap map = fill(keys);
+    Replication.Primary primary = new Replication.Primary(map, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1 << 20);
+
+    try {
+      for( int round = 0; round < ROUNDS; round++ ) {
+        long start = System.nanoTime();
+        Replication.Replica replica = new Replication.Replica(primary.address());
+
+        while( replica.snapshots() == 0 )
+          Thread.sleep(1);
+
+        long sync = System.nanoTime() - start;
+        long lag = 0;
+        start = System.nanoTime();
+
+        for( int i = 0; i < keys.length; i++ ) {
+          map.put(keys[i], round + 2);
+
+          if( (i & 0xffff) == 0 )
+            lag = Math.max(lag, replica.lag());
+        }
+
+        long puts = System.nanoTime() - start;
+
+        while( replica.applied() != primary.published() )
+          Thread.sleep(1);
+
+        long applied = System.nanoTime() - start;
+        replica.close();
+
+        if( round == ROUNDS - 1 ) {
+          report("replica snapshot", keys.length, sync);
+          report("primary put", keys.length, puts);
+          report("replica applied", keys.length, applied);
+          System.out.println(String.format("%-40s %10d records max lag", "", lag));
+        }
+      }
+    } finally {
+      primary.close();
+    }
+  }
+
+  /**
+   * Puts indexed by a ChangeIndex, then the keys changed since a sync, 1% of the map,
+   * read from the index and found by a full scan comparing values.
+   */
+  static void changeIndex() throws Exception {
+    byte[][] keys = keys(ENTRIES, 0);
+    OffHeap map = fill(keys);
+    ChangeLog log = new ChangeLog(1 << 16, ChangeLog.Overflow.BLOCK);
+    map.changeLog(log);
+    ChangeIndex index = new ChangeIndex(map, ENTRIES * 4L);
+    int changed = ENTRIES / 100;
+
+    try {
+      for( int round = 0; round < ROUNDS; round++ ) {
+        long start = System.nanoTime();
+
+        for( int i = 0; i < keys.length; i++ )
+          map.put(keys[i], round + 2);
+
+        while( index.indexed() != log.published() )
+          Thread.sleep(1);
+
+        long puts = System.nanoTime() - start;
+        long sync = index.indexed();
+
+        for( int i = 0; i < changed; i++ )
+          map.put(keys[i * 100], round + 3);
+
+        while( index.indexed() != log.published() )
+          Thread.sleep(1);
+
+        start = System.nanoTime();
+        int count = 0;
+
+        for( ChangeIndex.Changes changes = index.changesSince(sync); changes.next(); )
+          count++;
+
+        long query = System.nanoTime() - start;
+        start = System.nanoTime();
+        int scanned = 0;
+
+        for( OffHeap.Cursor cursor = map.cursor(null); cursor.next(); )
+          if( cursor.value() != round + 2 )
+            scanned++;
+
+        long scan = System.nanoTime() - start;
+
+        if( count != changed || scanned != changed )
+          throw new AssertionError();
+
+        if( round == ROUNDS - 1 ) {
+          report("put, indexed", keys.length, puts);
+          report("changesSince, 1% changed", count, query);
+          report("full scan, 1% changed", count, scan);
+        }
+      }
+    } finally {
+      index.close();
+      map.changeLog(null);
+      log.close();
+    }
+  }
+}
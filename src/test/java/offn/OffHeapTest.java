@@ -12,10 +12,25 @@
 
 package offn;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -82,6 +97,2486 @@ public class OffHeapTest {
       run(4, 1000, map);
   }
 
+  @Test
+  public void testGetAll() {
+    OffHeap test = new OffHeap();
+    SecureRandom rand = new SecureRandom();
+    byte[][] keys = new byte[1000][];
+
+    for( int i = 0; i < keys.length; i++ ) {
+      keys[i] = new byte[20];
+      rand.nextBytes(keys[i]);
+
+      if( i % 3 != 0 )
+        test.put(keys[i], i + 1);
+    }
+
+    keys[10] = keys[20]; // Duplicate
+    long[] results = new long[keys.length];
+    test.getAll(keys, results);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(test.get(keys[i]), results[i]);
+  }
+
+  @Test
+  public void testBuilder() throws Exception {
+    byte[][] keys = sortedKeys(10000);
+    OffHeap.Builder builder = new OffHeap.Builder();
+
+    for( int i = 0; i < keys.length; i++ ) {
+      builder.add(keys[i], 1);
+      builder.add(keys[i], i + 1); // Last value wins
+    }
+
+    try {
+      builder.add(keys[0], 1);
+      Assert.fail();
+    } catch( IllegalArgumentException e ) {
+    }
+
+    final OffHeap test = builder.build();
+    Assert.assertEquals(keys.length, builder.count());
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i + 1, test.get(keys[i]));
+
+    for( int i = 0; i < keys.length; i += 2 )
+      Assert.assertEquals(i + 1, test.remove(keys[i]));
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 2 == 0 ? 0 : i + 1, test.get(keys[i]));
+
+    run(4, 1000, wrap(test));
+  }
+
+  @Test
+  public void testParallelBuilder() throws Exception {
+    SecureRandom rand = new SecureRandom();
+    byte[][] keys = new byte[200000][];
+    ParallelBuilder builder = new ParallelBuilder(1000);
+
+    for( int i = 0; i < keys.length; i++ ) {
+      keys[i] = new byte[20];
+      rand.nextBytes(keys[i]);
+
+      if( i % 10 == 0 ) { // Long shared prefixes
+        Arrays.fill(keys[i], 0, 16, (byte) 7);
+        keys[i][16] = (byte) (i >>> 24);
+        keys[i][17] = (byte) (i >>> 16);
+        keys[i][18] = (byte) (i >>> 8);
+        keys[i][19] = (byte) i;
+      }
+
+      builder.add(keys[i], 1);
+    }
+
+    for( int i = 0; i < keys.length; i += 3 ) // Duplicates, last wins
+      builder.add(keys[i], i + 1);
+
+    final OffHeap test = builder.build();
+    long[] results = new long[keys.length];
+    test.getAll(keys, results);
+    Assert.assertEquals(keys.length, builder.count() - (keys.length + 2) / 3);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 3 == 0 ? i + 1 : 1, results[i]);
+
+    run(4, 1000, wrap(test));
+  }
+
+  @Test
+  public void testRemoveRange() throws Exception {
+    final byte[][] keys = sortedKeys(10000);
+    final OffHeap test = new OffHeap();
+
+    for( int i = 0; i < keys.length; i++ )
+      test.put(keys[i], i + 1);
+
+    Assert.assertEquals(0, test.removeRange(keys[10], keys[10]));
+    Assert.assertEquals(1001, test.remove(keys[1000]));
+    Assert.assertEquals(3999, test.removeRange(keys[500], keys[4500]));
+    Assert.assertEquals(0, test.removeRange(keys[500], keys[4500]));
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i >= 500 && i < 4500 ? 0 : i + 1, test.get(keys[i]));
+
+    // Concurrent writers outside the range, readers across it
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+
+    threads.add(new Thread() {
+
+      @Override
+      public void run() {
+        try {
+          for( int i = 0; i < 5000; i++ ) {
+            int k = i % 2 == 0 ? i % 500 : 9000 + i % 1000;
+            Assert.assertEquals(k + 1, test.remove(keys[k]));
+            Assert.assertEquals(0, test.put(keys[k], k + 1));
+          }
+        } catch( Throwable e ) {
+          error.set(e);
+        }
+      }
+    });
+
+    for( int t = 0; t < 2; t++ ) {
+      threads.add(new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            SecureRandom rand = new SecureRandom();
+
+            while( !done.get() ) {
+              int k = 4500 + rand.nextInt(4500);
+              long value = test.get(keys[k]);
+              Assert.assertTrue(value == 0 || value == k + 1);
+              OffHeap.Cursor cursor = test.cursor(keys[k]);
+
+              for( int i = 0; i < 100 && cursor.next(); i++ ) {
+                int c = (int) cursor.value() - 1;
+                Assert.assertTrue(c >= k);
+                Assert.assertArrayEquals(keys[c], cursor.key());
+                k = c + 1;
+              }
+            }
+          } catch( Throwable e ) {
+            error.set(e);
+          }
+        }
+      });
+    }
+
+    for( Thread thread : threads )
+      thread.start();
+
+    Assert.assertEquals(4500, test.removeRange(keys[4500], keys[9000]));
+    threads.get(0).join();
+    done.set(true);
+
+    for( Thread thread : threads )
+      thread.join();
+
+    if( error.get() != null )
+      throw new AssertionError(error.get());
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i >= 500 && i < 9000 ? 0 : i + 1, test.get(keys[i]));
+
+    run(4, 1000, wrap(test));
+  }
+
+  @Test
+  public void testFinger() throws Exception {
+    final OffHeap test = new OffHeap();
+    final ThreadLocal<OffHeap.Finger> fingers = new ThreadLocal<OffHeap.Finger>() {
+
+      @Override
+      protected OffHeap.Finger initialValue() {
+        return new OffHeap.Finger();
+      }
+    };
+
+    Map map = new Map() {
+
+      @Override
+      public long get(byte[] key) {
+        return test.get(key, fingers.get());
+      }
+
+      @Override
+      public long put(byte[] key, long value) {
+        return test.put(key, value, fingers.get());
+      }
+
+      @Override
+      public long remove(byte[] key) {
+        return test.remove(key, fingers.get());
+      }
+    };
+
+    for( int i = 0; i < 10; i++ )
+      run(4, 1000, map);
+
+    byte[][] keys = sortedKeys(10000);
+    OffHeap.Finger finger = new OffHeap.Finger();
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(0, test.put(keys[i], i + 1, finger));
+
+    for( int i = 0; i < keys.length; i += 2 )
+      Assert.assertEquals(i + 1, test.remove(keys[i], finger));
+
+    for( int i = keys.length - 1; i >= 0; i-- )
+      Assert.assertEquals(i % 2 == 0 ? 0 : i + 1, test.get(keys[i], finger));
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 2 == 0 ? 0 : i + 1, test.get(keys[i], finger));
+  }
+
+  @Test
+  public void testCursor() {
+    byte[][] keys = sortedKeys(10000);
+    OffHeap test = new OffHeap();
+
+    for( int i = 0; i < keys.length; i++ )
+      if( i % 2 == 0 )
+        test.put(keys[i], i + 1);
+
+    OffHeap.Cursor cursor = test.cursor(null);
+
+    for( int i = 0; i < keys.length; i += 2 ) {
+      Assert.assertTrue(cursor.next());
+      Assert.assertArrayEquals(keys[i], cursor.key());
+      Assert.assertEquals(i + 1, cursor.value());
+
+      if( i + 4 < keys.length )
+        test.remove(keys[i + 4]); // Concurrent removes are skipped
+
+      if( i + 4 < keys.length )
+        test.put(keys[i + 4], i + 5);
+    }
+
+    Assert.assertFalse(cursor.next());
+    cursor = test.cursor(keys[1001]);
+    Assert.assertTrue(cursor.next());
+    Assert.assertArrayEquals(keys[1002], cursor.key());
+    cursor = test.cursor(keys[1002]);
+    Assert.assertTrue(cursor.next());
+    Assert.assertArrayEquals(keys[1002], cursor.key());
+  }
+
+  @Test
+  public void testSharded() throws Exception {
+    final ShardedOffHeap test = new ShardedOffHeap(4, 2000);
+
+    Map map = new Map() {
+
+      @Override
+      public long get(byte[] key) {
+        return test.get(key);
+      }
+
+      @Override
+      public long put(byte[] key, long value) {
+        return test.put(key, value);
+      }
+
+      @Override
+      public long remove(byte[] key) {
+        return test.remove(key);
+      }
+    };
+
+    Thread rebalancer = new Thread() {
+
+      @Override
+      public void run() {
+        while( !isInterrupted() )
+          test.rebalance();
+      }
+    };
+
+    rebalancer.start();
+
+    for( int i = 0; i < 10; i++ )
+      run(4, 1000, map);
+
+    rebalancer.interrupt();
+    rebalancer.join();
+    Assert.assertEquals(0, test.size());
+
+    final byte[][] keys = sortedKeys(20000);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(0, test.put(keys[i], i + 1));
+
+    Assert.assertEquals(keys.length, test.size());
+    Assert.assertTrue(test.shards() > 4);
+    ShardedOffHeap.Cursor cursor = test.cursor(null);
+
+    for( int i = 0; i < keys.length; i++ ) {
+      Assert.assertTrue(cursor.next());
+      Assert.assertArrayEquals(keys[i], cursor.key());
+      Assert.assertEquals(i + 1, cursor.value());
+
+      if( i == keys.length / 2 )
+        test.rebalance(); // Merges and splits under the cursor
+    }
+
+    Assert.assertFalse(cursor.next());
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i + 1, test.remove(keys[i]));
+
+    test.rebalance();
+    test.rebalance(); // No writes since last call, so no shard is hot
+    Assert.assertEquals(0, test.size());
+    Assert.assertEquals(4, test.shards());
+
+    // Readers on shards split, merged and retired while keys are removed
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(0, test.put(keys[i], i + 1));
+
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+
+    for( int t = 0; t < 3; t++ ) {
+      Thread reader = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            while( !done.get() )
+              for( int i = 0; i < keys.length; i++ ) {
+                long value = test.get(keys[i]);
+                Assert.assertTrue(value == i + 1 || (i % 2 == 1 && value == 0));
+              }
+          } catch( Throwable e ) {
+            error.set(e);
+          }
+        }
+      };
+
+      reader.start();
+      threads.add(reader);
+    }
+
+    Thread splitter = new Thread() {
+
+      @Override
+      public void run() {
+        while( !done.get() )
+          test.rebalance();
+      }
+    };
+
+    splitter.start();
+    threads.add(splitter);
+
+    for( int round = 0; round < 10; round++ )
+      for( int i = 1; i < keys.length; i += 2 ) {
+        Assert.assertEquals(round == 0 || i % 4 == 1 ? i + 1 : 0, test.remove(keys[i]));
+
+        if( round < 9 && i % 4 == 1 )
+          Assert.assertEquals(0, test.put(keys[i], i + 1));
+      }
+
+    done.set(true);
+
+    for( Thread thread : threads )
+      thread.join();
+
+    Assert.assertNull(error.get());
+    Assert.assertEquals(keys.length / 2, test.size());
+  }
+
+  @Test
+  public void testSingleWriter() throws Exception {
+    final byte[][] keys = sortedKeys(20000);
+    final OffHeap test = new OffHeap(true);
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ArrayList<Thread> readers = new ArrayList<Thread>();
+
+    for( int t = 0; t < 3; t++ ) {
+      Thread reader = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            read();
+          } catch( Throwable t ) {
+            error.set(t);
+          }
+        }
+
+        private void read() {
+          SecureRandom rand = new SecureRandom();
+
+          while( !done.get() ) {
+            int k = rand.nextInt(keys.length);
+            long value = test.get(keys[k]);
+            Assert.assertTrue(value == 0 || (value - 1) % keys.length == k);
+            OffHeap.Cursor cursor = test.cursor(keys[k]);
+            byte[] last = null;
+
+            for( int i = 0; i < 100 && cursor.next(); i++ ) {
+              if( last != null )
+                Assert.assertTrue(UNSIGNED.compare(last, cursor.key()) < 0);
+
+              last = cursor.key().clone();
+            }
+          }
+        }
+      };
+
+      reader.start();
+      readers.add(reader);
+    }
+
+    SecureRandom rand = new SecureRandom();
+    long[] expected = new long[keys.length];
+
+    for( int i = 0; i < 200000; i++ ) {
+      int k = rand.nextInt(keys.length);
+
+      if( rand.nextInt(3) == 0 ) {
+        Assert.assertEquals(expected[k], test.remove(keys[k]));
+        expected[k] = 0;
+      } else {
+        long value = (long) keys.length * i + k + 1;
+        Assert.assertEquals(expected[k], test.put(keys[k], value));
+        expected[k] = value;
+      }
+    }
+
+    done.set(true);
+
+    for( Thread reader : readers )
+      reader.join();
+
+    if( error.get() != null )
+      throw new AssertionError(error.get());
+
+    OffHeap.Cursor cursor = test.cursor(null);
+
+    for( int k = 0; k < keys.length; k++ ) {
+      Assert.assertEquals(expected[k], test.get(keys[k]));
+
+      if( expected[k] != 0 ) {
+        Assert.assertTrue(cursor.next());
+        Assert.assertArrayEquals(keys[k], cursor.key());
+      }
+    }
+
+    Assert.assertFalse(cursor.next());
+    Assert.assertEquals(0, test.removeRange(keys[0], keys[0]));
+    test.removeRange(keys[0], keys[keys.length - 1]);
+    test.remove(keys[keys.length - 1]);
+    Assert.assertFalse(test.cursor(null).next());
+  }
+
+  @Test
+  public void testReadOnlyLookups() throws Exception {
+    final byte[][] keys = sortedKeys(20000);
+    final OffHeap test = new OffHeap();
+    test.readOnlyLookups(true);
+    Assert.assertTrue(test.readOnlyLookups());
+    run(4, 1000, wrap(test));
+
+    final int writers = 2;
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final long[][] expected = new long[writers][keys.length];
+    ArrayList<Thread> readers = new ArrayList<Thread>(), joins = new ArrayList<Thread>();
+
+    for( int t = 0; t < 2; t++ ) {
+      Thread reader = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            SecureRandom rand = new SecureRandom();
+
+            while( !done.get() ) {
+              int k = rand.nextInt(keys.length);
+              long value = test.get(keys[k]);
+              Assert.assertTrue(value == 0 || (value - 1) % keys.length == k);
+              OffHeap.Cursor cursor = test.cursor(keys[k]);
+              byte[] last = null;
+
+              for( int i = 0; i < 100 && cursor.next(); i++ ) {
+                if( last != null )
+                  Assert.assertTrue(UNSIGNED.compare(last, cursor.key()) < 0);
+
+                last = cursor.key().clone();
+              }
+            }
+          } catch( Throwable e ) {
+            error.set(e);
+          }
+        }
+      };
+
+      reader.start();
+      readers.add(reader);
+    }
+
+    // Writers own alternate keys, and read their own writes back without helping
+    for( int t = 0; t < writers; t++ ) {
+      final int writer = t;
+
+      Thread thread = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            SecureRandom rand = new SecureRandom();
+
+            for( int i = 0; i < 100000; i++ ) {
+              int k = rand.nextInt(keys.length / writers) * writers + writer;
+
+              if( rand.nextInt(3) == 0 ) {
+                Assert.assertEquals(expected[writer][k], test.remove(keys[k]));
+                expected[writer][k] = 0;
+              } else {
+                long value = (long) keys.length * i + k + 1;
+                Assert.assertEquals(expected[writer][k], test.put(keys[k], value));
+                expected[writer][k] = value;
+              }
+
+              Assert.assertEquals(expected[writer][k], test.get(keys[k]));
+            }
+          } catch( Throwable e ) {
+            error.set(e);
+          }
+        }
+      };
+
+      thread.start();
+      joins.add(thread);
+    }
+
+    for( Thread thread : joins )
+      thread.join();
+
+    done.set(true);
+
+    for( Thread reader : readers )
+      reader.join();
+
+    if( error.get() != null )
+      throw new AssertionError(error.get());
+
+    OffHeap.Cursor cursor = test.cursor(null);
+
+    for( int k = 0; k < keys.length; k++ ) {
+      long value = expected[k % writers][k];
+      Assert.assertEquals(value, test.get(keys[k]));
+
+      if( value != 0 ) {
+        Assert.assertTrue(cursor.next());
+        Assert.assertArrayEquals(keys[k], cursor.key());
+      }
+    }
+
+    Assert.assertFalse(cursor.next());
+  }
+
+  @Test
+  public void testMaintenance() throws Exception {
+    byte[][] keys = sortedKeys(10000);
+    OffHeap test = new OffHeap();
+
+    for( int i = 0; i < keys.length; i++ )
+      test.put(keys[i], i + 1);
+
+    // Removals leave their indexes to maintain
+    test.deferUntil(System.nanoTime() + Maintenance.DEFER_MS * 1000000L);
+
+    for( int i = 0; i < keys.length; i += 2 )
+      Assert.assertEquals(i + 1, test.remove(keys[i]));
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 2 == 0 ? 0 : i + 1, test.get(keys[i]));
+
+    Assert.assertTrue(test.maintain() > 0);
+    Assert.assertEquals(0, test.maintain());
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 2 == 0 ? 0 : i + 1, test.get(keys[i]));
+
+    Maintenance maintenance = new Maintenance(1);
+    OffHeap maintained = new OffHeap();
+    maintenance.add(maintained);
+
+    while( maintenance.passes() < 2 )
+      Thread.sleep(1);
+
+    for( int i = 0; i < 10; i++ )
+      run(4, 1000, wrap(maintained));
+
+    maintenance.close();
+    Assert.assertEquals(0, maintained.maintain());
+
+    try {
+      new Maintenance(Maintenance.DEFER_MS);
+      Assert.fail();
+    } catch( IllegalArgumentException e ) {
+    }
+  }
+
+  @Test
+  public void testRebuildIndex() throws Exception {
+    final byte[][] keys = sortedKeys(20000);
+    final OffHeap test = new OffHeap();
+
+    for( int i = 0; i < keys.length; i++ )
+      test.put(keys[i], i + 1);
+
+    for( int i = 0; i < keys.length; i++ )
+      if( i % 5 != 0 )
+        test.remove(keys[i]);
+
+    // Writers on odd keys, rebuild must not lose or resurrect anything
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ArrayList<Thread> joins = new ArrayList<Thread>();
+
+    for( int t = 0; t < 2; t++ ) {
+      final int writer = t;
+
+      Thread thread = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            for( int i = 0; i < 20000; i++ ) {
+              int k = (i * 10 + writer * 5 + 1) % keys.length;
+              Assert.assertEquals(0, test.put(keys[k], k + 1));
+              Assert.assertEquals(k + 1, test.get(keys[k]));
+              Assert.assertEquals(k + 1, test.remove(keys[k]));
+              int j = i - i % 5; // Not written
+              Assert.assertEquals(j + 1, test.get(keys[j]));
+            }
+          } catch( Throwable e ) {
+            error.set(e);
+          }
+        }
+      };
+
+      thread.start();
+      joins.add(thread);
+    }
+
+    Assert.assertTrue(test.rebuildIndex());
+
+    for( Thread thread : joins )
+      thread.join();
+
+    if( error.get() != null )
+      throw new AssertionError(error.get());
+
+    Assert.assertFalse(test.rebuildIndex()); // Old levels not retired yet
+    test.maintain();
+    Assert.assertTrue(test.searchPath() > 0);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 5 == 0 ? i + 1 : 0, test.get(keys[i]));
+
+    run(4, 1000, wrap(test));
+
+    // Every indexed node removed, searches walk the base level until maintain
+    // notices and rebuilds
+    OffHeap.Builder builder = new OffHeap.Builder();
+
+    for( int i = 0; i < keys.length; i++ )
+      builder.add(keys[i], i + 1);
+
+    OffHeap degraded = builder.build();
+    degraded.maintain();
+    double ideal = degraded.searchPath();
+
+    for( int i = 1; i < keys.length; i += 2 )
+      Assert.assertEquals(i + 1, degraded.remove(keys[i]));
+
+    long before = degraded.indexBytes();
+    degraded.maintain();
+    Assert.assertTrue(degraded.searchPath() > 10 * ideal);
+    Assert.assertTrue(degraded.indexBytes() > before);
+    degraded.maintain();
+    Assert.assertTrue(degraded.searchPath() < 2 * ideal);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 2 == 0 ? i + 1 : 0, degraded.get(keys[i]));
+  }
+
+  @Test
+  public void testDensity() throws Exception {
+    byte[][] keys = sortedKeys(20000);
+    long previous = 0;
+
+    for( double p : new double[] { 0.125, 0.25, 0.5, 0.75 } ) {
+      OffHeap test = new OffHeap(false, p, 31);
+      Assert.assertEquals(p, test.p(), 1e-9);
+
+      for( int i = 0; i < keys.length; i++ )
+        test.put(keys[i], i + 1);
+
+      for( int i = 0; i < keys.length; i++ )
+        Assert.assertEquals(i + 1, test.get(keys[i]));
+
+      Assert.assertTrue(test.indexBytes() > previous);
+      previous = test.indexBytes();
+      run(4, 1000, wrap(test));
+    }
+
+    // Same p on a single level, a quarter of the records
+    OffHeap flat = new OffHeap(false, 0.75, 1);
+
+    for( int i = 0; i < keys.length; i++ )
+      flat.put(keys[i], i + 1);
+
+    Assert.assertTrue(flat.indexBytes() < previous / 2);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i + 1, flat.get(keys[i]));
+
+    // Rebuilds keep p, a third of the records of p = 0.5
+    OffHeap half = new OffHeap(false, 0.5, 31), quarter = new OffHeap(false, 0.25, 31);
+
+    for( int i = 0; i < keys.length; i++ ) {
+      half.put(keys[i], i + 1);
+      quarter.put(keys[i], i + 1);
+    }
+
+    Assert.assertTrue(half.rebuildIndex());
+    Assert.assertTrue(quarter.rebuildIndex());
+    Assert.assertTrue(quarter.indexBytes() < half.indexBytes() / 2);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i + 1, quarter.get(keys[i]));
+
+    // Inserts only, then many reads per insert
+    OffHeap adaptive = new OffHeap(false, OffHeap.ADAPTIVE, 31);
+    Assert.assertEquals(0.25, adaptive.p(), 1e-9);
+
+    for( int i = 0; i < keys.length; i++ )
+      adaptive.put(keys[i], i + 1);
+
+    Assert.assertEquals(0.125, adaptive.p(), 1e-9);
+
+    for( int i = 0; i < keys.length; i++ ) {
+      adaptive.remove(keys[i]);
+      adaptive.put(keys[i], i + 1);
+
+      for( int j = 0; j < 100; j++ )
+        adaptive.get(keys[j]);
+    }
+
+    Assert.assertEquals(0.5, adaptive.p(), 1e-9);
+    run(4, 1000, wrap(adaptive));
+
+    try {
+      new OffHeap(false, 1, 31);
+      Assert.fail();
+    } catch( IllegalArgumentException e ) {
+    }
+
+    try {
+      new OffHeap(false, 0.5, 32);
+      Assert.fail();
+    } catch( IllegalArgumentException e ) {
+    }
+  }
+
+  @Test
+  public void testMapped() throws Exception {
+    final byte[][] keys = sortedKeys(20000);
+    File file = File.createTempFile("offn", ".map");
+
+    try {
+      MappedOffHeap test = new MappedOffHeap(file);
+      Assert.assertFalse(test.recovered());
+
+      for( int i = 0; i < keys.length; i++ )
+        Assert.assertEquals(0, test.put(keys[i], i + 1));
+
+      for( int i = 1; i < keys.length; i += 2 )
+        Assert.assertEquals(i + 1, test.remove(keys[i]));
+
+      test.close();
+
+      // Clean reopen, even keys
+      test = new MappedOffHeap(file);
+      Assert.assertFalse(test.recovered());
+      checkMapped(test, keys, 0);
+
+      // Readers on the even keys while odd ones come back and even ones go
+      final MappedOffHeap map = test;
+      final AtomicBoolean done = new AtomicBoolean();
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+      Thread reader = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            while( !done.get() ) {
+              for( int i = 0; i < keys.length; i += 2 ) {
+                long v = map.get(keys[i]);
+                Assert.assertTrue(v == 0 || v == i + 1);
+              }
+            }
+          } catch( Throwable e ) {
+            error.set(e);
+          }
+        }
+      };
+
+      reader.start();
+
+      for( int i = 1; i < keys.length; i += 2 )
+        Assert.assertEquals(0, test.put(keys[i], i + 1));
+
+      for( int i = 0; i < keys.length; i += 2 )
+        Assert.assertEquals(i + 1, test.remove(keys[i]));
+
+      done.set(true);
+      reader.join();
+
+      if( error.get() != null )
+        throw new AssertionError(error.get());
+
+      // Unclean, removed records were not freed yet
+      test.abandon();
+      test = new MappedOffHeap(file);
+      Assert.assertTrue(test.recovered());
+      checkMapped(test, keys, 1);
+
+      for( int i = 0; i < keys.length; i += 2 )
+        Assert.assertEquals(0, test.put(keys[i], i + 1));
+
+      for( int i = 0; i < keys.length; i++ )
+        Assert.assertEquals(i + 1, test.get(keys[i]));
+
+      test.close();
+
+      // Clean again after the recovered session
+      test = new MappedOffHeap(file);
+      Assert.assertFalse(test.recovered());
+      Assert.assertEquals(keys.length, test.size());
+
+      // Concurrent writers, on their own keys, then racing on the first ones
+      final MappedOffHeap writers = test;
+
+      run(4, 1000, new Map() {
+
+        @Override
+        public long get(byte[] key) {
+          return writers.get(key);
+        }
+
+        @Override
+        public long put(byte[] key, long value) {
+          return writers.put(key, value);
+        }
+
+        @Override
+        public long remove(byte[] key) {
+          return writers.remove(key);
+        }
+      });
+
+      Assert.assertEquals(keys.length, test.size());
+      ArrayList<Thread> threads = new ArrayList<Thread>();
+
+      for( int t = 0; t < 4; t++ ) {
+        Thread thread = new Thread() {
+
+          @Override
+          public void run() {
+            try {
+              Random rand = new Random();
+
+              for( int n = 0; n < 100000; n++ ) {
+                int i = rand.nextInt(64);
+
+                if( rand.nextBoolean() ) {
+                  long v = writers.put(keys[i], i + 1);
+                  Assert.assertTrue(v == 0 || v == i + 1);
+                } else {
+                  long v = writers.remove(keys[i]);
+                  Assert.assertTrue(v == 0 || v == i + 1);
+                }
+              }
+            } catch( Throwable e ) {
+              error.set(e);
+            }
+          }
+        };
+
+        thread.start();
+        threads.add(thread);
+      }
+
+      for( Thread thread : threads )
+        thread.join();
+
+      if( error.get() != null )
+        throw new AssertionError(error.get());
+
+      long present = 0;
+      MappedOffHeap.Cursor cursor = test.cursor(null);
+
+      for( int i = 0; i < keys.length; i++ ) {
+        long v = test.get(keys[i]);
+        Assert.assertTrue(i < 64 ? v == 0 || v == i + 1 : v == i + 1);
+
+        if( v != 0 ) {
+          present++;
+          Assert.assertTrue(cursor.next());
+          Assert.assertArrayEquals(keys[i], cursor.key());
+        }
+      }
+
+      Assert.assertFalse(cursor.next());
+      Assert.assertEquals(present, test.size());
+      test.close();
+
+      // Clean reopen after concurrent writers
+      test = new MappedOffHeap(file);
+      Assert.assertFalse(test.recovered());
+      Assert.assertEquals(present, test.size());
+      test.close();
+
+      try {
+        test.put(keys[0], 1);
+        Assert.fail();
+      } catch( IllegalStateException e ) {
+      }
+
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(new byte[100]);
+      out.close();
+
+      try {
+        new MappedOffHeap(file);
+        Assert.fail();
+      } catch( IOException e ) {
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testShared() throws Exception {
+    File dir = new File("/dev/shm");
+    File file = File.createTempFile("offn", ".map", dir.isDirectory() ? dir : null);
+    int count = 20000;
+    long seed = new Random().nextLong();
+    byte[][] keys = sortedKeys(count, seed);
+
+    try {
+      MappedOffHeap test = new MappedOffHeap(file, MappedOffHeap.Mode.WRITER);
+
+      for( int i = 0; i < keys.length; i += 2 )
+        test.put(keys[i], i + 1);
+
+      // Reader process checks even keys stay and odd ones are absent or right
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      String classpath = System.getProperty("java.class.path");
+      final Process process = new ProcessBuilder(java, "-cp", classpath, SharedReader.class.getName(), file.getPath(), "" + count, "" + seed).inheritIO().start();
+      final AtomicBoolean exited = new AtomicBoolean();
+
+      Thread waiter = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            process.waitFor();
+          } catch( InterruptedException e ) {
+          }
+
+          exited.set(true);
+        }
+      };
+
+      waiter.start();
+      long epoch = test.epoch();
+
+      while( !exited.get() ) {
+        for( int i = 1; i < keys.length; i += 2 )
+          test.put(keys[i], i + 1);
+
+        for( int i = 1; i < keys.length; i += 2 )
+          test.remove(keys[i]);
+      }
+
+      waiter.join();
+      Assert.assertEquals(0, process.exitValue());
+      Assert.assertTrue(test.epoch() > epoch + 2); // Records were reclaimed
+      test.close();
+
+      MappedOffHeap reader = new MappedOffHeap(file, MappedOffHeap.Mode.READER);
+      checkMapped(reader, keys, 0);
+
+      try {
+        reader.put(keys[0], 1);
+        Assert.fail();
+      } catch( UnsupportedOperationException e ) {
+      }
+
+      reader.close();
+
+      // Readers are refused while the writer has it privately
+      test = new MappedOffHeap(file);
+
+      try {
+        new MappedOffHeap(file, MappedOffHeap.Mode.READER);
+        Assert.fail();
+      } catch( IOException e ) {
+      }
+
+      test.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Other process of testShared, reads for a few seconds.
+   */
+  static final class SharedReader {
+
+    public static void main(String[] args) throws Exception {
+      byte[][] keys = sortedKeys(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+      MappedOffHeap map = new MappedOffHeap(new File(args[0]), MappedOffHeap.Mode.READER);
+      long end = System.nanoTime() + 3000000000L;
+
+      while( System.nanoTime() < end ) {
+        for( int i = 0; i < keys.length; i++ ) {
+          long v = map.get(keys[i]);
+
+          if( i % 2 == 0 )
+            Assert.assertEquals(i + 1, v);
+          else
+            Assert.assertTrue(v == 0 || v == i + 1);
+        }
+
+        MappedOffHeap.Cursor cursor = map.cursor(null);
+        int previous = -1;
+
+        while( cursor.next() ) {
+          int i = Arrays.binarySearch(keys, cursor.key(), UNSIGNED);
+          Assert.assertTrue(i > previous);
+          Assert.assertTrue(i - previous <= 2); // No even key skipped
+          Assert.assertEquals(i + 1, cursor.value());
+          previous = i;
+        }
+
+        Assert.assertTrue(previous >= keys.length - 2);
+      }
+
+      map.close();
+      System.exit(0);
+    }
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    final byte[][] keys = sortedKeys(100000);
+    final OffHeap test = new OffHeap();
+    File file = File.createTempFile("offn", ".snapshot");
+
+    try {
+      for( int i = 0; i < keys.length; i += 2 )
+        test.put(keys[i], i + 1);
+
+      for( boolean compress : new boolean[] { false, true } ) {
+        // Writer on odd keys, even ones must all be in the snapshot
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Thread writer = new Thread() {
+
+          @Override
+          public void run() {
+            while( !done.get() ) {
+              for( int i = 1; i < keys.length; i += 2 )
+                test.put(keys[i], i + 1);
+
+              for( int i = 1; i < keys.length; i += 2 )
+                test.remove(keys[i]);
+            }
+          }
+        };
+
+        writer.start();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(0);
+        long count = test.snapshotTo(out.getChannel(), compress);
+        out.close();
+        done.set(true);
+        writer.join();
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        OffHeap loaded = OffHeap.loadFrom(in.getChannel());
+        in.close();
+        OffHeap.Cursor cursor = loaded.cursor(null);
+        int previous = -1;
+        long found = 0;
+
+        while( cursor.next() ) {
+          int i = Arrays.binarySearch(keys, cursor.key(), UNSIGNED);
+          Assert.assertTrue(i > previous && i - previous <= 2);
+          Assert.assertEquals(i + 1, cursor.value());
+          previous = i;
+          found++;
+        }
+
+        Assert.assertTrue(previous >= keys.length - 2);
+        Assert.assertEquals(count, found);
+
+        for( int i = 0; i < keys.length; i += 2 )
+          Assert.assertEquals(i + 1, loaded.get(keys[i]));
+
+        run(4, 1000, wrap(loaded));
+      }
+
+      // A flipped byte in the middle, then a truncated stream
+      RandomAccessFile corrupt = new RandomAccessFile(file, "rw");
+      long length = corrupt.length();
+      corrupt.seek(length / 2);
+      int b = corrupt.read();
+      corrupt.seek(length / 2);
+      corrupt.write(b ^ 1);
+
+      try {
+        OffHeap.loadFrom(corrupt.getChannel().position(0));
+        Assert.fail();
+      } catch( IOException e ) {
+      }
+
+      corrupt.seek(length / 2);
+      corrupt.write(b);
+      corrupt.setLength(length - 1);
+
+      try {
+        OffHeap.loadFrom(corrupt.getChannel().position(0));
+        Assert.fail();
+      } catch( IOException e ) {
+      }
+
+      corrupt.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    final byte[][] keys = sortedKeys(100000);
+    final OffHeap test = new OffHeap();
+
+    for( int i = 0; i < keys.length; i += 2 )
+      test.put(keys[i], i + 1);
+
+    // Writer on odd keys, through a pipe imported by another thread
+    final AtomicBoolean done = new AtomicBoolean();
+
+    Thread writer = new Thread() {
+
+      @Override
+      public void run() {
+        while( !done.get() ) {
+          for( int i = 1; i < keys.length; i += 2 )
+            test.put(keys[i], i + 1);
+
+          for( int i = 1; i < keys.length; i += 2 )
+            test.remove(keys[i]);
+        }
+      }
+    };
+
+    final Pipe pipe = Pipe.open();
+    final OffHeap imported = new OffHeap();
+    final AtomicReference<Object> result = new AtomicReference<Object>();
+
+    Thread reader = new Thread() {
+
+      @Override
+      public void run() {
+        try {
+          result.set(imported.importFrom(pipe.source()));
+        } catch( IOException e ) {
+          result.set(e);
+        }
+      }
+    };
+
+    imported.put(keys[0], 1); // Outside the range, kept
+    writer.start();
+    reader.start();
+    long count = test.exportRange(keys[1000], keys[90000], pipe.sink());
+    done.set(true);
+    writer.join();
+    reader.join();
+    Assert.assertEquals(count, result.get());
+    OffHeap.Cursor cursor = imported.cursor(keys[1]);
+    int previous = 998;
+    long found = 0;
+
+    while( cursor.next() ) {
+      int i = Arrays.binarySearch(keys, cursor.key(), UNSIGNED);
+      Assert.assertTrue(i > previous && i - previous <= 2 && i < 90000);
+      Assert.assertEquals(i + 1, cursor.value());
+      previous = i;
+      found++;
+    }
+
+    Assert.assertTrue(previous >= 90000 - 2);
+    Assert.assertEquals(count, found);
+    Assert.assertEquals(1, imported.get(keys[0]));
+
+    // Whole map to a file, then a flipped byte and a truncated stream
+    File file = File.createTempFile("offn", ".export");
+
+    try {
+      RandomAccessFile out = new RandomAccessFile(file, "rw");
+      Assert.assertEquals(keys.length / 2, test.exportRange(null, null, out.getChannel()));
+      out.getChannel().position(0);
+      OffHeap copy = new OffHeap();
+      Assert.assertEquals(keys.length / 2, copy.importFrom(out.getChannel()));
+
+      for( int i = 0; i < keys.length; i++ )
+        Assert.assertEquals(i % 2 == 0 ? i + 1 : 0, copy.get(keys[i]));
+
+      long length = out.length();
+      out.seek(length / 2);
+      int b = out.read();
+      out.seek(length / 2);
+      out.write(b ^ 1);
+
+      try {
+        new OffHeap().importFrom(out.getChannel().position(0));
+        Assert.fail();
+      } catch( IOException e ) {
+      }
+
+      out.seek(length / 2);
+      out.write(b);
+      out.setLength(length - 1);
+
+      try {
+        new OffHeap().importFrom(out.getChannel().position(0));
+        Assert.fail();
+      } catch( IOException e ) {
+      }
+
+      out.close();
+    } finally {
+      file.delete();
+    }
+
+    // A failing channel surfaces its error
+    try {
+      test.exportRange(null, null, new WritableByteChannel() {
+
+        @Override
+        public boolean isOpen() {
+          return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+          throw new IOException("Broken");
+        }
+      });
+
+      Assert.fail();
+    } catch( IOException e ) {
+      Assert.assertEquals("Broken", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testChangeLog() throws Exception {
+    // Concurrent writers on distinct keys, a subscriber mirrors the map
+    final OffHeap test = new OffHeap();
+    final ChangeLog log = new ChangeLog(256, ChangeLog.Overflow.BLOCK);
+    test.changeLog(log);
+    final ChangeLog.Subscriber subscriber = log.subscribe();
+    final TreeMap<byte[], Long> mirror = new TreeMap<byte[], Long>(UNSIGNED);
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    final ChangeLog.Handler apply = new ChangeLog.Handler() {
+
+      long expected = 0;
+
+      @Override
+      public void onChange(long seq, int op, byte[] key, long previous, long value) {
+        Assert.assertEquals(expected++, seq);
+        byte[] k = key.clone();
+        Long current = mirror.get(k);
+        Assert.assertEquals(current != null ? current : 0, previous);
+
+        if( op == ChangeLog.PUT )
+          mirror.put(k, value);
+        else {
+          Assert.assertEquals(ChangeLog.REMOVE, op);
+          Assert.assertEquals(0, value);
+          mirror.remove(k);
+        }
+      }
+    };
+
+    Thread consumer = new Thread() {
+
+      @Override
+      public void run() {
+        try {
+          while( !done.get() || subscriber.lag() != 0 )
+            if( subscriber.poll(apply, 100) == 0 )
+              Thread.yield();
+        } catch( Throwable t ) {
+          error.set(t);
+        }
+      }
+    };
+
+    consumer.start();
+    byte[][] keys = sortedKeys(1000);
+
+    for( int i = 0; i < keys.length; i++ )
+      test.put(keys[i], i + 1);
+
+    Assert.assertEquals(1, test.putIfAbsent(keys[0], 5)); // Unchanged, not published
+    Assert.assertTrue(test.replace(keys[1], 2, 3));
+    Assert.assertTrue(test.remove(keys[2], 3));
+    Assert.assertEquals(10, test.removeRange(keys[10], keys[20]));
+    run(4, 1000, wrap(test));
+    done.set(true);
+    consumer.join();
+    Assert.assertNull(error.get());
+    Assert.assertEquals(log.published(), subscriber.position());
+    Assert.assertEquals(0, subscriber.lost());
+    OffHeap.Cursor cursor = test.cursor(null);
+
+    for( java.util.Map.Entry<byte[], Long> entry : mirror.entrySet() ) {
+      Assert.assertTrue(cursor.next());
+      Assert.assertArrayEquals(cursor.key(), entry.getKey());
+      Assert.assertEquals(cursor.value(), (long) entry.getValue());
+    }
+
+    Assert.assertFalse(cursor.next());
+
+    // Single writer, and backpressure on a small ring
+    final OffHeap single = new OffHeap(true);
+    ChangeLog small = new ChangeLog(16, ChangeLog.Overflow.BLOCK);
+    single.changeLog(small);
+    ChangeLog.Subscriber slow = small.subscribe();
+    final byte[][] others = sortedKeys(200);
+
+    Thread writer = new Thread() {
+
+      @Override
+      public void run() {
+        for( int i = 0; i < others.length; i++ )
+          single.put(others[i], i + 1);
+
+        for( int i = 0; i < others.length; i++ )
+          single.remove(others[i]);
+      }
+    };
+
+    writer.start();
+    final long[] count = new long[1];
+
+    ChangeLog.Handler counter = new ChangeLog.Handler() {
+
+      @Override
+      public void onChange(long seq, int op, byte[] key, long previous, long value) {
+        int i = (int) (seq % others.length);
+        Assert.assertArrayEquals(others[i], key);
+        Assert.assertEquals(seq < others.length ? 0 : i + 1, previous);
+        Assert.assertEquals(seq < others.length ? i + 1 : 0, value);
+        count[0]++;
+      }
+    };
+
+    while( count[0] < others.length * 2 ) {
+      Assert.assertTrue(slow.lag() <= 16 + 1); // Plus the writer waiting
+      slow.poll(counter, 3);
+    }
+
+    writer.join();
+    Assert.assertEquals(others.length * 2, small.published());
+    single.changeLog(null);
+    single.put(others[0], 1);
+    Assert.assertEquals(others.length * 2, small.published());
+    small.close();
+
+    // Lapped subscriber skips ahead
+    OffHeap lossy = new OffHeap();
+    ChangeLog ring = new ChangeLog(64, ChangeLog.Overflow.OVERWRITE);
+    lossy.changeLog(ring);
+    ChangeLog.Subscriber lapped = ring.subscribe();
+
+    for( int i = 0; i < others.length; i++ )
+      lossy.put(others[i], i + 1);
+
+    count[0] = 0;
+
+    ChangeLog.Handler tail = new ChangeLog.Handler() {
+
+      long last = -1;
+
+      @Override
+      public void onChange(long seq, int op, byte[] key, long previous, long value) {
+        Assert.assertTrue(seq > last && (last < 0 || seq == last + 1));
+        Assert.assertArrayEquals(others[(int) seq], key);
+        last = seq;
+        count[0]++;
+      }
+    };
+
+    while( lapped.poll(tail, 10) != 0 ) {
+    }
+
+    Assert.assertTrue(lapped.lost() > 0);
+    Assert.assertEquals(others.length, lapped.lost() + count[0]);
+    Assert.assertEquals(others.length, lapped.position());
+    log.close();
+    ring.close();
+  }
+
+  @Test
+  public void testReplication() throws Exception {
+    OffHeap test = new OffHeap();
+    byte[][] keys = sortedKeys(2000);
+
+    for( int i = 0; i < 1000; i++ )
+      test.put(keys[i], i + 1);
+
+    Replication.Primary primary = new Replication.Primary(test, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1 << 14);
+    // Reconnects a second after a disconnect, long after the writes below
+    Replication.Replica replica = new Replication.Replica(primary.address(), 1000000000L), other = null;
+
+    try {
+      // Snapshot, then changes, some made while the snapshot is sent
+      run(4, 1000, wrap(test));
+
+      for( int i = 1000; i < keys.length; i++ )
+        test.put(keys[i], i + 1);
+
+      Assert.assertTrue(test.replace(keys[1], 2, 3));
+      Assert.assertEquals(100, test.removeRange(keys[0], keys[100]));
+      checkReplica(test, primary, replica);
+      Assert.assertEquals(1, replica.snapshots());
+      Assert.assertEquals(1, primary.replicas());
+
+      // Reconnects after the last record applied
+      replica.disconnect();
+
+      for( int i = 0; i < 100; i++ )
+        test.put(keys[i], 7);
+
+      checkReplica(test, primary, replica);
+      Assert.assertEquals(1, replica.snapshots());
+      Assert.assertEquals(1, replica.resumes());
+
+      // Records lost while disconnected, resyncs
+      replica.disconnect();
+
+      for( int round = 0; round < 10; round++ )
+        for( int i = 0; i < keys.length; i++ )
+          test.put(keys[i], round + 10);
+
+      checkReplica(test, primary, replica);
+      Assert.assertEquals(2, replica.snapshots());
+
+      // Threads racing on a few keys, their records can be reordered in the log
+      final OffHeap shared = test;
+      final byte[][] hot = Arrays.copyOf(keys, 8);
+      ArrayList<Thread> threads = new ArrayList<Thread>();
+
+      for( int t = 0; t < 4; t++ ) {
+        Thread thread = new Thread() {
+
+          @Override
+          public void run() {
+            Random rand = new Random();
+
+            for( int n = 0; n < 20000; n++ ) {
+              byte[] key = hot[rand.nextInt(hot.length)];
+
+              if( rand.nextInt(3) == 0 )
+                shared.remove(key);
+              else
+                shared.put(key, rand.nextInt(100) + 1);
+            }
+          }
+        };
+
+        thread.start();
+        threads.add(thread);
+      }
+
+      for( Thread thread : threads )
+        thread.join();
+
+      // Record of an older change published late, which the threads rarely do on few cores
+      test.put(hot[0], 5);
+      test.changeLog().publish(ChangeLog.PUT, hot[0], 0, 3);
+      checkReplica(test, primary, replica);
+      Assert.assertEquals(5, replica.get(hot[0]));
+
+      for( int i = 0; i < hot.length; i++ )
+        test.put(hot[i], i + 1);
+
+      // Another replica, which keeps its copy once the primary is gone
+      other = new Replication.Replica(primary.address());
+      checkReplica(test, primary, other);
+    } finally {
+      replica.close();
+      primary.close();
+    }
+
+    Assert.assertNull(test.changeLog());
+
+    try {
+      new Replication.Primary(test, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000);
+      Assert.fail();
+    } catch( IllegalArgumentException e ) {
+    }
+
+    Assert.assertNull(test.changeLog());
+
+    while( other.connected() )
+      Thread.sleep(1);
+
+    OffHeap.Cursor cursor = other.cursor(null);
+    int count = 0;
+
+    while( cursor.next() )
+      count++;
+
+    Assert.assertEquals(keys.length, count);
+    other.close();
+  }
+
+  /**
+   * Waits for replica to apply all records published, and compares its map.
+   */
+  private static void checkReplica(OffHeap test, Replication.Primary primary, Replication.Replica replica) throws Exception {
+    long deadline = System.nanoTime() + 30000000000L;
+
+    while( replica.applied() != primary.published() || replica.lag() != 0 ) {
+      Assert.assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+
+    OffHeap.Cursor expected = test.cursor(null), actual = replica.cursor(null);
+
+    while( expected.next() ) {
+      Assert.assertTrue(actual.next());
+      Assert.assertArrayEquals(expected.key(), actual.key());
+      Assert.assertEquals(expected.value(), actual.value());
+    }
+
+    Assert.assertFalse(actual.next());
+  }
+
+  @Test
+  public void testChangeIndex() throws Exception {
+    OffHeap test = new OffHeap();
+    ChangeLog log = new ChangeLog(1 << 12, ChangeLog.Overflow.BLOCK);
+    test.changeLog(log);
+    ChangeIndex index = new ChangeIndex(test, 1000);
+    byte[][] keys = sortedKeys(100);
+    Arrays.fill(keys[10], 12, 20, (byte) 0); // Zero and one tails
+    Arrays.fill(keys[11], 12, 20, (byte) 0);
+    keys[11][19] = 1;
+
+    for( int i = 0; i < keys.length; i++ )
+      test.put(keys[i], i + 1);
+
+    awaitIndex(log, index);
+    long sync = index.indexed();
+    Assert.assertEquals(keys.length, sync);
+
+    for( int i = 50; i < 60; i++ )
+      test.put(keys[i], 1);
+
+    for( int i = 0; i < 5; i++ )
+      test.remove(keys[i]);
+
+    test.put(keys[10], 7);
+    test.put(keys[11], 7);
+    awaitIndex(log, index);
+    ChangeIndex.Changes changes = index.changesSince(sync);
+    long seq = sync;
+
+    for( int i = 50; i < 60; i++ ) {
+      Assert.assertTrue(changes.next());
+      Assert.assertArrayEquals(keys[i], changes.key());
+      Assert.assertEquals(seq++, changes.seq());
+      Assert.assertFalse(changes.removed());
+    }
+
+    for( int i = 0; i < 5; i++ ) {
+      Assert.assertTrue(changes.next());
+      Assert.assertArrayEquals(keys[i], changes.key());
+      Assert.assertEquals(seq++, changes.seq());
+      Assert.assertTrue(changes.removed());
+    }
+
+    for( int i = 10; i < 12; i++ ) {
+      Assert.assertTrue(changes.next());
+      Assert.assertArrayEquals(keys[i], changes.key());
+      Assert.assertEquals(seq++, changes.seq());
+    }
+
+    Assert.assertFalse(changes.next());
+    Assert.assertFalse(index.changesSince(index.indexed()).next());
+
+    // Each key once, at its last change
+    changes = index.changesSince(0);
+    seq = -1;
+    int count = 0;
+
+    while( changes.next() ) {
+      Assert.assertTrue(changes.seq() > seq);
+      seq = changes.seq();
+      Assert.assertEquals(changes.removed(), test.get(changes.key()) == 0);
+      count++;
+    }
+
+    Assert.assertEquals(keys.length, count);
+    Assert.assertEquals(keys.length, index.size());
+
+    // Concurrent writers, then compaction
+    long start = index.indexed();
+    run(4, 1000, wrap(test));
+    awaitIndex(log, index);
+    Assert.assertTrue(index.horizon() > start);
+    Assert.assertNull(index.changesSince(0));
+    Assert.assertTrue(index.size() <= 1250);
+    changes = index.changesSince(index.horizon());
+    seq = -1;
+
+    while( changes.next() ) {
+      Assert.assertTrue(changes.seq() > seq && changes.seq() >= index.horizon());
+      seq = changes.seq();
+      Assert.assertEquals(changes.removed(), test.get(changes.key()) == 0);
+    }
+
+    Assert.assertEquals(log.published() - 1, seq);
+
+    // Threads racing on the same keys, tombstones follow the map
+    final OffHeap shared = test;
+    final byte[][] hot = Arrays.copyOf(keys, 8);
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+
+    for( int t = 0; t < 4; t++ ) {
+      Thread thread = new Thread() {
+
+        @Override
+        public void run() {
+          Random rand = new Random();
+
+          for( int n = 0; n < 20000; n++ ) {
+            byte[] key = hot[rand.nextInt(hot.length)];
+
+            if( rand.nextBoolean() )
+              shared.remove(key);
+            else
+              shared.put(key, n + 1);
+          }
+        }
+      };
+
+      thread.start();
+      threads.add(thread);
+    }
+
+    for( Thread thread : threads )
+      thread.join();
+
+    // Record of an older change published late, which the threads rarely do on few cores
+    test.put(hot[0], 5);
+    log.publish(ChangeLog.REMOVE, hot[0], 3, 0);
+    awaitIndex(log, index);
+    changes = index.changesSince(index.horizon());
+    int found = 0;
+
+    while( changes.next() ) {
+      Assert.assertEquals(changes.removed(), test.get(changes.key()) == 0);
+
+      for( byte[] key : hot )
+        if( Arrays.equals(key, changes.key()) )
+          found++;
+    }
+
+    Assert.assertEquals(hot.length, found);
+    Assert.assertEquals(log.published() - 1, changes.seq());
+
+    try {
+      new ChangeIndex(new OffHeap(), 1000);
+      Assert.fail();
+    } catch( IllegalStateException e ) {
+    }
+
+    index.close();
+    test.changeLog(null);
+    test.put(keys[0], 1);
+    Assert.assertEquals(log.published(), index.indexed());
+    log.close();
+  }
+
+  private static void awaitIndex(ChangeLog log, ChangeIndex index) throws Exception {
+    long deadline = System.nanoTime() + 30000000000L;
+
+    while( index.indexed() != log.published() ) {
+      Assert.assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void testDurable() throws Exception {
+    byte[][] keys = sortedKeys(20000);
+    File file = File.createTempFile("offn", ".log");
+
+    try {
+      final DurableOffHeap test = new DurableOffHeap(file, false, 1000, 256);
+      Assert.assertEquals(0, test.replayed());
+
+      for( int i = 0; i < keys.length; i++ )
+        Assert.assertEquals(0, test.put(keys[i], i + 1));
+
+      for( int i = 1; i < keys.length; i += 2 )
+        Assert.assertEquals(i + 1, test.remove(keys[i]));
+
+      test.sync();
+
+      run(4, 1000, new Map() {
+
+        @Override
+        public long get(byte[] key) {
+          return test.get(key);
+        }
+
+        @Override
+        public long put(byte[] key, long value) {
+          return test.put(key, value);
+        }
+
+        @Override
+        public long remove(byte[] key) {
+          return test.remove(key);
+        }
+      });
+
+      test.close();
+      long length = file.length();
+      Assert.assertEquals(0, length % 40);
+
+      // Replay, then sync writes on top
+      DurableOffHeap replayed = new DurableOffHeap(file);
+      Assert.assertEquals(length / 40, replayed.replayed());
+      checkDurable(replayed, keys, keys.length);
+      Assert.assertEquals(0, replayed.put(keys[1], 2));
+      replayed.close();
+
+      // Torn record at the end, dropped
+      RandomAccessFile raw = new RandomAccessFile(file, "rw");
+      raw.setLength(length + 40 + 17);
+      raw.close();
+      replayed = new DurableOffHeap(file);
+      Assert.assertEquals(length / 40 + 1, replayed.replayed());
+      Assert.assertEquals(2, replayed.get(keys[1]));
+      replayed.close();
+      Assert.assertEquals(length + 40, file.length());
+
+      // Corrupt put of the last key, replay stops before it
+      raw = new RandomAccessFile(file, "rw");
+      raw.seek((keys.length - 1) * 40 + 24);
+      raw.write(0xff);
+      raw.close();
+      replayed = new DurableOffHeap(file);
+      Assert.assertEquals(keys.length - 1, replayed.replayed());
+      checkDurable(replayed, keys, keys.length - 1);
+      replayed.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testLsm() throws Exception {
+    byte[][] keys = sortedKeys(20000);
+    File dir = File.createTempFile("offn", ".lsm");
+    dir.delete();
+
+    try {
+      final LsmOffHeap test = new LsmOffHeap(dir, 1000);
+
+      // Backwards, so that runs overlap once odd keys are removed
+      for( int i = keys.length - 1; i >= 0; i-- )
+        test.put(keys[i], i + 1);
+
+      for( int i = 1; i < keys.length; i += 2 )
+        test.remove(keys[i]);
+
+      checkLsm(test, keys);
+
+      // Keys are distinct per thread, so previous values can be read first
+      run(4, 1000, new Map() {
+
+        @Override
+        public long get(byte[] key) {
+          return test.get(key);
+        }
+
+        @Override
+        public long put(byte[] key, long value) {
+          long previous = test.get(key);
+          test.put(key, value);
+          return previous;
+        }
+
+        @Override
+        public long remove(byte[] key) {
+          long previous = test.get(key);
+          test.remove(key);
+          return previous;
+        }
+      });
+
+      checkLsm(test, keys);
+      test.close();
+      checkLsm(test, keys);
+      Assert.assertEquals(test.runs(), dir.list().length);
+
+      // Leftovers of a crash: a temporary file, and a merge input still there
+      String merged = null;
+
+      for( String name : dir.list() )
+        if( !name.substring(0, 16).equals(name.substring(17, 33)) )
+          merged = name;
+
+      Assert.assertNotNull(merged);
+      File input = new File(dir, merged.substring(17, 33) + "-" + merged.substring(17));
+      Files.copy(new File(dir, merged).toPath(), input.toPath());
+      File tmp = new File(dir, "run-1.tmp");
+      tmp.createNewFile();
+
+      LsmOffHeap reopened = new LsmOffHeap(dir, 1000);
+      Assert.assertFalse(input.exists());
+      Assert.assertFalse(tmp.exists());
+      checkLsm(reopened, keys);
+
+      // Overwrite everything, newest values win over runs
+      for( int i = 0; i < keys.length; i++ )
+        reopened.put(keys[i], i + 2);
+
+      for( int i = 0; i < keys.length; i++ )
+        Assert.assertEquals(i + 2, reopened.get(keys[i]));
+
+      reopened.close();
+    } finally {
+      for( File file : dir.listFiles() )
+        file.delete();
+
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testValueLog() throws Exception {
+    byte[][] keys = sortedKeys(2000);
+    File dir = File.createTempFile("offn", ".vlog");
+    dir.delete();
+
+    try {
+      final ValueLogOffHeap test = new ValueLogOffHeap(dir, 1 << 16, 0.5);
+
+      // Each key rewritten a few times, so that early segments are mostly garbage
+      for( int round = 0; round < 4; round++ )
+        for( int i = 0; i < keys.length; i++ )
+          test.put(keys[i], value(i, round));
+
+      for( int i = 1; i < keys.length; i += 2 )
+        Assert.assertTrue(test.remove(keys[i]));
+
+      Assert.assertFalse(test.remove(keys[1]));
+      checkValueLog(test, keys, 3);
+      ByteBuffer view = test.get(keys[0]);
+      int segments = test.segments();
+      Assert.assertTrue(test.collect() > 0);
+      Assert.assertTrue(test.segments() < segments);
+      Assert.assertEquals(value(0, 3), view);
+      checkValueLog(test, keys, 3);
+
+      run(4, 1000, new Map() {
+
+        @Override
+        public long get(byte[] key) {
+          ByteBuffer value = test.get(key);
+          return value != null ? value.getLong(0) : 0;
+        }
+
+        @Override
+        public long put(byte[] key, long value) {
+          long previous = get(key);
+          test.put(key, ByteBuffer.allocate(8 + (int) value % 100).putLong(0, value));
+          return previous;
+        }
+
+        @Override
+        public long remove(byte[] key) {
+          long previous = get(key);
+          test.remove(key);
+          return previous;
+        }
+      });
+
+      test.collect();
+      checkValueLog(test, keys, 3);
+      test.close();
+
+      ValueLogOffHeap reopened = new ValueLogOffHeap(dir, 1 << 16, 0.5);
+      checkValueLog(reopened, keys, 3);
+
+      // Collected on top of replay, then replayed again
+      for( int i = 0; i < keys.length; i += 2 )
+        reopened.put(keys[i], value(i, 4));
+
+      reopened.collect();
+      reopened.close();
+      reopened = new ValueLogOffHeap(dir, 1 << 16, 0.5);
+      checkValueLog(reopened, keys, 4);
+      reopened.close();
+    } finally {
+      for( File file : dir.listFiles() )
+        file.delete();
+
+      dir.delete();
+    }
+  }
+
+  /**
+   * Value of a key for a round, with a length which depends on both.
+   */
+  private static ByteBuffer value(int i, int round) {
+    ByteBuffer value = ByteBuffer.allocate(1 + (i * 7 + round * 13) % 300);
+
+    for( int b = 0; b < value.capacity(); b++ )
+      value.put(b, (byte) (i + round + b));
+
+    return value;
+  }
+
+  /**
+   * Even keys with their value of round.
+   */
+  private static void checkValueLog(ValueLogOffHeap map, byte[][] keys, int round) {
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 2 == 0 ? value(i, round) : null, map.get(keys[i]));
+  }
+
+  /**
+   * Even keys with their index + 1 as value.
+   */
+  private static void checkLsm(LsmOffHeap map, byte[][] keys) {
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 2 == 0 ? i + 1 : 0, map.get(keys[i]));
+
+    LsmOffHeap.Cursor cursor = map.cursor(null);
+
+    for( int i = 0; i < keys.length; i += 2 ) {
+      Assert.assertTrue(cursor.next());
+      Assert.assertArrayEquals(keys[i], cursor.key());
+      Assert.assertEquals(i + 1, cursor.value());
+    }
+
+    Assert.assertFalse(cursor.next());
+    cursor = map.cursor(keys[101]);
+    Assert.assertTrue(cursor.next());
+    Assert.assertArrayEquals(keys[102], cursor.key());
+  }
+
+  /**
+   * Keys before end, and even ones still after the removals of odd ones, if any.
+   */
+  private static void checkDurable(DurableOffHeap map, byte[][] keys, int end) {
+    for( int i = 0; i < keys.length; i++ ) {
+      long expected = i < end && (i % 2 == 0 || end < keys.length) ? i + 1 : 0;
+      Assert.assertEquals(expected, map.get(keys[i]));
+    }
+  }
+
+  /**
+   * Keys from first, every other one, with their index + 1 as value.
+   */
+  private static void checkMapped(MappedOffHeap map, byte[][] keys, int first) {
+    Assert.assertEquals(keys.length / 2, map.size());
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(i % 2 == first ? i + 1 : 0, map.get(keys[i]));
+
+    MappedOffHeap.Cursor cursor = map.cursor(null);
+
+    for( int i = first; i < keys.length; i += 2 ) {
+      Assert.assertTrue(cursor.next());
+      Assert.assertArrayEquals(keys[i], cursor.key());
+      Assert.assertEquals(i + 1, cursor.value());
+    }
+
+    Assert.assertFalse(cursor.next());
+    cursor = map.cursor(keys[keys.length / 2]);
+    Assert.assertTrue(cursor.next());
+    int i = keys.length / 2 + (keys.length / 2 % 2 == first ? 0 : 1);
+    Assert.assertArrayEquals(keys[i], cursor.key());
+  }
+
+  @Test
+  public void testCombining() throws Exception {
+    final CombiningOffHeap test = new CombiningOffHeap();
+
+    Map map = new Map() {
+
+      @Override
+      public long get(byte[] key) {
+        return test.get(key);
+      }
+
+      @Override
+      public long put(byte[] key, long value) {
+        return test.put(key, value);
+      }
+
+      @Override
+      public long remove(byte[] key) {
+        return test.remove(key);
+      }
+    };
+
+    for( int i = 0; i < 10; i++ )
+      run(4, 1000, map);
+
+    // Hot keys, each write returns the value it replaced, so previous values must
+    // chain all written ones, with 0 once per key and each key's last one left over
+    final byte[][] keys = sortedKeys(4);
+    final int threads = 8, writes = 20000;
+    final long[][] previous = new long[threads][writes];
+    ArrayList<Thread> joins = new ArrayList<Thread>();
+
+    for( int t = 0; t < threads; t++ ) {
+      final int thread = t;
+
+      Thread writer = new Thread() {
+
+        @Override
+        public void run() {
+          for( int i = 0; i < writes; i++ ) {
+            long value = (long) thread * writes + i + 1;
+            previous[thread][i] = test.put(keys[i % keys.length], value * keys.length + i % keys.length);
+          }
+        }
+      };
+
+      writer.start();
+      joins.add(writer);
+    }
+
+    for( Thread writer : joins )
+      writer.join();
+
+    long[] all = new long[threads * writes];
+    int count = 0;
+
+    for( int t = 0; t < threads; t++ )
+      for( int i = 0; i < writes; i++ )
+        all[count++] = previous[t][i];
+
+    Arrays.sort(all);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(0, all[i]);
+
+    long[] expected = new long[threads * writes];
+    count = 0;
+
+    for( int t = 0; t < threads; t++ ) {
+      for( int i = 0; i < writes; i++ ) {
+        long value = ((long) t * writes + i + 1) * keys.length + i % keys.length;
+        boolean last = false;
+
+        for( int k = 0; k < keys.length; k++ )
+          last |= test.get(keys[k]) == value;
+
+        if( !last )
+          expected[count++] = value;
+      }
+    }
+
+    Assert.assertEquals(threads * writes - keys.length, count);
+    Arrays.sort(expected, 0, count);
+    Assert.assertArrayEquals(Arrays.copyOfRange(expected, 0, count), Arrays.copyOfRange(all, keys.length, all.length));
+
+    // Cursors go through shards in key order
+    CombiningOffHeap sharded = new CombiningOffHeap(8);
+    final byte[][] sorted = sortedKeys(1000);
+
+    for( int i = 0; i < sorted.length; i++ )
+      Assert.assertEquals(0, sharded.put(sorted[i], i + 1));
+
+    for( int from : new int[] { 0, 500 } ) {
+      CombiningOffHeap.Cursor cursor = sharded.cursor(from == 0 ? null : sorted[from]);
+
+      for( int i = from; i < sorted.length; i++ ) {
+        Assert.assertTrue(cursor.next());
+        Assert.assertArrayEquals(sorted[i], cursor.key());
+        Assert.assertEquals(i + 1, cursor.value());
+      }
+
+      Assert.assertFalse(cursor.next());
+    }
+
+    // Threads come and go, slots of those which exited are dropped
+    final CombiningOffHeap pooled = new CombiningOffHeap(1);
+
+    for( int t = 0; t < 100; t++ ) {
+      final int value = t + 1;
+
+      Thread thread = new Thread() {
+
+        @Override
+        public void run() {
+          pooled.put(sorted[0], value);
+        }
+      };
+
+      thread.start();
+      thread.join();
+      Assert.assertEquals(1, pooled.slots());
+    }
+
+    Assert.assertEquals(100, pooled.put(sorted[0], 101));
+    Assert.assertEquals(1, pooled.slots());
+  }
+
+  @Test
+  public void testVersioned() throws Exception {
+    final VersionedOffHeap test = new VersionedOffHeap();
+
+    Map map = new Map() {
+
+      @Override
+      public long get(byte[] key) {
+        return test.get(key);
+      }
+
+      @Override
+      public long put(byte[] key, long value) {
+        return test.put(key, value);
+      }
+
+      @Override
+      public long remove(byte[] key) {
+        return test.remove(key);
+      }
+    };
+
+    for( int i = 0; i < 10; i++ )
+      run(4, 1000, map);
+
+    Assert.assertTrue(test.vacuum() > 0); // Removals of all keys
+    Assert.assertEquals(0, test.vacuum());
+    final byte[][] keys = sortedKeys(1000);
+
+    for( int i = 0; i < keys.length; i++ )
+      Assert.assertEquals(0, test.put(keys[i], 1));
+
+    VersionedOffHeap.Snapshot snapshot = test.snapshot();
+
+    for( int i = 0; i < keys.length; i++ ) {
+      if( i % 2 == 0 )
+        Assert.assertEquals(1, test.remove(keys[i]));
+      else
+        Assert.assertEquals(1, test.put(keys[i], 2));
+    }
+
+    VersionedOffHeap.Cursor cursor = snapshot.cursor(null);
+
+    for( int i = 0; i < keys.length; i++ ) {
+      Assert.assertEquals(1, snapshot.get(keys[i]));
+      Assert.assertEquals(i % 2 == 0 ? 0 : 2, test.get(keys[i]));
+      Assert.assertTrue(cursor.next());
+      Assert.assertArrayEquals(keys[i], cursor.key());
+      Assert.assertEquals(1, cursor.value());
+    }
+
+    Assert.assertFalse(cursor.next());
+    Assert.assertEquals(0, test.vacuum()); // Removals still visible to snapshot
+    snapshot.close();
+    Assert.assertEquals(keys.length / 2, test.vacuum());
+
+    // A writer sets all keys to i in key order, scans must see i for a prefix and i - 1
+    // for the rest
+    for( int k = 0; k < keys.length; k++ )
+      test.put(keys[k], 2);
+
+    final AtomicBoolean done = new AtomicBoolean();
+
+    Thread writer = new Thread() {
+
+      @Override
+      public void run() {
+        for( int i = 3; !done.get(); i++ )
+          for( int k = 0; k < keys.length; k++ )
+            test.put(keys[k], i);
+      }
+    };
+
+    writer.start();
+
+    for( int s = 0; s < 100; s++ ) {
+      snapshot = test.snapshot();
+      cursor = snapshot.cursor(null);
+      long first = 0, last = 0;
+
+      for( int i = 0; i < keys.length; i++ ) {
+        Assert.assertTrue(cursor.next());
+        long value = cursor.value();
+
+        if( i == 0 )
+          first = value;
+        else
+          Assert.assertTrue(value <= last);
+
+        last = value;
+        Assert.assertEquals(value, snapshot.get(keys[i]));
+      }
+
+      Assert.assertTrue(first - last <= 1);
+      snapshot.close();
+    }
+
+    done.set(true);
+    writer.join();
+  }
+
+  @Test
+  public void testTransactions() throws Exception {
+    final VersionedOffHeap test = new VersionedOffHeap();
+    final byte[][] keys = sortedKeys(8);
+    final int threads = 4, transfers = 5000;
+
+    for( int i = 0; i < keys.length; i++ )
+      test.put(keys[i], 1000);
+
+    VersionedOffHeap.Transaction txn = test.begin();
+    Assert.assertEquals(1000, txn.get(keys[0]));
+    txn.put(keys[0], 1);
+    txn.remove(keys[1]);
+    Assert.assertEquals(1, txn.get(keys[0]));
+    Assert.assertEquals(0, txn.get(keys[1]));
+    Assert.assertEquals(1000, test.get(keys[0])); // Not visible before commit
+    test.put(keys[2], 1); // Not read by txn
+    Assert.assertTrue(txn.commit());
+    Assert.assertEquals(1, test.get(keys[0]));
+    Assert.assertEquals(0, test.get(keys[1]));
+
+    txn = test.begin();
+    Assert.assertEquals(1, txn.get(keys[0]));
+    test.put(keys[0], 2); // Read key written since
+    txn.put(keys[3], 7);
+    Assert.assertFalse(txn.commit());
+    Assert.assertEquals(1000, test.get(keys[3]));
+    Assert.assertEquals(1, test.aborts());
+
+    for( int i = 0; i < keys.length; i++ )
+      test.put(keys[i], 1000);
+
+    // Transfers keep the total constant, for snapshots and at the end
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ArrayList<Thread> joins = new ArrayList<Thread>();
+
+    for( int t = 0; t < threads; t++ ) {
+      final int seed = t;
+
+      Thread thread = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            Random rand = new Random(seed);
+
+            for( int i = 0; i < transfers; ) {
+              byte[] from = keys[rand.nextInt(keys.length)], to = keys[rand.nextInt(keys.length)];
+
+              if( from == to )
+                continue;
+
+              VersionedOffHeap.Transaction txn = test.begin();
+              long a = txn.get(from), b = txn.get(to);
+              long amount = rand.nextInt((int) a);
+              txn.put(from, a - amount);
+              txn.put(to, b + amount);
+
+              if( txn.commit() )
+                i++;
+            }
+          } catch( Throwable e ) {
+            error.set(e);
+          }
+        }
+      };
+
+      thread.start();
+      joins.add(thread);
+    }
+
+    for( int s = 0; s < 1000; s++ ) {
+      VersionedOffHeap.Snapshot snapshot = test.snapshot();
+      long total = 0;
+
+      for( int i = 0; i < keys.length; i++ )
+        total += snapshot.get(keys[i]);
+
+      snapshot.close();
+      Assert.assertEquals(1000 * keys.length, total);
+    }
+
+    for( Thread thread : joins )
+      thread.join();
+
+    if( error.get() != null )
+      throw new AssertionError(error.get());
+
+    long total = 0;
+
+    for( int i = 0; i < keys.length; i++ )
+      total += test.get(keys[i]);
+
+    Assert.assertEquals(1000 * keys.length, total);
+    Assert.assertEquals(threads * transfers + 1, test.commits());
+  }
+
+  @Test
+  public void testBackoff() throws Exception {
+    for( final OffHeap.Backoff backoff : OffHeap.Backoff.values() ) {
+      final OffHeap test = new OffHeap();
+      test.backoff(backoff);
+      Assert.assertEquals(backoff, test.backoff());
+      run(4, 1000, wrap(test));
+
+      // Threads own interleaved keys, so they keep updating each other's predecessors
+      final byte[][] keys = sortedKeys(16);
+      final int threads = 8;
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      ArrayList<Thread> joins = new ArrayList<Thread>();
+
+      for( int t = 0; t < threads; t++ ) {
+        final int thread = t;
+
+        Thread writer = new Thread() {
+
+          @Override
+          public void run() {
+            try {
+              for( int i = 0; i < 10000; i++ ) {
+                int k = thread + (i & 1) * threads;
+                Assert.assertEquals(0, test.put(keys[k], i + 1));
+                Assert.assertEquals(i + 1, test.get(keys[k]));
+                Assert.assertEquals(i + 1, test.remove(keys[k]));
+              }
+            } catch( Throwable e ) {
+              error.set(e);
+            }
+          }
+        };
+
+        writer.start();
+        joins.add(writer);
+      }
+
+      for( Thread writer : joins )
+        writer.join();
+
+      if( error.get() != null )
+        throw new AssertionError(error.get());
+
+      for( int i = 0; i < keys.length; i++ )
+        Assert.assertEquals(0, test.get(keys[i]));
+
+      for( OffHeap.Site site : OffHeap.Site.values() )
+        Assert.assertTrue(test.restarts(site) >= 0);
+    }
+
+    try {
+      new OffHeap().backoff(null);
+      Assert.fail();
+    } catch( NullPointerException e ) {
+    }
+  }
+
+  static byte[][] sortedKeys(int count) {
+    return sortedKeys(count, new SecureRandom());
+  }
+
+  /**
+   * Same keys for the same seed, e.g. in another process.
+   */
+  static byte[][] sortedKeys(int count, long seed) {
+    return sortedKeys(count, new Random(seed));
+  }
+
+  private static byte[][] sortedKeys(int count, Random rand) {
+    byte[][] keys = new byte[count][];
+
+    for( int i = 0; i < keys.length; i++ ) {
+      keys[i] = new byte[20];
+      rand.nextBytes(keys[i]);
+    }
+
+    Arrays.sort(keys, UNSIGNED);
+
+    return keys;
+  }
+
+  /**
+   * OffHeap order, unlike ArrayWrapper which compares signed bytes.
+   */
+  static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      for( int i = 0; i < a.length; i++ ) {
+        int x = a[i] & 0xff;
+        int y = b[i] & 0xff;
+
+        if( x != y )
+          return x < y ? -1 : 1;
+      }
+
+      return 0;
+    }
+  };
+
+  static Map wrap(final OffHeap test) {
+    return new Map() {
+
+      @Override
+      public long get(byte[] key) {
+        return test.get(key);
+      }
+
+      @Override
+      public long put(byte[] key, long value) {
+        return test.put(key, value);
+      }
+
+      @Override
+      public long remove(byte[] key) {
+        return test.remove(key);
+      }
+    };
+  }
+
   private void run(int threads, final int writes, final Map map) throws Exception {
     final CyclicBarrier barrier = new CyclicBarrier(threads);
     ArrayList<Thread> joins = new ArrayList<Thread>();